@@ -4,27 +4,43 @@ import android.app.NotificationManager
 import android.app.Service
 import android.content.Context
 import android.content.Intent
+import android.content.SharedPreferences
 import android.os.Binder
 import android.os.IBinder
+import android.os.SystemClock
 import android.util.Log
 import androidx.core.app.NotificationCompat
 import com.axlecho.api.MHApi
-import com.axlecho.api.MHComicDetail
-import com.axlecho.api.MHComicInfo
-import com.hippo.ehviewer.client.data.GalleryDetail
 import com.hippo.ehviewer.client.data.GalleryInfo
-import com.hippo.ehviewer.dao.ReadingRecord
+import com.hippo.util.TokenBucket
 import io.reactivex.Observable
+import io.reactivex.Single
 import io.reactivex.android.schedulers.AndroidSchedulers
 import io.reactivex.disposables.Disposable
 import io.reactivex.schedulers.Schedulers
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
 
 class CheckUpdateService : Service() {
 
     companion object {
         const val TAG = "service_update"
         const val ACTION_START = "start"
+
+        // Parallel info() calls for one source
+        private const val MAX_CONCURRENCY_PER_SOURCE = 3
+        // Token bucket for one source, a burst of BUCKET_CAPACITY then PERMITS_PER_SECOND
+        private const val BUCKET_CAPACITY = 3
+        private const val PERMITS_PER_SECOND = 1.0
+        // Results are written to db in batches
+        private const val BATCH_SIZE = 20
+        private const val BATCH_TIMESPAN = 2L
+
+        // Ids checked in the unfinished run, so a killed run resumes where it stopped
+        private const val PREF_NAME = "check_update"
+        private const val KEY_CHECKED = "checked"
     }
 
     private var mListener: UpdateListener? = null
@@ -40,7 +56,29 @@ class CheckUpdateService : Service() {
         }
     }
 
+    private class CheckResult(val info: GalleryInfo, val updateTime: Long) {
+        val failed: Boolean
+            get() = updateTime == -1L
+    }
+
+    private class Pending(val total: Int, val items: List<GalleryInfo>, val checked: MutableSet<String>)
+
+    private class SourceStats(val source: String) {
+        val success = AtomicInteger()
+        val failed = AtomicInteger()
+        val start = SystemClock.elapsedRealtime()
+        val end = AtomicLong(start)
+
+        override fun toString(): String {
+            val count = success.get() + failed.get()
+            val seconds = Math.max(1L, end.get() - start) / 1000.0f
+            return "%s: %d ok, %d failed, %.2f/s".format(source, success.get(), failed.get(), count / seconds)
+        }
+    }
+
     private var mNotifyManager: NotificationManager? = null
+    private lateinit var mPref: SharedPreferences
+    private val mStats = ConcurrentHashMap<String, SourceStats>()
     private var handle: Disposable = object : Disposable {
         override fun isDisposed(): Boolean {
             return true
@@ -57,6 +95,12 @@ class CheckUpdateService : Service() {
     override fun onCreate() {
         super.onCreate()
         mNotifyManager = getSystemService(Context.NOTIFICATION_SERVICE) as NotificationManager
+        mPref = getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE)
+    }
+
+    override fun onDestroy() {
+        super.onDestroy()
+        handle.dispose()
     }
 
     override fun onStartCommand(intent: Intent, flags: Int, startId: Int): Int {
@@ -79,45 +123,101 @@ class CheckUpdateService : Service() {
         }
     }
 
+    private fun loadPending(): Pending {
+        val favorites = EhDB.getAllLocalFavorites()
+        val checked = HashSet(mPref.getStringSet(KEY_CHECKED, emptySet()))
+        val pending = favorites.filter { !checked.contains(it.id) }
+        return Pending(favorites.size, pending, checked)
+    }
+
     private fun checkUpdate() {
-        var current = 1
+        var total = 0
+        var current = 0
 
-        val favorites = EhDB.getAllLocalFavorites()
-        handle = Observable.fromIterable(favorites)
-                .concatMap { item ->
-                    Observable.interval((3000..5000).random().toLong(), TimeUnit.MILLISECONDS)
-                            .take(1)
-                            .map { item }
-                            .flatMap {
-                                MHApi.INSTANCE.get(it.source).info(it.gid)
-                                        .onErrorResumeNext(Observable.just(buildErrorItem(it)))
-                                        .subscribeOn(Schedulers.io())
-                            }
-                }
+        mStats.clear()
+        handle = Single.fromCallable { loadPending() }
                 .subscribeOn(Schedulers.io())
-                .observeOn(AndroidSchedulers.mainThread())
-                .subscribe {
-                    Log.v(TAG, "${it.source}@${it.info.title}    ${it.updateTime}")
-                    if (it.updateTime == -1L) {
-                        sendNotification(it.info.posted, "${it.info.title} failed", favorites.size, current)
-                    } else {
-                        updateDatabase(it)
-                        sendNotification(it.info.posted, "${it.info.title} done", favorites.size, current)
+                .flatMapObservable { pending ->
+                    total = pending.total
+                    current = total - pending.items.size
+                    if (current > 0) {
+                        Log.d(TAG, "Resume checking update from $current / $total")
                     }
-                    current++
+                    Observable.fromIterable(pending.items.groupBy { it.source }.entries)
+                            .flatMap { checkSource(it.key, it.value) }
+                            .buffer(BATCH_TIMESPAN, TimeUnit.SECONDS, BATCH_SIZE)
+                            .filter { it.isNotEmpty() }
+                            .observeOn(Schedulers.io())
+                            .map { saveBatch(it, pending.checked) }
                 }
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe({
+                    current += it.size
+                    val last = it.last()
+                    val title = if (last.failed) "${last.info.title} failed" else "${last.info.title} done"
+                    sendNotification(last.info.posted ?: "", title, total, current)
+                }, {
+                    Log.e(TAG, "Check update failed", it)
+                }, {
+                    val summary = mStats.values.joinToString("\n")
+                    Log.d(TAG, summary)
+                    mPref.edit().remove(KEY_CHECKED).apply()
+                    sendNotification(summary, getString(R.string.favorites_checking_update, total, total), total, total)
+                })
     }
 
-    private fun updateDatabase(item: MHComicDetail) {
-        val detail = GalleryDetail(item)
-        var record = EhDB.getReadingRecord(detail.id)
-        if (record == null) {
-            record = ReadingRecord()
+    private fun checkSource(source: String, items: List<GalleryInfo>): Observable<CheckResult> {
+        val bucket = TokenBucket(BUCKET_CAPACITY, PERMITS_PER_SECOND)
+        val stats = SourceStats(source)
+        mStats[source] = stats
+
+        return Observable.fromIterable(items)
+                .flatMap({ item ->
+                    Observable.fromCallable { acquire(bucket) }
+                            .flatMap { acquired ->
+                                if (acquired) {
+                                    // No info is failed too, so it's counted in progress
+                                    MHApi.INSTANCE.get(source).info(item.gid)
+                                            .take(1)
+                                            .map { CheckResult(item, it.updateTime) }
+                                            .defaultIfEmpty(CheckResult(item, -1L))
+                                            .onErrorReturn { CheckResult(item, -1L) }
+                                } else {
+                                    // Interrupted, it's failed and checked again in the next run
+                                    Observable.just(CheckResult(item, -1L))
+                                }
+                            }
+                            .doOnNext {
+                                if (it.failed) stats.failed.incrementAndGet() else stats.success.incrementAndGet()
+                                stats.end.set(SystemClock.elapsedRealtime())
+                            }
+                            .subscribeOn(Schedulers.io())
+                }, MAX_CONCURRENCY_PER_SOURCE)
+    }
+
+    private fun acquire(bucket: TokenBucket): Boolean {
+        return try {
+            bucket.acquire()
+            true
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+            false
         }
-        record.id = detail.id
-        record.update_time = detail.updateTime
+    }
 
-        EhDB.putReadingRecord(record)
+    private fun saveBatch(batch: List<CheckResult>, checked: MutableSet<String>): List<CheckResult> {
+        val updateTimes = HashMap<String, Long>()
+        for (result in batch) {
+            // Failed ones are checked again when a killed run resumes
+            if (!result.failed) {
+                updateTimes[result.info.id] = result.updateTime
+                checked.add(result.info.id)
+            }
+        }
+        val written = EhDB.putReadingRecordUpdateTimes(updateTimes)
+        Log.v(TAG, "Batch of ${batch.size}, $written changed")
+        mPref.edit().putStringSet(KEY_CHECKED, HashSet(checked)).apply()
+        return batch
     }
 
     private fun sendNotification(message: String, title: String, total: Int = 100, current: Int = 100) {
@@ -129,10 +229,4 @@ class CheckUpdateService : Service() {
         mNotifyManager?.notify(1, builder.build())
         mListener?.update(total == current, current, total)
     }
-
-    private fun buildErrorItem(info: GalleryInfo): MHComicDetail {
-        return MHComicDetail(MHComicInfo(info.gid, info.title, info.titleJpn, "", 0, "", "", 0.0f, false, info.source),
-                "", 0, 0, false,
-                0, arrayListOf(), arrayListOf(), info.source, -1)
-    }
-}
\ No newline at end of file
+}
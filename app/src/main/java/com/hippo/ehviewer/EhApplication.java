@@ -40,15 +40,17 @@ import com.axlecho.api.MHPluginManager;
 import com.getkeepsafe.relinker.ReLinker;
 import com.hippo.a7zip.A7Zip;
 import com.hippo.a7zip.A7ZipExtractLite;
-import com.hippo.beerbelly.SimpleDiskCache;
 import com.hippo.conaco.Conaco;
 import com.hippo.content.RecordingApplication;
 import com.hippo.ehviewer.client.EhClient;
 import com.hippo.ehviewer.client.EhCookieStore;
 import com.hippo.ehviewer.client.EhDns;
 import com.hippo.ehviewer.client.EhEngine;
+import com.hippo.ehviewer.client.SourceGuard;
 import com.hippo.ehviewer.client.data.GalleryDetail;
 import com.hippo.ehviewer.download.DownloadManager;
+import com.hippo.ehviewer.spider.DownloadDirRegistry;
+import com.hippo.ehviewer.spider.PrefetchLedger;
 import com.hippo.ehviewer.spider.SpiderDen;
 import com.hippo.ehviewer.ui.CommonOperations;
 import com.hippo.image.Image;
@@ -59,7 +61,10 @@ import com.hippo.unifile.UniFile;
 import com.hippo.util.BitmapUtils;
 import com.hippo.util.ExceptionUtils;
 import com.hippo.util.IoThreadPoolExecutor;
+import com.hippo.util.Metrics;
 import com.hippo.util.ReadableTime;
+import com.hippo.util.SegmentedDiskCache;
+import com.hippo.widget.LoadImageScheduler;
 import com.hippo.yorozuya.FileUtils;
 import com.hippo.yorozuya.IntIdGenerator;
 import com.hippo.yorozuya.OSUtils;
@@ -87,6 +92,8 @@ public class EhApplication extends RecordingApplication {
     private static final boolean DEBUG_CONACO = false;
     private static final boolean DEBUG_PRINT_NATIVE_MEMORY = false;
     private static final boolean DEBUG_PRINT_IMAGE_COUNT = false;
+    private static final boolean DEBUG_PRINT_DISK_CACHE = false;
+    private static final boolean DEBUG_PRINT_SOURCE_GUARD = false;
     private static final long DEBUG_PRINT_INTERVAL = 3000L;
 
     private static EhApplication instance;
@@ -99,8 +106,9 @@ public class EhApplication extends RecordingApplication {
     private OkHttpClient mOkHttpClient;
     private ImageBitmapHelper mImageBitmapHelper;
     private Conaco<ImageBitmap> mConaco;
+    private LoadImageScheduler mLoadImageScheduler;
     private LruCache<String, GalleryDetail> mGalleryDetailCache;
-    private SimpleDiskCache mSpiderInfoCache;
+    private SegmentedDiskCache mSpiderInfoCache;
     private DownloadManager mDownloadManager;
     private Hosts mHosts;
     private FavouriteStatusRouter mFavouriteStatusRouter;
@@ -135,11 +143,14 @@ public class EhApplication extends RecordingApplication {
         GetText.initialize(this);
         StatusCodeException.initialize(this);
         Settings.initialize(this);
+        Metrics.setEnabled(Settings.getPerformanceMetrics());
         ReadableTime.initialize(this);
         Html.initialize(this);
         AppConfig.initialize(this);
         SpiderDen.initialize(this);
         EhDB.initialize(this);
+        DownloadDirRegistry.initialize();
+        PrefetchLedger.initialize(this);
         EhEngine.initialize();
         BitmapUtils.initialize(this);
         Image.initialize(this);
@@ -231,6 +242,8 @@ public class EhApplication extends RecordingApplication {
             Analytics.start(this);
         }
 
+        FavoritePrefetchService.schedule(this, Settings.getPrefetchFavorites());
+
         // Do io tasks in new thread
         new AsyncTask<Void, Void, Void>() {
             @Override
@@ -271,7 +284,8 @@ public class EhApplication extends RecordingApplication {
 
         mIdGenerator.setNextId(Settings.getInt(KEY_GLOBAL_STUFF_NEXT_ID, 0));
 
-        if (DEBUG_PRINT_NATIVE_MEMORY || DEBUG_PRINT_IMAGE_COUNT) {
+        if (DEBUG_PRINT_NATIVE_MEMORY || DEBUG_PRINT_IMAGE_COUNT ||
+                DEBUG_PRINT_DISK_CACHE || DEBUG_PRINT_SOURCE_GUARD) {
             debugPrint();
         }
     }
@@ -331,6 +345,17 @@ public class EhApplication extends RecordingApplication {
                 if (DEBUG_PRINT_IMAGE_COUNT) {
                     Log.i(TAG, "Image count: " + Image.getImageCount());
                 }
+                if (DEBUG_PRINT_DISK_CACHE) {
+                    Log.i(TAG, String.valueOf(SpiderDen.getCache()));
+                    if (null != mSpiderInfoCache) {
+                        Log.i(TAG, mSpiderInfoCache.toString());
+                    }
+                }
+                if (DEBUG_PRINT_SOURCE_GUARD) {
+                    for (SourceGuard guard : SourceGuard.getAll()) {
+                        Log.i(TAG, guard.toString());
+                    }
+                }
                 SimpleHandler.getInstance().postDelayed(this, DEBUG_PRINT_INTERVAL);
             }
         }.run();
@@ -414,6 +439,15 @@ public class EhApplication extends RecordingApplication {
         return Math.min(20 * 1024 * 1024, (int) OSUtils.getAppMaxMemory());
     }
 
+    @NonNull
+    public static LoadImageScheduler getLoadImageScheduler(@NonNull Context context) {
+        EhApplication application = ((EhApplication) context.getApplicationContext());
+        if (application.mLoadImageScheduler == null) {
+            application.mLoadImageScheduler = new LoadImageScheduler(getConaco(context));
+        }
+        return application.mLoadImageScheduler;
+    }
+
     @NonNull
     public static Conaco<ImageBitmap> getConaco(@NonNull Context context) {
         EhApplication application = ((EhApplication) context.getApplicationContext());
@@ -449,10 +483,10 @@ public class EhApplication extends RecordingApplication {
     }
 
     @NonNull
-    public static SimpleDiskCache getSpiderInfoCache(@NonNull Context context) {
+    public static SegmentedDiskCache getSpiderInfoCache(@NonNull Context context) {
         EhApplication application = ((EhApplication) context.getApplicationContext());
         if (null == application.mSpiderInfoCache) {
-            application.mSpiderInfoCache = new SimpleDiskCache(
+            application.mSpiderInfoCache = new SegmentedDiskCache(
                     new File(context.getCacheDir(), "spider_info"), 5 * 1024 * 1024); // 5M
         }
         return application.mSpiderInfoCache;
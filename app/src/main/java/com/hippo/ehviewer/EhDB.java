@@ -18,13 +18,17 @@ package com.hippo.ehviewer;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.hippo.ehviewer.client.EhConfig;
 import com.hippo.ehviewer.client.data.GalleryInfo;
 import com.hippo.ehviewer.client.data.ListUrlBuilder;
 import com.hippo.ehviewer.dao.DaoMaster;
@@ -39,6 +43,8 @@ import com.hippo.ehviewer.dao.Filter;
 import com.hippo.ehviewer.dao.FilterDao;
 import com.hippo.ehviewer.dao.HistoryDao;
 import com.hippo.ehviewer.dao.HistoryInfo;
+import com.hippo.ehviewer.dao.ImportTask;
+import com.hippo.ehviewer.dao.ImportTaskDao;
 import com.hippo.ehviewer.dao.LocalFavoriteInfo;
 import com.hippo.ehviewer.dao.LocalFavoritesDao;
 import com.hippo.ehviewer.dao.QuickSearch;
@@ -46,22 +52,24 @@ import com.hippo.ehviewer.dao.QuickSearchDao;
 import com.hippo.ehviewer.dao.ReadingRecord;
 import com.hippo.ehviewer.dao.ReadingRecordDao;
 import com.hippo.ehviewer.download.DownloadManager;
+import com.hippo.ehviewer.spider.DownloadDirRegistry;
 import com.hippo.util.ExceptionUtils;
+import com.hippo.util.ReadableTime;
 import com.hippo.util.SqlUtils;
 import com.hippo.yorozuya.FileUtils;
-import com.hippo.yorozuya.IOUtils;
+import com.hippo.yorozuya.NumberUtils;
 import com.hippo.yorozuya.ObjectUtils;
 import com.hippo.yorozuya.collect.SparseJLArray;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import de.greenrobot.dao.query.LazyList;
 
@@ -70,6 +78,14 @@ public class EhDB {
     private static final String TAG = EhDB.class.getSimpleName();
 
     private static final int MAX_HISTORY_COUNT = 100;
+    // SQLite allows 999 host parameters in one statement
+    private static final int MAX_SQL_ARGS = 500;
+
+    private static final String TABLE_CHANGE_LOG = "CHANGE_LOG";
+    // Deleted rows in incremental export, see exportRecordAndFavorite()
+    private static final String TABLE_TOMBSTONE = "TOMBSTONE";
+    // Tables tracked by CHANGE_LOG for incremental export
+    private static final String[] INCREMENTAL_TABLES = {"LOCAL_FAVORITES", "RECORDS"};
 
     private static DaoSession sDaoSession;
 
@@ -85,6 +101,7 @@ public class EhDB {
         @Override
         public void onCreate(SQLiteDatabase db) {
             super.onCreate(db);
+            createChangeLog(db);
             sNewDB = true;
         }
 
@@ -126,6 +143,15 @@ public class EhDB {
                         "SELECT _id, NAME, MODE, CATEGORY, KEYWORD, ADVANCE_SEARCH, MIN_RATING, -1, -1, TIME FROM QUICK_SEARCH;");
                 db.execSQL("DROP TABLE QUICK_SEARCH");
                 db.execSQL("ALTER TABLE QUICK_SEARCH2 RENAME TO QUICK_SEARCH");
+            case 5: // 5 to 6, add IMPORT_TASK
+                ImportTaskDao.createTable(db, true);
+            case 6: // 6 to 7, add CHANGE_LOG and its triggers
+                createChangeLog(db);
+            case 7: // 7 to 8, add DELETED column to CHANGE_LOG and delete triggers
+                if (!SqlUtils.getColumnNames(db, "main", TABLE_CHANGE_LOG).contains("DELETED")) {
+                    db.execSQL("ALTER TABLE \"" + TABLE_CHANGE_LOG + "\" ADD COLUMN \"DELETED\" INTEGER NOT NULL DEFAULT 0;");
+                }
+                createChangeLog(db);
         }
     }
 
@@ -388,10 +414,30 @@ public class EhDB {
         }
     }
 
+    /**
+     * Insert or update all infos in one transaction.
+     */
+    public static synchronized void putDownloadInfo(Collection<DownloadInfo> downloadInfos) {
+        if (downloadInfos.isEmpty()) {
+            return;
+        }
+        sDaoSession.getDownloadsDao().insertOrReplaceInTx(downloadInfos);
+    }
+
     public static synchronized void removeDownloadInfo(String gid) {
         sDaoSession.getDownloadsDao().deleteByKey(gid);
     }
 
+    /**
+     * Remove all infos in one transaction.
+     */
+    public static synchronized void removeDownloadInfo(Collection<String> gids) {
+        if (gids.isEmpty()) {
+            return;
+        }
+        sDaoSession.getDownloadsDao().deleteByKeyInTx(gids);
+    }
+
     @Nullable
     public static synchronized String getDownloadDirname(String gid) {
         DownloadDirnameDao dao = sDaoSession.getDownloadDirnameDao();
@@ -420,6 +466,36 @@ public class EhDB {
         }
     }
 
+    @NonNull
+    public static synchronized Map<String, String> getAllDownloadDirnames() {
+        List<DownloadDirname> list = sDaoSession.getDownloadDirnameDao().queryBuilder().list();
+        Map<String, String> result = new HashMap<>(list.size());
+        for (DownloadDirname raw : list) {
+            result.put(raw.getGid(), raw.getDirname());
+        }
+        return result;
+    }
+
+    /**
+     * Insert, update or remove dirnames in one transaction.
+     * A null dirname removes the row.
+     */
+    public static synchronized void putDownloadDirnames(final Map<String, String> dirnames) {
+        final DownloadDirnameDao dao = sDaoSession.getDownloadDirnameDao();
+        sDaoSession.runInTx(() -> {
+            for (Map.Entry<String, String> entry : dirnames.entrySet()) {
+                if (entry.getValue() == null) {
+                    dao.deleteByKey(entry.getKey());
+                } else {
+                    DownloadDirname raw = new DownloadDirname();
+                    raw.setGid(entry.getKey());
+                    raw.setDirname(entry.getValue());
+                    dao.insertOrReplace(raw);
+                }
+            }
+        });
+    }
+
     public static synchronized void removeDownloadDirname(String gid) {
         DownloadDirnameDao dao = sDaoSession.getDownloadDirnameDao();
         dao.deleteByKey(gid);
@@ -510,6 +586,86 @@ public class EhDB {
         return result;
     }
 
+    /**
+     * Count local favorites of the source, or matching the keyword if it is not null.
+     */
+    public static synchronized int getLocalFavoritesCount(@Nullable String source, @Nullable String keyword) {
+        List<String> args = new ArrayList<>(1);
+        String where = buildLocalFavoritesWhere(source, keyword, args);
+        LocalFavoritesDao dao = sDaoSession.getLocalFavoritesDao();
+        return (int) DatabaseUtils.longForQuery(sDaoSession.getDatabase(),
+                "SELECT COUNT(*) FROM " + dao.getTablename() + " F WHERE " + where,
+                args.toArray(new String[args.size()]));
+    }
+
+    /**
+     * Get a page of local favorites of the source, or matching the keyword if it is not null,
+     * with update state from reading records in one joined query.
+     * Newly updated ones come first. {@code posted} is set to the update day,
+     * {@code category} is set to {@link EhConfig#UPDATE} if it's updated since last read.
+     */
+    public static synchronized List<GalleryInfo> getLocalFavoritesWithUpdate(
+            @Nullable String source, @Nullable String keyword, int offset, int limit) {
+        long start = SystemClock.elapsedRealtime();
+        LocalFavoritesDao dao = sDaoSession.getLocalFavoritesDao();
+        String recordId = "R." + ReadingRecordDao.Properties.Id.columnName;
+        String updateTime = "R." + ReadingRecordDao.Properties.Update_time.columnName;
+        String readTime = "R." + ReadingRecordDao.Properties.Read_time.columnName;
+
+        StringBuilder sb = new StringBuilder("SELECT ");
+        String[] columns = dao.getAllColumns();
+        for (String column : columns) {
+            sb.append("F.").append(column).append(", ");
+        }
+        // Same as no update if there is no record
+        sb.append("COALESCE(").append(updateTime).append(", 0), ")
+                .append("CASE WHEN ").append(recordId).append(" IS NOT NULL AND (")
+                .append(readTime).append(" IS NULL OR ").append(readTime).append(" < ").append(updateTime)
+                .append(") THEN 1 ELSE 0 END");
+        sb.append(" FROM ").append(dao.getTablename()).append(" F LEFT JOIN ")
+                .append(ReadingRecordDao.TABLENAME).append(" R ON ")
+                .append(recordId).append(" = F.").append(LocalFavoritesDao.Properties.Id.columnName);
+        List<String> args = new ArrayList<>(3);
+        sb.append(" WHERE ").append(buildLocalFavoritesWhere(source, keyword, args));
+        sb.append(" ORDER BY ").append(columns.length + 1).append(" DESC, F.")
+                .append(LocalFavoritesDao.Properties.Time.columnName).append(" DESC");
+        sb.append(" LIMIT ? OFFSET ?");
+        args.add(Integer.toString(limit));
+        args.add(Integer.toString(offset));
+
+        List<GalleryInfo> result = new ArrayList<>(limit);
+        Cursor cursor = sDaoSession.getDatabase().rawQuery(sb.toString(), args.toArray(new String[args.size()]));
+        try {
+            while (cursor.moveToNext()) {
+                GalleryInfo info = new GalleryInfo(dao.readEntity(cursor, 0));
+                info.posted = ReadableTime.getDay(cursor.getLong(columns.length));
+                if (cursor.getInt(columns.length + 1) != 0) {
+                    info.category = EhConfig.UPDATE;
+                }
+                result.add(info);
+            }
+        } finally {
+            cursor.close();
+        }
+        Log.d(TAG, "Get " + result.size() + " local favorites in " + (SystemClock.elapsedRealtime() - start) + "ms");
+        return result;
+    }
+
+    private static String buildLocalFavoritesWhere(@Nullable String source, @Nullable String keyword, List<String> args) {
+        if (keyword != null) {
+            args.add("%" + keyword + "%");
+            return "F." + LocalFavoritesDao.Properties.Title.columnName + " LIKE ?";
+        } else if (source != null) {
+            // Id ends with "@" + source, LIKE would match sources containing it too
+            String id = "F." + LocalFavoritesDao.Properties.Id.columnName;
+            args.add("@" + source);
+            args.add("@" + source);
+            return "substr(" + id + ", -length(?)) = ?";
+        } else {
+            return "1";
+        }
+    }
+
     public static synchronized List<GalleryInfo> searchLocalFavorites(String query) {
         query = SqlUtils.sqlEscapeString("%" + query + "%");
         LocalFavoritesDao dao = sDaoSession.getLocalFavoritesDao();
@@ -661,6 +817,168 @@ public class EhDB {
         }
     }
 
+    /**
+     * Set update time of reading records in one transaction,
+     * read time of existing records is kept.
+     *
+     * @param updateTimes the map from record id to update time
+     * @return the number of records which are actually written
+     */
+    public static synchronized int putReadingRecordUpdateTimes(Map<String, Long> updateTimes) {
+        return putReadingRecordUpdateTimes(updateTimes, true);
+    }
+
+    /**
+     * Set update time of reading records in one transaction,
+     * read time of existing records is kept. Existing records are
+     * loaded with {@code IN} queries instead of one query for each id.
+     *
+     * @param updateTimes the map from record id to update time
+     * @param createMissing false to skip ids which have no record
+     * @return the number of records which are actually written
+     */
+    public static synchronized int putReadingRecordUpdateTimes(Map<String, Long> updateTimes, boolean createMissing) {
+        if (updateTimes.isEmpty()) {
+            return 0;
+        }
+
+        ReadingRecordDao dao = sDaoSession.getReadingRecordDao();
+        Map<String, ReadingRecord> existing = new HashMap<>(updateTimes.size());
+        List<String> ids = new ArrayList<>(updateTimes.keySet());
+        for (int i = 0, n = ids.size(); i < n; i += MAX_SQL_ARGS) {
+            for (ReadingRecord record : dao.queryBuilder()
+                    .where(ReadingRecordDao.Properties.Id.in(ids.subList(i, Math.min(n, i + MAX_SQL_ARGS)))).list()) {
+                existing.put(record.getId(), record);
+            }
+        }
+
+        List<ReadingRecord> list = new ArrayList<>(updateTimes.size());
+        for (Map.Entry<String, Long> entry : updateTimes.entrySet()) {
+            ReadingRecord record = existing.get(entry.getKey());
+            if (null == record) {
+                if (!createMissing) {
+                    continue;
+                }
+                record = new ReadingRecord();
+                record.setId(entry.getKey());
+            } else if (record.getUpdate_time() == entry.getValue()) {
+                // Not changed, skip it
+                continue;
+            }
+            record.setUpdate_time(entry.getValue());
+            list.add(record);
+        }
+        if (!list.isEmpty()) {
+            dao.insertOrReplaceInTx(list);
+        }
+        return list.size();
+    }
+
+    /**
+     * Set read time of reading records of all local favorites in the source
+     * with one {@code UPDATE}. Favorites without record are not updated anyway.
+     *
+     * @return the number of records which are updated
+     */
+    public static synchronized int markLocalFavoritesRead(String source, long readTime) {
+        SQLiteDatabase db = sDaoSession.getDatabase();
+        String id = ReadingRecordDao.Properties.Id.columnName;
+        String favoriteId = LocalFavoritesDao.Properties.Id.columnName;
+        // Same exact suffix match as buildLocalFavoritesWhere()
+        String sql = "UPDATE " + ReadingRecordDao.TABLENAME +
+                " SET " + ReadingRecordDao.Properties.Read_time.columnName + " = ?" +
+                " WHERE " + id + " IN (SELECT " + favoriteId +
+                " FROM " + LocalFavoritesDao.TABLENAME + " WHERE substr(" + favoriteId + ", -length(?)) = ?)";
+        SQLiteStatement statement = db.compileStatement(sql);
+        try {
+            statement.bindLong(1, readTime);
+            statement.bindString(2, "@" + source);
+            statement.bindString(3, "@" + source);
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Insert import tasks which are not in db yet,
+     * tasks already in db keep their state. Existing tasks are
+     * found with {@code IN} queries instead of one query for each task.
+     */
+    public static synchronized void putImportTasks(List<ImportTask> tasks) {
+        if (tasks.isEmpty()) {
+            return;
+        }
+
+        ImportTaskDao dao = sDaoSession.getImportTaskDao();
+        Set<String> existing = new HashSet<>();
+        List<String> ids = new ArrayList<>(tasks.size());
+        for (ImportTask task : tasks) {
+            ids.add(task.id);
+        }
+        for (int i = 0, n = ids.size(); i < n; i += MAX_SQL_ARGS) {
+            for (ImportTask task : dao.queryBuilder()
+                    .where(ImportTaskDao.Properties.Id.in(ids.subList(i, Math.min(n, i + MAX_SQL_ARGS)))).list()) {
+                existing.add(task.id);
+            }
+        }
+
+        List<ImportTask> list = new ArrayList<>(tasks.size());
+        for (ImportTask task : tasks) {
+            // Also skip duplicates in the list
+            if (existing.add(task.id)) {
+                list.add(task);
+            }
+        }
+        if (!list.isEmpty()) {
+            dao.insertInTx(list);
+        }
+    }
+
+    /**
+     * Get all unfinished import tasks, failed tasks with retry count
+     * less than {@code maxRetry} are included.
+     */
+    public static synchronized List<ImportTask> getPendingImportTasks(int maxRetry) {
+        ImportTaskDao dao = sDaoSession.getImportTaskDao();
+        return dao.queryBuilder().whereOr(
+                ImportTaskDao.Properties.State.eq(ImportTask.STATE_NONE),
+                dao.queryBuilder().and(
+                        ImportTaskDao.Properties.State.eq(ImportTask.STATE_FAILED),
+                        ImportTaskDao.Properties.Retry.lt(maxRetry)))
+                .orderAsc(ImportTaskDao.Properties.Time).list();
+    }
+
+    public static synchronized long countImportTasks(String job, int state) {
+        return sDaoSession.getImportTaskDao().queryBuilder()
+                .where(ImportTaskDao.Properties.Job.eq(job), ImportTaskDao.Properties.State.eq(state))
+                .count();
+    }
+
+    public static synchronized long countImportTasks(String job) {
+        return sDaoSession.getImportTaskDao().queryBuilder()
+                .where(ImportTaskDao.Properties.Job.eq(job))
+                .count();
+    }
+
+    /**
+     * Save the result of import tasks and the imported favorites in one transaction.
+     */
+    public static synchronized void putImportResults(final List<ImportTask> tasks, final List<GalleryInfo> favorites) {
+        sDaoSession.runInTx(() -> {
+            LocalFavoritesDao favoritesDao = sDaoSession.getLocalFavoritesDao();
+            for (GalleryInfo gi : favorites) {
+                favoritesDao.insertOrReplace(new LocalFavoriteInfo(gi));
+            }
+            sDaoSession.getImportTaskDao().updateInTx(tasks);
+        });
+    }
+
+    public static synchronized void removeImportTasks(String job) {
+        sDaoSession.getImportTaskDao().queryBuilder()
+                .where(ImportTaskDao.Properties.Job.eq(job))
+                .buildDelete().executeDeleteWithoutDetachingEntities();
+    }
 
     public static synchronized List<Filter> getAllFilter() {
         return sDaoSession.getFilterDao().queryBuilder().list();
@@ -680,50 +998,234 @@ public class EhDB {
         sDaoSession.getFilterDao().update(filter);
     }
 
-    public static synchronized boolean exportDB(Context context, File file) {
-        File dbFile = context.getDatabasePath("eh.db");
-        if (null == dbFile || !dbFile.isFile()) {
-            return false;
+    // Since 7, DELETED and delete triggers since 8
+    private static void createChangeLog(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS \"" + TABLE_CHANGE_LOG + "\" (" +
+                "\"TBL\" TEXT NOT NULL ," +
+                "\"ID\" TEXT NOT NULL ," +
+                "\"TIME\" INTEGER NOT NULL ," +
+                "\"DELETED\" INTEGER NOT NULL DEFAULT 0 ," +
+                "PRIMARY KEY (\"TBL\", \"ID\"));");
+        db.execSQL("CREATE INDEX IF NOT EXISTS IDX_CHANGE_LOG_TIME ON \"" + TABLE_CHANGE_LOG + "\" (\"TIME\");");
+        for (String table : INCREMENTAL_TABLES) {
+            for (String op : new String[] {"INSERT", "UPDATE"}) {
+                db.execSQL("CREATE TRIGGER IF NOT EXISTS \"" + table + "_" + op + "_LOG\" " +
+                        "AFTER " + op + " ON \"" + table + "\" BEGIN " +
+                        "INSERT OR REPLACE INTO \"" + TABLE_CHANGE_LOG + "\" (TBL, ID, TIME) VALUES ('" + table + "', NEW.ID, " +
+                        "CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER)); END;");
+            }
+            // Tombstone, so incremental export carries the deletion
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS \"" + table + "_DELETE_LOG\" " +
+                    "AFTER DELETE ON \"" + table + "\" BEGIN " +
+                    "INSERT OR REPLACE INTO \"" + TABLE_CHANGE_LOG + "\" (TBL, ID, TIME, DELETED) VALUES ('" + table + "', OLD.ID, " +
+                    "CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER), 1); END;");
+        }
+    }
+
+    private static boolean supportVacuumInto(SQLiteDatabase db) {
+        // VACUUM INTO is added in SQLite 3.27.0
+        String version = DatabaseUtils.stringForQuery(db, "SELECT sqlite_version();", null);
+        String[] parts = version.split("\\.");
+        int major = NumberUtils.parseIntSafely(parts[0], 0);
+        int minor = parts.length > 1 ? NumberUtils.parseIntSafely(parts[1], 0) : 0;
+        return major > 3 || (major == 3 && minor >= 27);
+    }
+
+    @NonNull
+    private static List<String> getAllTables(SQLiteDatabase db) {
+        List<String> tables = new ArrayList<>();
+        Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type='table';", null);
+        try {
+            while (cursor.moveToNext()) {
+                String table = cursor.getString(0);
+                if (!table.startsWith("sqlite_") && !table.equals("android_metadata") &&
+                        !table.equals(TABLE_CHANGE_LOG)) {
+                    tables.add(table);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return tables;
+    }
+
+    /**
+     * Copy tables to the file in one transaction, so the copy is
+     * a consistent snapshot. The file is attached to the app's connection,
+     * so callers must hold the EhDB lock.
+     *
+     * @param since only copy rows changed after it and tombstones of rows
+     *              deleted after it, 0 for all rows
+     */
+    private static void copyTables(SQLiteDatabase db, File file, List<String> tables, long since) {
+        db.execSQL("ATTACH DATABASE ? AS backup;", new Object[] {file.getPath()});
+        try {
+            db.beginTransactionNonExclusive();
+            try {
+                for (String table : tables) {
+                    String sql = DatabaseUtils.stringForQuery(db,
+                            "SELECT sql FROM sqlite_master WHERE type='table' AND name=?;", new String[] {table});
+                    db.execSQL(sql.replaceFirst("(?i)^CREATE TABLE ", "CREATE TABLE backup."));
+                    String insert = "INSERT INTO backup.\"" + table + "\" SELECT * FROM main.\"" + table + "\"";
+                    if (since > 0) {
+                        insert += " WHERE ID IN (SELECT ID FROM \"" + TABLE_CHANGE_LOG + "\" WHERE TBL='" + table +
+                                "' AND TIME >= " + since + ")";
+                    }
+                    db.execSQL(insert + ";");
+                }
+                if (since > 0) {
+                    db.execSQL("CREATE TABLE backup.\"" + TABLE_TOMBSTONE + "\" (" +
+                            "\"TBL\" TEXT NOT NULL ," +
+                            "\"ID\" TEXT NOT NULL ," +
+                            "\"TIME\" INTEGER NOT NULL);");
+                    db.execSQL("INSERT INTO backup.\"" + TABLE_TOMBSTONE + "\" (TBL, ID, TIME) " +
+                            "SELECT TBL, ID, TIME FROM main.\"" + TABLE_CHANGE_LOG + "\" " +
+                            "WHERE DELETED = 1 AND TIME >= " + since + ";");
+                }
+                db.execSQL("PRAGMA backup.user_version = " + db.getVersion() + ";");
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            db.execSQL("DETACH DATABASE backup;");
         }
+    }
+
+    /**
+     * Export a snapshot of the whole database. It's copied by SQLite instead of
+     * copying the db file, so it's consistent even if a write is in progress.
+     * Other db calls wait until it's done.
+     */
+    public static synchronized boolean exportDB(Context context, File file) {
         if (null == file || !FileUtils.ensureFile(file)) {
             return false;
         }
-        InputStream is = null;
-        OutputStream os = null;
+        SQLiteDatabase db = sDaoSession.getDatabase();
+        long time = System.currentTimeMillis();
+        long start = SystemClock.elapsedRealtime();
         try {
-            is = new FileInputStream(dbFile);
-            os = new FileOutputStream(file);
-            IOUtils.copy(is, os);
+            if (supportVacuumInto(db)) {
+                db.execSQL("VACUUM INTO ?;", new Object[] {file.getPath()});
+            } else {
+                copyTables(db, file, getAllTables(db), 0);
+            }
+            Settings.putLastExportTime(time);
+            Log.d(TAG, "Export db in " + (SystemClock.elapsedRealtime() - start) + "ms");
             return true;
-        } catch (IOException e) {
+        } catch (Throwable e) {
+            ExceptionUtils.throwIfFatal(e);
             e.printStackTrace();
-        } finally {
-            IOUtils.closeQuietly(is);
-            IOUtils.closeQuietly(os);
         }
         // Delete failed file
         file.delete();
         return false;
     }
 
-    public static synchronized String importDBRecordAndFavorite(Context context, File file) {
+    /**
+     * Export local favorites and reading records which are changed or deleted
+     * since the last export. The file could be imported by
+     * {@link #importDBRecordAndFavorite(Context, File)}.
+     */
+    public static synchronized boolean exportRecordAndFavorite(Context context, File file) {
+        if (null == file || !FileUtils.ensureFile(file)) {
+            return false;
+        }
+        SQLiteDatabase db = sDaoSession.getDatabase();
+        long since = Settings.getLastExportTime();
+        long time = System.currentTimeMillis();
+        long start = SystemClock.elapsedRealtime();
         try {
-            SQLiteDatabase db = SQLiteDatabase.openDatabase(file.getPath(), null, SQLiteDatabase.NO_LOCALIZED_COLLATORS);
-            DaoMaster daoMaster = new DaoMaster(db);
-            DaoSession session = daoMaster.newSession();
+            copyTables(db, file, Arrays.asList(INCREMENTAL_TABLES), since);
+        } catch (Throwable e) {
+            ExceptionUtils.throwIfFatal(e);
+            e.printStackTrace();
+            // Delete failed file
+            file.delete();
+            return false;
+        }
+        Settings.putLastExportTime(time);
+        Log.d(TAG, "Export changes since " + since + " in " + (SystemClock.elapsedRealtime() - start) + "ms");
 
+        // The copy is done, changes before the last export are no longer needed
+        try {
+            db.delete(TABLE_CHANGE_LOG, "TIME < ?", new String[] {Long.toString(since)});
+        } catch (Throwable e) {
+            ExceptionUtils.throwIfFatal(e);
+            // Ignore, they are pruned next time
+            e.printStackTrace();
+        }
+        return true;
+    }
 
-            // LocalFavorites
-            List<LocalFavoriteInfo> localFavoriteInfoList = session.getLocalFavoritesDao().queryBuilder().list();
-            for (LocalFavoriteInfo info : localFavoriteInfoList) {
-                putLocalFavorites(info);
+    /**
+     * Insert or replace all rows of the table in attached database {@code imported}.
+     * Only columns in both tables are copied, the file might come from an old version.
+     */
+    private static void mergeTable(SQLiteDatabase db, String table) {
+        List<String> columns = SqlUtils.getColumnNames(db, "main", table);
+        columns.retainAll(SqlUtils.getColumnNames(db, "imported", table));
+        if (columns.isEmpty()) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String column : columns) {
+            if (sb.length() != 0) {
+                sb.append(", ");
             }
+            sb.append('"').append(column).append('"');
+        }
+        String list = sb.toString();
+        db.execSQL("INSERT OR REPLACE INTO main.\"" + table + "\" (" + list + ") SELECT " + list +
+                " FROM imported.\"" + table + "\";");
+    }
 
-            List<ReadingRecord> readingRecordList = session.getReadingRecordDao().queryBuilder().list();
-            for (ReadingRecord record : readingRecordList) {
-                putReadingRecord(record);
+    /**
+     * Delete rows of the table which have tombstones in attached database {@code imported},
+     * unless they are changed here after the deletion.
+     */
+    private static void applyTombstones(SQLiteDatabase db, String table) {
+        db.execSQL("DELETE FROM main.\"" + table + "\" WHERE ID IN (" +
+                "SELECT t.ID FROM imported.\"" + TABLE_TOMBSTONE + "\" t WHERE t.TBL = ? AND NOT EXISTS (" +
+                "SELECT 1 FROM main.\"" + TABLE_CHANGE_LOG + "\" c WHERE c.TBL = t.TBL AND c.ID = t.ID AND c.TIME > t.TIME));",
+                new Object[] {table});
+    }
+
+    /**
+     * Merge local favorites and reading records from the file. Rows are
+     * copied inside SQLite in one transaction, nothing is loaded into memory.
+     * Rows deleted in an incremental export are deleted too.
+     */
+    private static void mergeRecordAndFavorite(File file) {
+        SQLiteDatabase db = sDaoSession.getDatabase();
+        long start = SystemClock.elapsedRealtime();
+        db.execSQL("ATTACH DATABASE ? AS imported;", new Object[] {file.getPath()});
+        try {
+            // Only incremental export has tombstones
+            boolean hasTombstones = !SqlUtils.getColumnNames(db, "imported", TABLE_TOMBSTONE).isEmpty();
+            db.beginTransaction();
+            try {
+                for (String table : INCREMENTAL_TABLES) {
+                    if (hasTombstones) {
+                        applyTombstones(db, table);
+                    }
+                    mergeTable(db, table);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
             }
+        } finally {
+            db.execSQL("DETACH DATABASE imported;");
+        }
+        // Rows are changed behind dao, drop cached entities
+        sDaoSession.clear();
+        Log.d(TAG, "Import records and favorites in " + (SystemClock.elapsedRealtime() - start) + "ms");
+    }
 
+    public static synchronized String importDBRecordAndFavorite(Context context, File file) {
+        try {
+            mergeRecordAndFavorite(file);
             return null;
         } catch (Throwable e) {
             ExceptionUtils.throwIfFatal(e);
@@ -763,9 +1265,12 @@ public class EhDB {
 
             // Download dirname
             List<DownloadDirname> downloadDirnameList = session.getDownloadDirnameDao().queryBuilder().list();
+            Map<String, String> dirnames = new HashMap<>(downloadDirnameList.size());
             for (DownloadDirname dirname : downloadDirnameList) {
-                putDownloadDirname(dirname.getGid(), dirname.getDirname());
+                dirnames.put(dirname.getGid(), dirname.getDirname());
             }
+            putDownloadDirnames(dirnames);
+            DownloadDirRegistry.reload();
 
             // History
             List<HistoryInfo> historyInfoList = session.getHistoryDao().queryBuilder().list();
@@ -789,19 +1294,11 @@ public class EhDB {
                 insertQuickSearch(quickSearch);
             }
 
-            // LocalFavorites
-            List<LocalFavoriteInfo> localFavoriteInfoList = session.getLocalFavoritesDao().queryBuilder().list();
-            for (LocalFavoriteInfo info : localFavoriteInfoList) {
-                putLocalFavorites(info);
-            }
-
             // Bookmarks
             // TODO
 
-            List<ReadingRecord> readingRecordList = session.getReadingRecordDao().queryBuilder().list();
-            for (ReadingRecord record : readingRecordList) {
-                putReadingRecord(record);
-            }
+            // LocalFavorites and ReadingRecord
+            mergeRecordAndFavorite(file);
 
             // Filter
             List<Filter> filterList = session.getFilterDao().queryBuilder().list();
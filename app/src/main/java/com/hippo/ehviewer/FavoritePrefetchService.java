@@ -0,0 +1,320 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.annotation.Nullable;
+import com.google.gson.Gson;
+import com.hippo.ehviewer.client.EhConfig;
+import com.hippo.ehviewer.client.EhEngine;
+import com.hippo.ehviewer.client.data.GalleryChapter;
+import com.hippo.ehviewer.client.data.GalleryChapterGroup;
+import com.hippo.ehviewer.client.data.GalleryDetail;
+import com.hippo.ehviewer.client.data.GalleryInfo;
+import com.hippo.ehviewer.dao.ReadingRecord;
+import com.hippo.ehviewer.spider.PrefetchLedger;
+import com.hippo.ehviewer.spider.SpiderQueen;
+import com.hippo.image.Image;
+import com.hippo.util.IoThreadPoolExecutor;
+import com.hippo.yorozuya.SimpleHandler;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads new chapters of updated local favorites into read cache in background,
+ * only while the device is idle, charging and on an unmetered network.
+ * <p>
+ * Details are put in gallery detail cache, page lists and the first pages
+ * of new chapters are fetched by {@link SpiderQueen}s in read mode. Prefetched
+ * chapters are recorded in {@link PrefetchLedger}, which keeps them in a quota.
+ */
+public class FavoritePrefetchService extends JobService {
+
+    private static final String TAG = FavoritePrefetchService.class.getSimpleName();
+
+    private static final int JOB_ID = 0x5046;
+    private static final long PERIOD = TimeUnit.HOURS.toMillis(6);
+
+    // Updated favorites checked in one run
+    private static final int MAX_GALLERIES = 20;
+    // New chapters of a gallery to prefetch
+    private static final int MAX_CHAPTERS = 2;
+    // First pages of a chapter to prefetch
+    private static final int PREFETCH_PAGES = 3;
+    // Bytes to reserve for a chapter before the page size is known
+    private static final long CHAPTER_BYTES = PREFETCH_PAGES * 500 * 1024L;
+    // Give up a chapter if it takes longer
+    private static final long CHAPTER_TIMEOUT = TimeUnit.MINUTES.toMillis(1);
+
+    @Nullable
+    private JobParameters mParams;
+    private final Queue<GalleryInfo> mChapters = new LinkedList<>();
+    @Nullable
+    private ChapterTask mTask;
+
+    /**
+     * Schedule the job if it's enabled, or cancel it.
+     */
+    public static void schedule(Context context, boolean enabled) {
+        JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (scheduler == null) {
+            return;
+        }
+        if (!enabled) {
+            scheduler.cancel(JOB_ID);
+            return;
+        }
+        JobInfo job = new JobInfo.Builder(JOB_ID, new ComponentName(context, FavoritePrefetchService.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED)
+                .setRequiresCharging(true)
+                .setRequiresDeviceIdle(true)
+                .setPeriodic(PERIOD)
+                .build();
+        scheduler.schedule(job);
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        if (!Settings.getPrefetchFavorites()) {
+            return false;
+        }
+
+        mParams = params;
+        IoThreadPoolExecutor.getInstance().execute(() -> {
+            List<GalleryInfo> chapters = findNewChapters();
+            SimpleHandler.getInstance().post(() -> {
+                if (mParams == params) {
+                    mChapters.addAll(chapters);
+                    Log.d(TAG, "Prefetch " + chapters.size() + " chapters");
+                    next();
+                }
+            });
+        });
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // Constraints are not met any more, continue next time
+        mParams = null;
+        mChapters.clear();
+        if (mTask != null) {
+            mTask.finish();
+            mTask = null;
+        }
+        return true;
+    }
+
+    /**
+     * Fetch details of updated favorites, returns chapters which are not
+     * in their reading records.
+     */
+    private List<GalleryInfo> findNewChapters() {
+        List<GalleryInfo> result = new ArrayList<>();
+        List<GalleryInfo> favorites = EhDB.getLocalFavoritesWithUpdate(null, null, 0, MAX_GALLERIES);
+        Gson gson = new Gson();
+        for (GalleryInfo info : favorites) {
+            if (info.category != EhConfig.UPDATE) {
+                // Updated ones come first
+                break;
+            }
+
+            // Without chapters read before, new chapters are unknown
+            ReadingRecord record = EhDB.getReadingRecord(info.getId());
+            if (record == null || record.getChapter_info() == null) {
+                continue;
+            }
+            Set<String> known = new HashSet<>();
+            try {
+                GalleryChapterGroup[] groups = gson.fromJson(record.getChapter_info(), GalleryChapterGroup[].class);
+                for (GalleryChapterGroup group : groups) {
+                    for (GalleryChapter chapter : group.getChapterList()) {
+                        known.add(chapter.getTitle());
+                    }
+                }
+            } catch (RuntimeException e) {
+                continue;
+            }
+
+            GalleryDetail detail;
+            try {
+                detail = EhEngine.getGalleryDetail(info.gid, info.source);
+            } catch (Throwable e) {
+                Log.w(TAG, "Can't get detail of " + info.getId(), e);
+                continue;
+            }
+            // Open the detail at once
+            SimpleHandler.getInstance().post(() ->
+                    EhApplication.getGalleryDetailCache(this).put(detail.gid, detail));
+            if (detail.chapters == null) {
+                continue;
+            }
+
+            int count = 0;
+            for (GalleryChapterGroup group : detail.chapters) {
+                for (GalleryChapter chapter : group.getChapterList()) {
+                    if (count < MAX_CHAPTERS && !known.contains(chapter.getTitle())) {
+                        GalleryInfo chapterInfo = new GalleryInfo();
+                        chapterInfo.gid = detail.gid;
+                        chapterInfo.token = detail.token;
+                        chapterInfo.title = detail.title;
+                        chapterInfo.source = detail.source;
+                        chapterInfo.cid = chapter.getUrl();
+                        if (!PrefetchLedger.contains(chapterInfo.getCid())) {
+                            result.add(chapterInfo);
+                            count++;
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private void next() {
+        mTask = null;
+        JobParameters params = mParams;
+        if (params == null) {
+            return;
+        }
+
+        GalleryInfo chapter = mChapters.poll();
+        if (chapter == null || !PrefetchLedger.ensureQuota(CHAPTER_BYTES)) {
+            mParams = null;
+            mChapters.clear();
+            jobFinished(params, false);
+            return;
+        }
+
+        mTask = new ChapterTask(chapter);
+        mTask.start();
+    }
+
+    /**
+     * Fetch the page list and the first pages of a chapter.
+     */
+    private class ChapterTask implements SpiderQueen.OnSpiderListener, Runnable {
+
+        private final GalleryInfo mInfo;
+        @Nullable
+        private SpiderQueen mQueen;
+        private long mStartTime;
+
+        // Written on worker threads, read on UI thread
+        private volatile int mExpected = PREFETCH_PAGES;
+        private volatile int mDone;
+        private volatile long mBytes;
+        private volatile long mColdMillis = -1;
+
+        ChapterTask(GalleryInfo info) {
+            mInfo = info;
+        }
+
+        void start() {
+            mStartTime = SystemClock.elapsedRealtime();
+            mQueen = SpiderQueen.obtainSpiderQueen(FavoritePrefetchService.this, mInfo, SpiderQueen.MODE_READ);
+            mQueen.addOnSpiderListener(this);
+            mQueen.preload(0, PREFETCH_PAGES);
+            SimpleHandler.getInstance().postDelayed(this, CHAPTER_TIMEOUT);
+        }
+
+        void finish() {
+            SimpleHandler.getInstance().removeCallbacks(this);
+            if (mQueen != null) {
+                mQueen.removeOnSpiderListener(this);
+                SpiderQueen.releaseSpiderQueen(mQueen, SpiderQueen.MODE_READ);
+                mQueen = null;
+            }
+            if (mColdMillis >= 0) {
+                PrefetchLedger.put(mInfo.getCid(), mBytes, mColdMillis);
+            }
+            Log.d(TAG, "Prefetched " + mDone + " pages of " + mInfo.getCid() + ", "
+                    + mBytes + " bytes, first page in " + mColdMillis + "ms");
+        }
+
+        // Timeout or done
+        @Override
+        public void run() {
+            if (mTask == this) {
+                finish();
+                next();
+            }
+        }
+
+        private void onPageDone() {
+            if (++mDone >= mExpected) {
+                SimpleHandler.getInstance().post(this);
+            }
+        }
+
+        @Override
+        public void onGetPages(int pages) {
+            mExpected = Math.min(pages, PREFETCH_PAGES);
+            if (mExpected <= 0) {
+                SimpleHandler.getInstance().post(this);
+            }
+        }
+
+        @Override
+        public void onGet509(int index) {
+        }
+
+        @Override
+        public synchronized void onPageDownload(int index, long contentLength, long receivedSize, int bytesRead) {
+            mBytes += bytesRead;
+        }
+
+        @Override
+        public synchronized void onPageSuccess(int index, int finished, int downloaded, int total) {
+            if (mColdMillis < 0) {
+                mColdMillis = SystemClock.elapsedRealtime() - mStartTime;
+            }
+            onPageDone();
+        }
+
+        @Override
+        public synchronized void onPageFailure(int index, String error, int finished, int downloaded, int total) {
+            onPageDone();
+        }
+
+        @Override
+        public void onFinish(int finished, int downloaded, int total) {
+            // Stopped, like no page list
+            SimpleHandler.getInstance().post(this);
+        }
+
+        @Override
+        public void onGetImageSuccess(int index, Image image) {
+        }
+
+        @Override
+        public void onGetImageFailure(int index, String error) {
+        }
+    }
+}
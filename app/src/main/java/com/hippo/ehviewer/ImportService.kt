@@ -5,13 +5,18 @@ import android.app.Service
 import android.content.Context
 import android.content.Intent
 import android.os.IBinder
+import android.os.SystemClock
+import android.text.format.DateUtils
 import android.util.Log
 import androidx.core.app.NotificationCompat
 import com.axlecho.api.MHApi
-import com.axlecho.api.MHApiSource
 import com.axlecho.api.MHComicInfo
 import com.hippo.ehviewer.client.data.GalleryInfo
+import com.hippo.ehviewer.dao.ImportTask
+import com.hippo.util.TokenBucket
+import io.reactivex.Completable
 import io.reactivex.Observable
+import io.reactivex.Single
 import io.reactivex.android.schedulers.AndroidSchedulers
 import io.reactivex.disposables.Disposable
 import io.reactivex.schedulers.Schedulers
@@ -22,15 +27,33 @@ class ImportService : Service() {
     companion object {
         private val TAG = "import"
         val ACTION_START = "start"
+        val ACTION_RESUME = "resume"
         val KEY_SOURCE = "source"
         val KEY_TARGET = "target"
         val KEY_LOCAL = "local"
+
+        // Parallel switchSource() calls for one target source
+        private const val MAX_CONCURRENCY_PER_TARGET = 3
+        private const val BUCKET_CAPACITY = 3
+        private const val PERMITS_PER_SECOND = 1.0
+        // A failed task is retried on the next resume until it fails MAX_RETRY times
+        private const val MAX_RETRY = 3
+        private const val BATCH_SIZE = 20
+        private const val BATCH_TIMESPAN = 2L
+
+        fun getJob(source: String, target: String): String {
+            return "$source>$target"
+        }
     }
 
+    private class Progress(val job: String) {
+        val startTime = SystemClock.elapsedRealtime()
+        var processed = 0
+    }
+
+    private class Counts(val total: Int, val success: Int, val failed: Int)
+
     private var mNotifyManager: NotificationManager? = null
-    private var result = arrayListOf<MHComicInfo>()
-    private var success = 0
-    private var failed = 0
     private var collectionHandle: Disposable = object : Disposable {
         override fun dispose() {}
 
@@ -57,99 +80,192 @@ class ImportService : Service() {
         mNotifyManager = getSystemService(Context.NOTIFICATION_SERVICE) as NotificationManager
     }
 
-    override fun onStartCommand(intent: Intent, flags: Int, startId: Int): Int {
+    override fun onDestroy() {
+        super.onDestroy()
+        collectionHandle.dispose()
+        importHandle.dispose()
+    }
+
+    override fun onStartCommand(intent: Intent?, flags: Int, startId: Int): Int {
         handleIntent(intent)
         return Service.START_STICKY
     }
 
     private fun handleIntent(intent: Intent?) {
-        if (intent == null) {
-            return
-        }
-
         if (!collectionHandle.isDisposed || !importHandle.isDisposed) {
             return
         }
 
-        val action = intent.action
+        // A sticky restart after the service is killed comes with a null intent
+        val action = intent?.action ?: ACTION_RESUME
         if (ACTION_START == action) {
-            val source = intent.getStringExtra(KEY_SOURCE)
+            val source = intent!!.getStringExtra(KEY_SOURCE)
             val target = intent.getStringExtra(KEY_TARGET)
             val isLocal = intent.getBooleanExtra(KEY_LOCAL, false)
-            result.clear()
             if (isLocal) {
                 startImportLocal(source, target)
             } else {
                 startImport(source, target)
             }
+        } else if (ACTION_RESUME == action) {
+            switch()
         }
     }
 
     private fun startImport(source: String, target: String) {
         val uid = "axlecho"
-        MHApi.INSTANCE.get(source)
+        val job = getJob(source, target)
         collectionHandle = MHApi.INSTANCE.getAllCollection(uid)
                 .subscribeOn(Schedulers.io())
+                .doOnNext { result -> EhDB.putImportTasks(result.datas.map { buildTask(it, job, target) }) }
                 .observeOn(AndroidSchedulers.mainThread())
-                .doOnError { t -> Log.d(TAG, t.message) }
-                .doOnComplete { switch(target) }
-                .subscribe {
+                .subscribe({
                     sendNotification("===> " + it.currentPage, "Getting collections", it.pages, it.currentPage)
-                    result.addAll(it.datas)
-                }
+                }, { onImportError(it) }, { switch() })
     }
 
     private fun startImportLocal(source: String, target: String) {
-        val ret = EhDB.getLocalFavorites(source)
-        for (r in ret) {
-            result.add(MHComicInfo(r.gid, r.title, "", "", -1, "", "", 0.0f, false, source))
+        val job = getJob(source, target)
+        collectionHandle = Completable.fromAction {
+            val ret = EhDB.getLocalFavorites(source)
+            EhDB.putImportTasks(ret.map {
+                buildTask(MHComicInfo(it.gid, it.title, "", "", -1, "", "", 0.0f, false, source), job, target)
+            })
         }
-        switch(target)
+                .subscribeOn(Schedulers.io())
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe({ switch() }, { onImportError(it) })
+    }
+
+    private fun buildTask(info: MHComicInfo, job: String, target: String): ImportTask {
+        val task = ImportTask()
+        task.id = "${info.gid}@${info.source}>$target"
+        task.job = job
+        task.gid = info.gid
+        task.title = info.title
+        task.thumb = info.thumb
+        task.source = info.source
+        task.target = target
+        task.state = ImportTask.STATE_NONE
+        task.retry = 0
+        task.time = System.currentTimeMillis()
+        return task
     }
 
-    private fun switch(target: String) {
-        MHApi.INSTANCE.get(target)
-        if (result.isEmpty()) {
+    private fun switch() {
+        importHandle = Single.fromCallable { EhDB.getPendingImportTasks(MAX_RETRY) }
+                .subscribeOn(Schedulers.io())
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe({ switchTasks(it) }, { onImportError(it) })
+    }
+
+    private fun switchTasks(tasks: List<ImportTask>) {
+        if (tasks.isEmpty()) {
             return
         }
 
-        var current = 0
-        val error = MHComicInfo("-1", "", "", "", -1, "", "", 0.0f, false, MHApiSource.UnKnown)
-
-        importHandle = Observable.fromIterable(result)
-                .concatMap { item ->
-                    Observable.interval((3000..5000).random().toLong(), TimeUnit.MILLISECONDS)
-                            .take(1)
-                            .map { item }
-                            .flatMap {
-                                MHApi.INSTANCE.switchSource(it, target)
-                                        .subscribeOn(Schedulers.io())
-                                        .observeOn(AndroidSchedulers.mainThread())
-                                        .doOnError {
-                                            sendNotification("failed", item.title, result.size, current)
-                                        }
-                                        .onErrorResumeNext(Observable.just(error))
-                            }
+        val progress = tasks.map { it.job }.distinct().associateWith { Progress(it) }
+        importHandle = Observable.fromIterable(tasks.groupBy { it.target }.entries)
+                .flatMap { switchTarget(it.key, it.value) }
+                .buffer(BATCH_TIMESPAN, TimeUnit.SECONDS, BATCH_SIZE)
+                .filter { it.isNotEmpty() }
+                .observeOn(Schedulers.io())
+                .map { batch ->
+                    saveBatch(batch)
+                    Pair(batch, countTasks(batch.last().first.job))
                 }
-                .subscribeOn(Schedulers.io())
                 .observeOn(AndroidSchedulers.mainThread())
-                .doOnError { e -> Log.d(TAG, e.message) }
-                .doOnComplete { sendNotification("success $success,failed $failed", "Done") }
-                .subscribe {
-                    if (it.gid != "-1") {
-                        save(it)
-                        success++
-                        sendNotification("success", it.title, result.size, current)
-                    } else {
-                        failed++
+                .subscribe({ (batch, counts) ->
+                    for (pair in batch) {
+                        progress[pair.first.job]?.let { it.processed++ }
+                    }
+                    notifyProgress(progress.getValue(batch.last().first.job), batch.last().first, counts)
+                }, { onImportError(it) }, { finishJobs(progress.keys) })
+    }
 
+    private fun finishJobs(jobs: Collection<String>) {
+        importHandle = Observable.fromIterable(jobs)
+                .map { job ->
+                    val counts = countTasks(job)
+                    if (counts.failed == 0) {
+                        // All done, the job is no longer needed
+                        EhDB.removeImportTasks(job)
                     }
-                    current++
+                    counts
                 }
+                .subscribeOn(Schedulers.io())
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe({
+                    sendNotification("success ${it.success},failed ${it.failed}", "Done")
+                }, { onImportError(it) })
+    }
+
+    private fun countTasks(job: String): Counts {
+        return Counts(EhDB.countImportTasks(job).toInt(),
+                EhDB.countImportTasks(job, ImportTask.STATE_FINISH).toInt(),
+                EhDB.countImportTasks(job, ImportTask.STATE_FAILED).toInt())
+    }
+
+    private fun onImportError(e: Throwable) {
+        // Unfinished tasks are kept, they are retried on the next resume
+        Log.e(TAG, "Import failed", e)
+        sendNotification(e.message ?: e.javaClass.simpleName, "Import failed")
     }
 
-    private fun save(info: MHComicInfo) {
-        EhDB.putLocalFavorites(GalleryInfo(info))
+    private fun switchTarget(target: String, tasks: List<ImportTask>): Observable<Pair<ImportTask, MHComicInfo?>> {
+        val bucket = TokenBucket(BUCKET_CAPACITY, PERMITS_PER_SECOND)
+
+        return Observable.fromIterable(tasks)
+                .flatMap({ task ->
+                    Observable.fromCallable { acquire(bucket) }
+                            .filter { it }
+                            .flatMap {
+                                val info = MHComicInfo(task.gid, task.title, "", task.thumb ?: "", -1, "", "", 0.0f, false, task.source)
+                                MHApi.INSTANCE.switchSource(info, target)
+                                        .take(1)
+                                        .map { Pair<ImportTask, MHComicInfo?>(task, it) }
+                                        .onErrorReturn { Pair<ImportTask, MHComicInfo?>(task, null) }
+                            }
+                            .subscribeOn(Schedulers.io())
+                }, MAX_CONCURRENCY_PER_TARGET)
+    }
+
+    private fun acquire(bucket: TokenBucket): Boolean {
+        return try {
+            bucket.acquire()
+            true
+        } catch (e: InterruptedException) {
+            false
+        }
+    }
+
+    private fun saveBatch(batch: List<Pair<ImportTask, MHComicInfo?>>) {
+        val tasks = ArrayList<ImportTask>(batch.size)
+        val favorites = ArrayList<GalleryInfo>(batch.size)
+        for ((task, info) in batch) {
+            if (info != null) {
+                task.state = ImportTask.STATE_FINISH
+                favorites.add(GalleryInfo(info))
+            } else {
+                task.state = ImportTask.STATE_FAILED
+                task.retry++
+            }
+            tasks.add(task)
+        }
+        EhDB.putImportResults(tasks, favorites)
+    }
+
+    private fun notifyProgress(progress: Progress, last: ImportTask, counts: Counts) {
+        val total = counts.total
+        val success = counts.success
+        val failed = counts.failed
+        val current = success + failed
+
+        val elapsed = SystemClock.elapsedRealtime() - progress.startTime
+        val eta = if (progress.processed > 0) elapsed * (total - current) / progress.processed else 0L
+        val message = "success $success,failed $failed,ETA ${DateUtils.formatElapsedTime(eta / 1000)}"
+        val title = if (last.state == ImportTask.STATE_FINISH) last.title else "failed ${last.title}"
+        sendNotification(message, title ?: "", total, current)
     }
 
     private fun sendNotification(message: String, title: String, total: Int = 100, current: Int = 100) {
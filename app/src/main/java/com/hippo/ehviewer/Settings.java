@@ -632,6 +632,20 @@ public class Settings {
         return getBoolean(KEY_MEDIA_SCAN, DEFAULT_MEDIA_SCAN);
     }
 
+    private static final String KEY_DOWNLOAD_PACK = "download_pack";
+    private static final boolean DEFAULT_DOWNLOAD_PACK = false;
+
+    public static boolean getDownloadPack() {
+        return getBoolean(KEY_DOWNLOAD_PACK, DEFAULT_DOWNLOAD_PACK);
+    }
+
+    public static final String KEY_PREFETCH_FAVORITES = "prefetch_favorites";
+    private static final boolean DEFAULT_PREFETCH_FAVORITES = false;
+
+    public static boolean getPrefetchFavorites() {
+        return getBoolean(KEY_PREFETCH_FAVORITES, DEFAULT_PREFETCH_FAVORITES);
+    }
+
     private static final String KEY_RECENT_DOWNLOAD_LABEL = "recent_download_label";
     private static final String DEFAULT_RECENT_DOWNLOAD_LABEL = null;
 
@@ -985,6 +999,13 @@ public class Settings {
         return getBoolean(KEY_SAVE_CRASH_LOG, DEFAULT_SAVE_CRASH_LOG);
     }
 
+    public static final String KEY_PERFORMANCE_METRICS = "performance_metrics";
+    private static final boolean DEFAULT_PERFORMANCE_METRICS = false;
+
+    public static boolean getPerformanceMetrics() {
+        return getBoolean(KEY_PERFORMANCE_METRICS, DEFAULT_PERFORMANCE_METRICS);
+    }
+
     public static final String KEY_SECURITY = "security";
     public static final String DEFAULT_SECURITY = "";
 
@@ -1006,6 +1027,17 @@ public class Settings {
         putBoolean(KEY_ENABLE_FINGERPRINT, value);
     }
 
+    private static final String KEY_LAST_EXPORT_TIME = "last_export_time";
+    private static final long DEFAULT_LAST_EXPORT_TIME = 0L;
+
+    public static long getLastExportTime() {
+        return getLong(KEY_LAST_EXPORT_TIME, DEFAULT_LAST_EXPORT_TIME);
+    }
+
+    public static void putLastExportTime(long value) {
+        putLong(KEY_LAST_EXPORT_TIME, value);
+    }
+
     public static final String KEY_READ_CACHE_SIZE = "read_cache_size";
     public static final int DEFAULT_READ_CACHE_SIZE = 160;
 
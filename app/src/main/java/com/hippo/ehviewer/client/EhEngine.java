@@ -23,6 +23,7 @@ import android.util.Pair;
 import androidx.annotation.Nullable;
 
 import com.axlecho.api.MHApi;
+import com.axlecho.api.MHApiSource;
 import com.axlecho.api.MHComicChapter;
 import com.axlecho.api.MHComicDetail;
 import com.axlecho.api.MHComicInfo;
@@ -41,6 +42,7 @@ import com.hippo.ehviewer.client.data.PreviewSet;
 import com.hippo.ehviewer.client.exception.CancelledException;
 import com.hippo.ehviewer.client.exception.EhException;
 import com.hippo.ehviewer.client.exception.ParseException;
+import com.hippo.ehviewer.client.exception.SourceUnavailableException;
 import com.hippo.ehviewer.client.parser.FavoritesParser;
 import com.hippo.ehviewer.client.parser.ForumsParser;
 import com.hippo.ehviewer.client.parser.GalleryApiParser;
@@ -175,12 +177,14 @@ public class EhEngine {
         }
     }
 
-    public static GalleryListParser.Result getGalleryList(String type, int page, String source) {
+    public static GalleryListParser.Result getGalleryList(String type, int page, String source) throws SourceUnavailableException {
         MHMutiItemResult<MHComicInfo> comics;
         if (type.equals("top")) {
-            comics = MHApi.Companion.getINSTANCE().get(source).category().top(page).blockingFirst();
+            comics = SourceGuard.get(source).call(() ->
+                    MHApi.Companion.getINSTANCE().get(source).category().top(page).blockingFirst());
         } else {
-            comics = MHApi.Companion.getINSTANCE().get(source).recent(page).blockingFirst();
+            comics = SourceGuard.get(source).call(() ->
+                    MHApi.Companion.getINSTANCE().get(source).recent(page).blockingFirst());
         }
 
         GalleryListParser.Result result = new GalleryListParser.Result();
@@ -195,10 +199,11 @@ public class EhEngine {
         return result;
     }
 
-    public static GalleryListParser.Result search(String keyword, int page, String source) {
+    public static GalleryListParser.Result search(String keyword, int page, String source) throws SourceUnavailableException {
         GalleryListParser.Result result = new GalleryListParser.Result();
 
-        MHMutiItemResult<MHComicInfo> comics = MHApi.Companion.getINSTANCE().get(source).search(keyword, page).blockingFirst();
+        MHMutiItemResult<MHComicInfo> comics = SourceGuard.get(source).call(() ->
+                MHApi.Companion.getINSTANCE().get(source).search(keyword, page).blockingFirst());
         result.pages = comics.getPages();
         result.nextPage = comics.getCurrentPage() + 1;
         result.noWatchedTags = false;
@@ -211,8 +216,9 @@ public class EhEngine {
     }
 
 
-    public static GalleryDetail getGalleryDetail(String gid, String source) {
-        MHComicDetail info = MHApi.Companion.getINSTANCE().get(source).info(gid).blockingFirst();
+    public static GalleryDetail getGalleryDetail(String gid, String source) throws SourceUnavailableException {
+        MHComicDetail info = SourceGuard.get(source).call(() ->
+                MHApi.Companion.getINSTANCE().get(source).info(gid).blockingFirst());
         GalleryDetail detail = new GalleryDetail(info);
 
         List<GalleryChapterGroup> list = new ArrayList<>();
@@ -341,7 +347,8 @@ public class EhEngine {
 
     public static FavoritesParser.Result getFavorites(int page) throws Throwable {
 
-        MHMutiItemResult<MHComicInfo> comics = BangumiApi.Companion.getINSTANCE().collection("axlecho", page).blockingFirst();
+        MHMutiItemResult<MHComicInfo> comics = SourceGuard.get(MHApiSource.Bangumi).call(() ->
+                BangumiApi.Companion.getINSTANCE().collection("axlecho", page).blockingFirst());
         FavoritesParser.Result result = new FavoritesParser.Result();
         result.pages = comics.getPages();
         result.nextPage = comics.getCurrentPage() + 1;
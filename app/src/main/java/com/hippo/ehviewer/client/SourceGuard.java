@@ -0,0 +1,291 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.client;
+
+import android.util.Log;
+import androidx.annotation.NonNull;
+import com.hippo.ehviewer.client.exception.SourceUnavailableException;
+import com.hippo.util.Clock;
+import com.hippo.util.TokenBucket;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import retrofit2.HttpException;
+
+/**
+ * Keeps calls to a {@link com.axlecho.api.MHApiSource} from hammering it while it is down.
+ * <p>
+ * Transient failures are retried with exponential backoff and full jitter.
+ * Retries of all sources share a budget, so a bad network doesn't multiply the requests.
+ * After {@link #FAILURE_THRESHOLD} transient failures in a row, the circuit opens
+ * and calls fail fast until {@link #OPEN_DURATION} passes, then one call is let through to probe it.
+ */
+public final class SourceGuard {
+
+    private static final String TAG = SourceGuard.class.getSimpleName();
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long BASE_BACKOFF = 500;
+    private static final long MAX_BACKOFF = 8000;
+
+    static final int FAILURE_THRESHOLD = 5;
+    static final long OPEN_DURATION = 15000;
+
+    private static final int STATE_CLOSED = 0;
+    private static final int STATE_OPEN = 1;
+    private static final int STATE_HALF_OPEN = 2;
+
+    // Shared by all sources
+    private static final TokenBucket sRetryBudget = new TokenBucket(20, 2);
+    private static final Map<String, SourceGuard> sGuards = new HashMap<>();
+    private static final Random sRandom = new Random();
+
+    private final String mSource;
+    private final Clock mClock;
+    private final TokenBucket mRetryBudget;
+
+    private int mState = STATE_CLOSED;
+    private int mConsecutiveFailures;
+    private long mOpenTime;
+    private boolean mProbing;
+
+    private long mCallCount;
+    private long mSuccessCount;
+    private long mFailureCount;
+    private long mRetryCount;
+    private long mRetryDeniedCount;
+    private long mRejectedCount;
+    private long mOpenCount;
+
+    private SourceGuard(String source) {
+        this(source, Clock.SYSTEM, sRetryBudget);
+    }
+
+    SourceGuard(String source, @NonNull Clock clock, @NonNull TokenBucket retryBudget) {
+        mSource = source;
+        mClock = clock;
+        mRetryBudget = retryBudget;
+    }
+
+    @NonNull
+    public static SourceGuard get(@NonNull String source) {
+        synchronized (sGuards) {
+            SourceGuard guard = sGuards.get(source);
+            if (guard == null) {
+                guard = new SourceGuard(source);
+                sGuards.put(source, guard);
+            }
+            return guard;
+        }
+    }
+
+    @NonNull
+    public static List<SourceGuard> getAll() {
+        synchronized (sGuards) {
+            return new ArrayList<>(sGuards.values());
+        }
+    }
+
+    /**
+     * A request to the source, like a blocking call of {@link com.axlecho.api.MHApiSource}.
+     * Its errors are unchecked, RxJava wraps checked ones.
+     */
+    public interface Request<T> {
+        T call();
+    }
+
+    /**
+     * Calls it with retries, or throws {@link SourceUnavailableException} at once
+     * if the circuit is open. Errors of the last attempt are thrown as they are.
+     */
+    public <T> T call(@NonNull Request<T> request) throws SourceUnavailableException {
+        for (int attempt = 0; ; attempt++) {
+            if (!allowRequest()) {
+                throw new SourceUnavailableException();
+            }
+            try {
+                T result = request.call();
+                onSuccess();
+                return result;
+            } catch (RuntimeException e) {
+                onFailure(e);
+                if (!isTransient(e) || attempt + 1 >= MAX_ATTEMPTS || !backoff(attempt)) {
+                    throw e;
+                }
+            } catch (Error e) {
+                onCancel();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Returns false if the circuit is open, the request should not be sent.
+     * The caller must report the result with {@link #onSuccess()}, {@link #onFailure(Throwable)}
+     * or {@link #onCancel()}, exactly once, if it returns true.
+     */
+    public synchronized boolean allowRequest() {
+        mCallCount++;
+        if (mState == STATE_OPEN) {
+            if (mClock.elapsedRealtime() - mOpenTime < OPEN_DURATION) {
+                mRejectedCount++;
+                return false;
+            }
+            mState = STATE_HALF_OPEN;
+        }
+        if (mState == STATE_HALF_OPEN) {
+            // Only one probe at a time
+            if (mProbing) {
+                mRejectedCount++;
+                return false;
+            }
+            mProbing = true;
+        }
+        return true;
+    }
+
+    public synchronized void onSuccess() {
+        mSuccessCount++;
+        mConsecutiveFailures = 0;
+        mProbing = false;
+        if (mState != STATE_CLOSED) {
+            Log.i(TAG, mSource + " recovers");
+            mState = STATE_CLOSED;
+        }
+    }
+
+    public synchronized void onFailure(Throwable e) {
+        mFailureCount++;
+        mProbing = false;
+        // The source answers, it's not down
+        if (!isTransient(e)) {
+            mConsecutiveFailures = 0;
+            if (mState == STATE_HALF_OPEN) {
+                mState = STATE_CLOSED;
+            }
+            return;
+        }
+        mConsecutiveFailures++;
+        if (mState == STATE_HALF_OPEN || mConsecutiveFailures >= FAILURE_THRESHOLD) {
+            if (mState != STATE_OPEN) {
+                mOpenCount++;
+                Log.w(TAG, mSource + " is unavailable, fail fast for " + OPEN_DURATION + "ms");
+            }
+            mState = STATE_OPEN;
+            mOpenTime = mClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * The request is given up for a reason of the caller, like an interrupt
+     * or a write failure. It tells nothing about the source.
+     */
+    public synchronized void onCancel() {
+        mProbing = false;
+    }
+
+    /**
+     * Returns the delay before the next attempt, for callers which can't wait on the thread.
+     *
+     * @param attempt the number of the failed attempt, starting from 0
+     * @return -1 if it should not retry, the retry budget is exhausted or the circuit is open
+     */
+    public long retryDelay(int attempt) {
+        synchronized (this) {
+            if (mState == STATE_OPEN) {
+                return -1;
+            }
+            if (!mRetryBudget.tryAcquire()) {
+                mRetryDeniedCount++;
+                return -1;
+            }
+            mRetryCount++;
+        }
+
+        // Full jitter
+        long cap = Math.min(MAX_BACKOFF, BASE_BACKOFF << Math.min(attempt, 16));
+        return (long) (sRandom.nextDouble() * cap);
+    }
+
+    /**
+     * Waits before the next attempt.
+     *
+     * @param attempt the number of the failed attempt, starting from 0
+     * @return false if it should not retry, the retry budget is exhausted,
+     * the circuit is open or the thread is interrupted
+     */
+    public boolean backoff(int attempt) {
+        long delay = retryDelay(attempt);
+        if (delay < 0) {
+            return false;
+        }
+        try {
+            Thread.sleep(delay);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Network errors, throttling and server errors are worth retrying.
+     * Others, like 404 or parse errors, fail the same way again.
+     */
+    public static boolean isTransient(Throwable e) {
+        // RxJava wraps checked exceptions
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof HttpException) {
+                return isTransientCode(((HttpException) t).code());
+            }
+            if (t instanceof IOException) {
+                return true;
+            }
+            if (t.getCause() == t) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    public static boolean isTransientCode(int code) {
+        return code == 408 || code == 429 || code >= 500;
+    }
+
+    @Override
+    public synchronized String toString() {
+        String state;
+        switch (mState) {
+            case STATE_OPEN:
+                state = "open";
+                break;
+            case STATE_HALF_OPEN:
+                state = "half-open";
+                break;
+            default:
+                state = "closed";
+                break;
+        }
+        return "SourceGuard[source=" + mSource + ",state=" + state + ",calls=" + mCallCount +
+                ",successes=" + mSuccessCount + ",failures=" + mFailureCount +
+                ",retries=" + mRetryCount + ",retriesDenied=" + mRetryDeniedCount +
+                ",rejected=" + mRejectedCount + ",opens=" + mOpenCount + "]";
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.client.exception;
+
+import com.hippo.ehviewer.GetText;
+import com.hippo.ehviewer.R;
+
+/**
+ * Thrown without trying if the source keeps failing recently.
+ */
+public class SourceUnavailableException extends EhException {
+
+    public SourceUnavailableException() {
+        super(GetText.getString(R.string.error_source_unavailable));
+    }
+}
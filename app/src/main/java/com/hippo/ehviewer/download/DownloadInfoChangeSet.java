@@ -0,0 +1,170 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.download;
+
+import androidx.annotation.NonNull;
+import com.hippo.ehviewer.dao.DownloadInfo;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Changes of a download info list, in the order to apply.
+ * <p>
+ * Positions of insert, remove and move are the positions at the time of the change,
+ * so they can be passed to {@code notifyItemInserted()} and the like one by one.
+ * Changes of the same info are merged into one, its position is the position
+ * after all structural changes.
+ */
+public final class DownloadInfoChangeSet {
+
+    public static final int TYPE_INSERT = 0;
+    public static final int TYPE_REMOVE = 1;
+    public static final int TYPE_MOVE = 2;
+    /**
+     * Anything of the info might be changed.
+     */
+    public static final int TYPE_CHANGE = 3;
+    /**
+     * Only progress, speed and remaining time are changed.
+     */
+    public static final int TYPE_CHANGE_PROGRESS = 4;
+
+    /**
+     * Payload for {@code notifyItemChanged()} of {@link #TYPE_CHANGE_PROGRESS}.
+     */
+    public static final Object PAYLOAD_PROGRESS = new Object();
+
+    private static class Op {
+        int type;
+        final DownloadInfo info;
+        int position;
+        int toPosition;
+
+        Op(int type, DownloadInfo info, int position, int toPosition) {
+            this.type = type;
+            this.info = info;
+            this.position = position;
+            this.toPosition = toPosition;
+        }
+    }
+
+    private final List<Op> mStructuralOps = new ArrayList<>();
+    // Changes are resolved to positions on dispatch
+    private final IdentityHashMap<DownloadInfo, Op> mChangeOps = new IdentityHashMap<>();
+    private final List<Op> mOps = new ArrayList<>();
+
+    void insert(@NonNull DownloadInfo info, int position) {
+        mStructuralOps.add(new Op(TYPE_INSERT, info, position, -1));
+    }
+
+    void remove(@NonNull DownloadInfo info, int position) {
+        mStructuralOps.add(new Op(TYPE_REMOVE, info, position, -1));
+        // It's gone, no need to update it
+        mChangeOps.remove(info);
+    }
+
+    void move(@NonNull DownloadInfo info, int fromPosition, int toPosition) {
+        mStructuralOps.add(new Op(TYPE_MOVE, info, fromPosition, toPosition));
+    }
+
+    void change(@NonNull DownloadInfo info, boolean progressOnly) {
+        Op op = mChangeOps.get(info);
+        if (op == null) {
+            mChangeOps.put(info, new Op(progressOnly ? TYPE_CHANGE_PROGRESS : TYPE_CHANGE, info, -1, -1));
+        } else if (!progressOnly) {
+            op.type = TYPE_CHANGE;
+        }
+    }
+
+    boolean isEmpty() {
+        return mStructuralOps.isEmpty() && mChangeOps.isEmpty();
+    }
+
+    /**
+     * Find positions of changed infos in one pass, drop them if they are not in the list.
+     */
+    void resolve(@NonNull List<DownloadInfo> list) {
+        mOps.clear();
+        mOps.addAll(mStructuralOps);
+        if (!mChangeOps.isEmpty()) {
+            int remaining = mChangeOps.size();
+            int position = 0;
+            for (DownloadInfo info : list) {
+                Op op = mChangeOps.get(info);
+                if (op != null) {
+                    op.position = position;
+                    mOps.add(op);
+                    if (--remaining == 0) {
+                        break;
+                    }
+                }
+                position++;
+            }
+        }
+        mStructuralOps.clear();
+        mChangeOps.clear();
+    }
+
+    public int size() {
+        return mOps.size();
+    }
+
+    public int getType(int index) {
+        return mOps.get(index).type;
+    }
+
+    @NonNull
+    public DownloadInfo getInfo(int index) {
+        return mOps.get(index).info;
+    }
+
+    public int getPosition(int index) {
+        return mOps.get(index).position;
+    }
+
+    /**
+     * Only for {@link #TYPE_MOVE}.
+     */
+    public int getToPosition(int index) {
+        return mOps.get(index).toPosition;
+    }
+
+    /**
+     * Returns true if there is insert, remove or move.
+     */
+    public boolean hasStructuralChanges() {
+        for (Op op : mOps) {
+            if (op.type == TYPE_INSERT || op.type == TYPE_REMOVE || op.type == TYPE_MOVE) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if there are only progress changes.
+     */
+    public boolean isProgressOnly() {
+        for (Op op : mOps) {
+            if (op.type != TYPE_CHANGE_PROGRESS) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
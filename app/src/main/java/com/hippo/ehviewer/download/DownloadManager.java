@@ -32,11 +32,12 @@ import com.hippo.ehviewer.spider.SpiderQueen;
 import com.hippo.image.Image;
 import com.hippo.unifile.UniFile;
 import com.hippo.util.IoThreadPoolExecutor;
+import com.hippo.util.SortedArrayList;
+import com.hippo.util.Tracer;
 import com.hippo.yorozuya.ConcurrentPool;
 import com.hippo.yorozuya.MathUtils;
 import com.hippo.yorozuya.ObjectUtils;
 import com.hippo.yorozuya.SimpleHandler;
-import com.hippo.yorozuya.collect.LongList;
 import com.hippo.yorozuya.collect.SparseIJArray;
 import com.hippo.yorozuya.collect.SparseJLArray;
 import java.io.IOException;
@@ -44,10 +45,12 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class DownloadManager implements SpiderQueen.OnSpiderListener {
 
@@ -55,18 +58,18 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
 
     private final Context mContext;
 
-    // All download info list
-    private final LinkedList<DownloadInfo> mAllInfoList;
+    // All download info list, sorted by time, positions are found by binary search
+    private final SortedArrayList<DownloadInfo> mAllInfoList;
     // All download info map
     private final HashMap<String,DownloadInfo> mAllInfoMap;
     // label and info list map, without default label info list
-    private final Map<String, LinkedList<DownloadInfo>> mMap;
+    private final Map<String, SortedArrayList<DownloadInfo>> mMap;
     // All labels without default label
     private final List<DownloadLabel> mLabelList;
     // Store download info with default label
-    private final LinkedList<DownloadInfo> mDefaultInfoList;
-    // Store download info wait to start
-    private final LinkedList<DownloadInfo> mWaitList;
+    private final SortedArrayList<DownloadInfo> mDefaultInfoList;
+    // Store download info wait to start, gid to info, in the order to start
+    private final LinkedHashMap<String, DownloadInfo> mWaitList;
 
     private final SpeedReminder mSpeedReminder;
 
@@ -81,6 +84,18 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
 
     private final ConcurrentPool<NotifyTask> mNotifyTaskPool = new ConcurrentPool<>(5);
 
+    // Changes not dispatched yet, for each list
+    private final IdentityHashMap<List<DownloadInfo>, DownloadInfoChangeSet> mPendingChanges = new IdentityHashMap<>();
+    private boolean mFlushChangesScheduled;
+    private final Runnable mFlushChangesTask = this::flushChanges;
+
+    private final DownloadQueueJournal mQueueJournal;
+    // Gids in the journal at start, null after resumed
+    @Nullable
+    private List<String> mJournalGids;
+    private boolean mSaveQueueScheduled;
+    private final Runnable mSaveQueueTask = this::saveQueue;
+
     public DownloadManager(Context context) {
         mContext = context;
 
@@ -89,18 +104,18 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
         mLabelList = labels;
 
         // Create list for each label
-        HashMap<String, LinkedList<DownloadInfo>> map = new HashMap<>();
+        HashMap<String, SortedArrayList<DownloadInfo>> map = new HashMap<>();
         mMap = map;
         for (DownloadLabel label : labels) {
-            map.put(label.getLabel(), new LinkedList<DownloadInfo>());
+            map.put(label.getLabel(), new SortedArrayList<>(DATE_DESC_COMPARATOR));
         }
 
         // Create default for non tag
-        mDefaultInfoList = new LinkedList<>();
+        mDefaultInfoList = new SortedArrayList<>(DATE_DESC_COMPARATOR);
 
         // Get all info
         List<DownloadInfo> allInfoList = EhDB.getAllDownloadInfo();
-        mAllInfoList = new LinkedList<>(allInfoList);
+        mAllInfoList = new SortedArrayList<>(DATE_DESC_COMPARATOR, allInfoList);
 
         // Create all info map
         HashMap<String,DownloadInfo> allInfoMap = new HashMap<>(allInfoList.size() + 10);
@@ -113,10 +128,10 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
             allInfoMap.put(info.gid, info);
 
             // Add to each label list
-            LinkedList<DownloadInfo> list = getInfoListForLabel(info.label);
+            SortedArrayList<DownloadInfo> list = getInfoListForLabel(info.label);
             if (list == null) {
                 // Can't find the label in label list
-                list = new LinkedList<>();
+                list = new SortedArrayList<>(DATE_DESC_COMPARATOR);
                 map.put(info.label, list);
                 if (!containLabel(info.label)) {
                     // Add label to DB and list
@@ -126,13 +141,17 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
             list.add(info);
         }
 
-        mWaitList = new LinkedList<>();
+        mWaitList = new LinkedHashMap<>();
         mSpeedReminder = new SpeedReminder();
         mDownloadInfoListeners = new ArrayList<>();
+
+        // States in DB are reset, the queue is kept in the journal
+        mQueueJournal = new DownloadQueueJournal(context.getFilesDir());
+        mJournalGids = mQueueJournal.read();
     }
 
     @Nullable
-    private LinkedList<DownloadInfo> getInfoListForLabel(String label) {
+    private SortedArrayList<DownloadInfo> getInfoListForLabel(String label) {
         if (label == null) {
             return mDefaultInfoList;
         } else {
@@ -173,6 +192,20 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
         return mMap.get(label);
     }
 
+    /**
+     * Returns a copy of finished downloads.
+     */
+    @NonNull
+    public List<DownloadInfo> getFinishedDownloadInfoList() {
+        List<DownloadInfo> list = new ArrayList<>();
+        for (DownloadInfo info : mAllInfoList) {
+            if (info.state == DownloadInfo.STATE_FINISH) {
+                list.add(info);
+            }
+        }
+        return list;
+    }
+
     @Nullable
     public DownloadInfo getDownloadInfo(long gid) {
         return mAllInfoMap.get(gid);
@@ -199,6 +232,125 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
         mDownloadListener = listener;
     }
 
+    private DownloadInfoChangeSet getPendingChanges(List<DownloadInfo> list) {
+        DownloadInfoChangeSet changes = mPendingChanges.get(list);
+        if (changes == null) {
+            changes = new DownloadInfoChangeSet();
+            mPendingChanges.put(list, changes);
+        }
+        return changes;
+    }
+
+    /**
+     * Changes of info are merged and dispatched in next loop.
+     */
+    private void postChange(DownloadInfo info, boolean progressOnly) {
+        List<DownloadInfo> list = getInfoListForLabel(info.label);
+        if (list == null) {
+            return;
+        }
+        getPendingChanges(list).change(info, progressOnly);
+        if (!mFlushChangesScheduled) {
+            mFlushChangesScheduled = true;
+            SimpleHandler.getInstance().post(mFlushChangesTask);
+        }
+    }
+
+    /**
+     * The list is changed now, so adapters must know it now.
+     */
+    private void dispatchInsert(List<DownloadInfo> list, DownloadInfo info, int position) {
+        getPendingChanges(list).insert(info, position);
+        flushChanges();
+    }
+
+    private void dispatchRemove(List<DownloadInfo> list, DownloadInfo info, int position) {
+        getPendingChanges(list).remove(info, position);
+        flushChanges();
+    }
+
+    private void flushChanges() {
+        if (mFlushChangesScheduled) {
+            mFlushChangesScheduled = false;
+            SimpleHandler.getInstance().removeCallbacks(mFlushChangesTask);
+        }
+        if (mPendingChanges.isEmpty()) {
+            return;
+        }
+
+        List<Map.Entry<List<DownloadInfo>, DownloadInfoChangeSet>> entries = new ArrayList<>(mPendingChanges.entrySet());
+        mPendingChanges.clear();
+        for (Map.Entry<List<DownloadInfo>, DownloadInfoChangeSet> entry : entries) {
+            List<DownloadInfo> list = entry.getKey();
+            DownloadInfoChangeSet changes = entry.getValue();
+            changes.resolve(list);
+            if (changes.size() == 0) {
+                continue;
+            }
+            for (DownloadInfoListener l: mDownloadInfoListeners) {
+                l.onChanges(list, changes);
+            }
+        }
+    }
+
+    /**
+     * Snapshot of the queue is saved in next loop.
+     */
+    private void postSaveQueue() {
+        if (!mSaveQueueScheduled) {
+            mSaveQueueScheduled = true;
+            SimpleHandler.getInstance().post(mSaveQueueTask);
+        }
+    }
+
+    private void saveQueue() {
+        mSaveQueueScheduled = false;
+        List<String> gids = new ArrayList<>(mWaitList.size() + 1);
+        if (mCurrentTask != null) {
+            gids.add(mCurrentTask.gid);
+        }
+        gids.addAll(mWaitList.keySet());
+        mQueueJournal.write(gids);
+    }
+
+    /**
+     * Put downloads in the journal back to wait list, in the same order.
+     * It only works once, the first time download service starts.
+     */
+    void resumeQueue() {
+        List<String> gids = mJournalGids;
+        mJournalGids = null;
+        if (gids == null || gids.isEmpty()) {
+            return;
+        }
+
+        List<DownloadInfo> resumed = new ArrayList<>(gids.size());
+        for (String gid : gids) {
+            DownloadInfo info = mAllInfoMap.get(gid);
+            if (info == null || info == mCurrentTask || mWaitList.containsKey(gid) ||
+                    info.state == DownloadInfo.STATE_FINISH) {
+                continue;
+            }
+            info.state = DownloadInfo.STATE_WAIT;
+            mWaitList.put(gid, info);
+            resumed.add(info);
+        }
+        if (resumed.isEmpty()) {
+            return;
+        }
+        Log.d(TAG, "Resume " + resumed.size() + " downloads");
+
+        // Update in DB
+        EhDB.putDownloadInfo(resumed);
+        postSaveQueue();
+        // Notify Listener
+        for (DownloadInfoListener l: mDownloadInfoListeners) {
+            l.onUpdateAll();
+        }
+        // Ensure download
+        ensureDownload();
+    }
+
     private void ensureDownload() {
         if (mCurrentTask != null) {
             // Only one download
@@ -207,11 +359,17 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
 
         // Get download from wait list
         if (!mWaitList.isEmpty()) {
-            DownloadInfo info = mWaitList.removeFirst();
+            Iterator<DownloadInfo> iterator = mWaitList.values().iterator();
+            DownloadInfo info = iterator.next();
+            iterator.remove();
             SpiderQueen spider = SpiderQueen.obtainSpiderQueen(mContext, info, SpiderQueen.MODE_DOWNLOAD);
             mCurrentTask = info;
             mCurrentSpider = spider;
+            postSaveQueue();
             spider.addOnSpiderListener(this);
+            if (Tracer.ENABLED) {
+                Tracer.begin(Tracer.PHASE_GALLERY_DOWNLOAD, -1);
+            }
             info.state = DownloadInfo.STATE_DOWNLOAD;
             info.speed = -1;
             info.remaining = -1;
@@ -228,12 +386,7 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
                 mDownloadListener.onStart(info);
             }
             // Notify state update
-            List<DownloadInfo> list = getInfoListForLabel(info.label);
-            if (list != null) {
-                for (DownloadInfoListener l: mDownloadInfoListeners) {
-                    l.onUpdate(info, list);
-                }
-            }
+            postChange(info, false);
         }
     }
 
@@ -250,16 +403,12 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
                 // Set state DownloadInfo.STATE_WAIT
                 info.state = DownloadInfo.STATE_WAIT;
                 // Add to wait list
-                mWaitList.add(info);
+                mWaitList.put(info.gid, info);
+                postSaveQueue();
                 // Update in DB
                 EhDB.putDownloadInfo(info);
                 // Notify state update
-                List<DownloadInfo> list = getInfoListForLabel(info.label);
-                if (list != null) {
-                    for (DownloadInfoListener l: mDownloadInfoListeners) {
-                        l.onUpdate(info, list);
-                    }
-                }
+                postChange(info, false);
                 // Make sure download is running
                 ensureDownload();
             }
@@ -271,27 +420,26 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
             info.time = System.currentTimeMillis();
 
             // Add to label download list
-            LinkedList<DownloadInfo> list = getInfoListForLabel(info.label);
+            SortedArrayList<DownloadInfo> list = getInfoListForLabel(info.label);
             if (list == null) {
                 Log.e(TAG, "Can't find download info list with label: " + label);
                 return;
             }
-            list.addFirst(info);
+            int position = list.insert(info);
 
             // Add to all download list and map
-            mAllInfoList.addFirst(info);
+            mAllInfoList.insert(info);
             mAllInfoMap.put(galleryInfo.gid, info);
 
             // Add to wait list
-            mWaitList.add(info);
+            mWaitList.put(info.gid, info);
+            postSaveQueue();
 
             // Save to
             EhDB.putDownloadInfo(info);
 
             // Notify
-            for (DownloadInfoListener l: mDownloadInfoListeners) {
-                l.onAdd(info, list, list.size() - 1);
-            }
+            dispatchInsert(list, info, position);
             // Make sure download is running
             ensureDownload();
 
@@ -300,11 +448,10 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
         }
     }
 
-    void startRangeDownload(LongList gidList) {
-        boolean update = false;
+    void startRangeDownload(List<String> gidList) {
+        List<DownloadInfo> updated = new ArrayList<>();
 
-        for (int i = 0, n = gidList.size(); i < n; i++) {
-            long gid = gidList.get(i);
+        for (String gid : gidList) {
             DownloadInfo info = mAllInfoMap.get(gid);
             if (null == info) {
                 Log.d(TAG, "Can't get download info with gid: " + gid);
@@ -314,17 +461,18 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
             if (info.state == DownloadInfo.STATE_NONE ||
                     info.state == DownloadInfo.STATE_FAILED ||
                     info.state == DownloadInfo.STATE_FINISH) {
-                update = true;
                 // Set state DownloadInfo.STATE_WAIT
                 info.state = DownloadInfo.STATE_WAIT;
                 // Add to wait list
-                mWaitList.add(info);
-                // Update in DB
-                EhDB.putDownloadInfo(info);
+                mWaitList.put(info.gid, info);
+                updated.add(info);
             }
         }
 
-        if (update) {
+        if (!updated.isEmpty()) {
+            // Update in DB
+            EhDB.putDownloadInfo(updated);
+            postSaveQueue();
             // Notify Listener
             for (DownloadInfoListener l: mDownloadInfoListeners) {
                 l.onUpdateAll();
@@ -335,23 +483,22 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
     }
 
     void startAllDownload() {
-        boolean update = false;
+        List<DownloadInfo> updated = new ArrayList<>();
         // Start all STATE_NONE and STATE_FAILED item
-        LinkedList<DownloadInfo> allInfoList = mAllInfoList;
-        LinkedList<DownloadInfo> waitList = mWaitList;
-        for (DownloadInfo info: allInfoList) {
+        for (DownloadInfo info: mAllInfoList) {
             if (info.state == DownloadInfo.STATE_NONE || info.state == DownloadInfo.STATE_FAILED) {
-                update = true;
                 // Set state DownloadInfo.STATE_WAIT
                 info.state = DownloadInfo.STATE_WAIT;
                 // Add to wait list
-                waitList.add(info);
-                // Update in DB
-                EhDB.putDownloadInfo(info);
+                mWaitList.put(info.gid, info);
+                updated.add(info);
             }
         }
 
-        if (update) {
+        if (!updated.isEmpty()) {
+            // Update in DB
+            EhDB.putDownloadInfo(updated);
+            postSaveQueue();
             // Notify Listener
             for (DownloadInfoListener l: mDownloadInfoListeners) {
                 l.onUpdateAll();
@@ -362,6 +509,7 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
     }
 
     public void addDownload(List<DownloadInfo> downloadInfoList) {
+        List<DownloadInfo> added = new ArrayList<>(downloadInfoList.size());
         for (DownloadInfo info: downloadInfoList) {
             if (containDownloadInfo(info.gid)) {
                 // Contain
@@ -375,30 +523,26 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
             }
 
             // Add to label download list
-            LinkedList<DownloadInfo> list = getInfoListForLabel(info.label);
+            SortedArrayList<DownloadInfo> list = getInfoListForLabel(info.label);
             if (null == list) {
                 // Can't find the label in label list
-                list = new LinkedList<>();
+                list = new SortedArrayList<>(DATE_DESC_COMPARATOR);
                 mMap.put(info.label, list);
                 if (!containLabel(info.label)) {
                     // Add label to DB and list
                     mLabelList.add(EhDB.addDownloadLabel(info.label));
                 }
             }
-            list.add(info);
-            // Sort
-            Collections.sort(list, DATE_DESC_COMPARATOR);
+            list.insert(info);
 
             // Add to all download list and map
-            mAllInfoList.add(info);
+            mAllInfoList.insert(info);
             mAllInfoMap.put(info.gid, info);
-
-            // Save to
-            EhDB.putDownloadInfo(info);
+            added.add(info);
         }
 
-        // Sort all download list
-        Collections.sort(mAllInfoList, DATE_DESC_COMPARATOR);
+        // Save to DB
+        EhDB.putDownloadInfo(added);
 
         // Notify
         for (DownloadInfoListener l: mDownloadInfoListeners) {
@@ -410,7 +554,7 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
         for (DownloadLabel label: downloadLabelList) {
             String labelString = label.getLabel();
             if (!containLabel(labelString)) {
-                mMap.put(labelString, new LinkedList<DownloadInfo>());
+                mMap.put(labelString, new SortedArrayList<>(DATE_DESC_COMPARATOR));
                 mLabelList.add(EhDB.addDownloadLabel(label));
             }
         }
@@ -429,24 +573,22 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
         info.time = System.currentTimeMillis();
 
         // Add to label download list
-        LinkedList<DownloadInfo> list = getInfoListForLabel(info.label);
+        SortedArrayList<DownloadInfo> list = getInfoListForLabel(info.label);
         if (list == null) {
             Log.e(TAG, "Can't find download info list with label: " + label);
             return;
         }
-        list.addFirst(info);
+        int position = list.insert(info);
 
         // Add to all download list and map
-        mAllInfoList.addFirst(info);
+        mAllInfoList.insert(info);
         mAllInfoMap.put(galleryInfo.gid, info);
 
         // Save to
         EhDB.putDownloadInfo(info);
 
         // Notify
-        for (DownloadInfoListener l: mDownloadInfoListeners) {
-            l.onAdd(info, list, list.size() - 1);
-        }
+        dispatchInsert(list, info, position);
     }
 
 
@@ -454,12 +596,7 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
         DownloadInfo info = stopDownloadInternal(gid);
         if (info != null) {
             // Update listener
-            List<DownloadInfo> list = getInfoListForLabel(info.label);
-            if (list != null) {
-                for (DownloadInfoListener l: mDownloadInfoListeners) {
-                    l.onUpdate(info, list);
-                }
-            }
+            postChange(info, false);
             // Ensure download
             ensureDownload();
         }
@@ -469,18 +606,13 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
         DownloadInfo info = stopCurrentDownloadInternal();
         if (info != null) {
             // Update listener
-            List<DownloadInfo> list = getInfoListForLabel(info.label);
-            if (list != null) {
-                for (DownloadInfoListener l: mDownloadInfoListeners) {
-                    l.onUpdate(info, list);
-                }
-            }
+            postChange(info, false);
             // Ensure download
             ensureDownload();
         }
     }
 
-    public void stopRangeDownload(LongList gidList) {
+    public void stopRangeDownload(List<String> gidList) {
         stopRangeDownloadInternal(gidList);
 
         // Update listener
@@ -494,12 +626,14 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
 
     public void stopAllDownload() {
         // Stop all in wait list
-        for (DownloadInfo info : mWaitList) {
+        List<DownloadInfo> stopped = new ArrayList<>(mWaitList.values());
+        for (DownloadInfo info : stopped) {
             info.state = DownloadInfo.STATE_NONE;
-            // Update in DB
-            EhDB.putDownloadInfo(info);
         }
         mWaitList.clear();
+        // Update in DB
+        EhDB.putDownloadInfo(stopped);
+        postSaveQueue();
 
         // Stop current
         stopCurrentDownloadInternal();
@@ -522,15 +656,13 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
             mAllInfoMap.remove(info.gid);
 
             // Remove label list
-            LinkedList<DownloadInfo> list = getInfoListForLabel(info.label);
+            SortedArrayList<DownloadInfo> list = getInfoListForLabel(info.label);
             if (list != null) {
                 int index = list.indexOf(info);
                 if (index >= 0) {
-                    list.remove(info);
+                    list.remove(index);
                     // Update listener
-                    for (DownloadInfoListener l: mDownloadInfoListeners) {
-                        l.onRemove(info, list, index);
-                    }
+                    dispatchRemove(list, info, index);
                 }
             }
 
@@ -539,43 +671,59 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
         }
     }
 
-    public void deleteRangeDownload(LongList gidList) {
+    public void deleteRangeDownload(List<String> gidList) {
         stopRangeDownloadInternal(gidList);
 
-        for (int i = 0, n = gidList.size(); i < n; i++) {
-            long gid = gidList.get(i);
-            DownloadInfo info = mAllInfoMap.get(gid);
+        Set<DownloadInfo> infos = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<String> gids = new ArrayList<>(gidList.size());
+        for (String gid : gidList) {
+            DownloadInfo info = mAllInfoMap.remove(gid);
             if (null == info) {
                 Log.d(TAG, "Can't get download info with gid: " + gid);
                 continue;
             }
+            infos.add(info);
+            gids.add(gid);
+        }
+        if (infos.isEmpty()) {
+            return;
+        }
 
-            // Remove from DB
-            EhDB.removeDownloadInfo(info.gid);
-
-            // Remove from all info map
-            mAllInfoList.remove(info);
-            mAllInfoMap.remove(info.gid);
+        // Remove from DB in one transaction
+        EhDB.removeDownloadInfo(gids);
 
-            // Remove from label list
-            LinkedList<DownloadInfo> list = getInfoListForLabel(info.label);
-            if (list != null) {
-                list.remove(info);
+        // Remove from all lists in one pass for each
+        mAllInfoList.removeBatch(infos, null);
+        List<DownloadInfo> removed = new ArrayList<>();
+        for (SortedArrayList<DownloadInfo> list : getAllInfoLists()) {
+            removed.clear();
+            int[] positions = list.removeBatch(infos, removed);
+            if (positions.length == 0) {
+                continue;
+            }
+            DownloadInfoChangeSet changes = getPendingChanges(list);
+            for (int i = 0; i < positions.length; i++) {
+                changes.remove(removed.get(i), positions[i]);
             }
         }
 
         // Update listener
-        for (DownloadInfoListener l: mDownloadInfoListeners) {
-            l.onReload();
-        }
+        flushChanges();
 
         // Ensure download
         ensureDownload();
     }
 
+    private List<SortedArrayList<DownloadInfo>> getAllInfoLists() {
+        List<SortedArrayList<DownloadInfo>> lists = new ArrayList<>(mMap.size() + 1);
+        lists.add(mDefaultInfoList);
+        lists.addAll(mMap.values());
+        return lists;
+    }
+
     @SuppressLint("StaticFieldLeak")
     public void resetAllReadingProgress() {
-        LinkedList<DownloadInfo> list = new LinkedList<>(mAllInfoList);
+        List<DownloadInfo> list = new ArrayList<>(mAllInfoList);
 
         new AsyncTask<Void, Void, Void>() {
             @Override
@@ -626,19 +774,16 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
             return stopCurrentDownloadInternal();
         }
 
-        for (Iterator<DownloadInfo> iterator = mWaitList.iterator(); iterator.hasNext();) {
-            DownloadInfo info = iterator.next();
-            if (info.gid.equals(gid)) {
-                // Remove from wait list
-                iterator.remove();
-                // Update state
-                info.state = DownloadInfo.STATE_NONE;
-                // Update in DB
-                EhDB.putDownloadInfo(info);
-                return info;
-            }
+        // Remove from wait list
+        DownloadInfo info = mWaitList.remove(gid);
+        if (info != null) {
+            postSaveQueue();
+            // Update state
+            info.state = DownloadInfo.STATE_NONE;
+            // Update in DB
+            EhDB.putDownloadInfo(info);
         }
-        return null;
+        return info;
     }
 
     // Update in DB
@@ -653,11 +798,15 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
         }
         mCurrentTask = null;
         mCurrentSpider = null;
+        postSaveQueue();
         // Stop speed reminder
         mSpeedReminder.stop();
         if (info == null) {
             return null;
         }
+        if (Tracer.ENABLED) {
+            Tracer.end(Tracer.PHASE_GALLERY_DOWNLOAD, -1);
+        }
 
         // Update state
         info.state = DownloadInfo.STATE_NONE;
@@ -672,8 +821,23 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
 
     // Update in DB
     // Update mDownloadListener
-    private void stopRangeDownloadInternal(LongList gidList) {
-
+    private void stopRangeDownloadInternal(List<String> gidList) {
+        List<DownloadInfo> stopped = new ArrayList<>();
+        for (String gid : gidList) {
+            if (mCurrentTask != null && mCurrentTask.gid.equals(gid)) {
+                // Stop current
+                stopCurrentDownloadInternal();
+                continue;
+            }
+            DownloadInfo info = mWaitList.remove(gid);
+            if (info != null) {
+                info.state = DownloadInfo.STATE_NONE;
+                stopped.add(info);
+            }
+        }
+        // Update in DB
+        EhDB.putDownloadInfo(stopped);
+        postSaveQueue();
     }
 
     /**
@@ -685,31 +849,45 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
             return;
         }
 
-        List<DownloadInfo> dstList = getInfoListForLabel(label);
+        SortedArrayList<DownloadInfo> dstList = getInfoListForLabel(label);
         if (dstList == null) {
             Log.e(TAG, "Can't find label with label: " + label);
             return;
         }
 
+        // Group by source list, remove from each one in one pass
+        Map<SortedArrayList<DownloadInfo>, Set<DownloadInfo>> srcMap = new IdentityHashMap<>();
         for (DownloadInfo info: list) {
             if (ObjectUtils.equal(info.label, label)) {
                 continue;
             }
 
-            List<DownloadInfo> srcList = getInfoListForLabel(info.label);
+            SortedArrayList<DownloadInfo> srcList = getInfoListForLabel(info.label);
             if (srcList == null) {
                 Log.e(TAG, "Can't find label with label: " + info.label);
                 continue;
             }
 
-            srcList.remove(info);
-            dstList.add(info);
-            info.label = label;
-            Collections.sort(dstList, DATE_DESC_COMPARATOR);
+            Set<DownloadInfo> infos = srcMap.get(srcList);
+            if (infos == null) {
+                infos = Collections.newSetFromMap(new IdentityHashMap<>());
+                srcMap.put(srcList, infos);
+            }
+            infos.add(info);
+        }
 
-            // Save to DB
-            EhDB.putDownloadInfo(info);
+        List<DownloadInfo> moved = new ArrayList<>();
+        for (Map.Entry<SortedArrayList<DownloadInfo>, Set<DownloadInfo>> entry : srcMap.entrySet()) {
+            entry.getKey().removeBatch(entry.getValue(), moved);
+        }
+        for (DownloadInfo info : moved) {
+            info.label = label;
         }
+        // Sort once
+        dstList.addAll(moved);
+
+        // Save to DB
+        EhDB.putDownloadInfo(moved);
 
         for (DownloadInfoListener l: mDownloadInfoListeners) {
             l.onReload();
@@ -722,7 +900,7 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
         }
 
         mLabelList.add(EhDB.addDownloadLabel(label));
-        mMap.put(label, new LinkedList<DownloadInfo>());
+        mMap.put(label, new SortedArrayList<>(DATE_DESC_COMPARATOR));
 
         for (DownloadInfoListener l: mDownloadInfoListeners) {
             l.onUpdateLabels();
@@ -755,7 +933,7 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
             return;
         }
 
-        LinkedList<DownloadInfo> list = mMap.remove(from);
+        SortedArrayList<DownloadInfo> list = mMap.remove(from);
         if (list == null) {
             return;
         }
@@ -763,9 +941,9 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
         // Update info label
         for (DownloadInfo info: list) {
             info.label = to;
-            // Update in DB
-            EhDB.putDownloadInfo(info);
         }
+        // Update in DB
+        EhDB.putDownloadInfo(list);
         // Put list back with new label
         mMap.put(to, list);
 
@@ -791,7 +969,7 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
             return;
         }
 
-        LinkedList<DownloadInfo> list = mMap.remove(label);
+        SortedArrayList<DownloadInfo> list = mMap.remove(label);
         if (list == null) {
             return;
         }
@@ -799,13 +977,11 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
         // Update info label
         for (DownloadInfo info: list) {
             info.label = null;
-            // Update in DB
-            EhDB.putDownloadInfo(info);
-            mDefaultInfoList.add(info);
         }
-
-        // Sort
-        Collections.sort(mDefaultInfoList, DATE_DESC_COMPARATOR);
+        // Update in DB
+        EhDB.putDownloadInfo(list);
+        // Sort once
+        mDefaultInfoList.addAll(list);
 
         // Notify listener
         for (DownloadInfoListener l: mDownloadInfoListeners) {
@@ -839,12 +1015,8 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
 
     @Override
     public void onPageDownload(int index, long contentLength, long receivedSize, int bytesRead) {
-        NotifyTask task = mNotifyTaskPool.pop();
-        if (task == null) {
-            task = new NotifyTask();
-        }
-        task.setOnPageDownloadData(index, contentLength, receivedSize, bytesRead);
-        SimpleHandler.getInstance().post(task);
+        // Already in UI thread
+        mSpeedReminder.onDownload(index, contentLength, receivedSize, bytesRead);
     }
 
     @Override
@@ -891,7 +1063,6 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
 
         public static final int TYPE_ON_GET_PAGES = 0;
         public static final int TYPE_ON_GET_509 = 1;
-        public static final int TYPE_ON_PAGE_DOWNLOAD = 2;
         public static final int TYPE_ON_PAGE_SUCCESS = 3;
         public static final int TYPE_ON_PAGE_FAILURE = 4;
         public static final int TYPE_ON_FINISH = 5;
@@ -899,9 +1070,6 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
         private int mType;
         private int mPages;
         private int mIndex;
-        private long mContentLength;
-        private long mReceivedSize;
-        private int mBytesRead;
         @SuppressWarnings("unused")
         private String mError;
         private int mFinished;
@@ -918,14 +1086,6 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
             mIndex = index;
         }
 
-        public void setOnPageDownloadData(int index, long contentLength, long receivedSize, int bytesRead) {
-            mType = TYPE_ON_PAGE_DOWNLOAD;
-            mIndex = index;
-            mContentLength = contentLength;
-            mReceivedSize = receivedSize;
-            mBytesRead = bytesRead;
-        }
-
         public void setOnPageSuccessData(int index, int finished, int downloaded, int total) {
             mType = TYPE_ON_PAGE_SUCCESS;
             mIndex = index;
@@ -959,12 +1119,7 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
                         Log.e(TAG, "Current task is null, but it should not be");
                     } else {
                         info.total = mPages;
-                        List<DownloadInfo> list = getInfoListForLabel(info.label);
-                        if (list != null) {
-                            for (DownloadInfoListener l: mDownloadInfoListeners) {
-                                l.onUpdate(info, list);
-                            }
-                        }
+                        postChange(info, true);
                     }
                     break;
                 }
@@ -974,10 +1129,6 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
                     }
                     break;
                 }
-                case TYPE_ON_PAGE_DOWNLOAD: {
-                    mSpeedReminder.onDownload(mIndex, mContentLength, mReceivedSize, mBytesRead);
-                    break;
-                }
                 case TYPE_ON_PAGE_SUCCESS: {
                     mSpeedReminder.onDone(mIndex);
                     DownloadInfo info = mCurrentTask;
@@ -990,12 +1141,7 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
                         if (mDownloadListener != null) {
                             mDownloadListener.onGetPage(info);
                         }
-                        List<DownloadInfo> list = getInfoListForLabel(info.label);
-                        if (list != null) {
-                            for (DownloadInfoListener l: mDownloadInfoListeners) {
-                                l.onUpdate(info, list);
-                            }
-                        }
+                        postChange(info, true);
                     }
                     break;
                 }
@@ -1008,20 +1154,19 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
                         info.finished = mFinished;
                         info.downloaded = mDownloaded;
                         info.total = mTotal;
-                        List<DownloadInfo> list = getInfoListForLabel(info.label);
-                        if (list != null) {
-                            for (DownloadInfoListener l: mDownloadInfoListeners) {
-                                l.onUpdate(info, list);
-                            }
-                        }
+                        postChange(info, true);
                     }
                     break;
                 }
                 case TYPE_ON_FINISH: {
+                    if (Tracer.ENABLED) {
+                        Tracer.end(Tracer.PHASE_GALLERY_DOWNLOAD, mDownloaded);
+                    }
                     mSpeedReminder.onFinish();
                     // Download done
                     DownloadInfo info = mCurrentTask;
                     mCurrentTask = null;
+                    postSaveQueue();
                     SpiderQueen spider = mCurrentSpider;
                     mCurrentSpider = null;
                     // Release spider
@@ -1052,12 +1197,7 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
                     if (mDownloadListener != null) {
                         mDownloadListener.onFinish(info);
                     }
-                    List<DownloadInfo> list = getInfoListForLabel(info.label);
-                    if (list != null) {
-                        for (DownloadInfoListener l: mDownloadInfoListeners) {
-                            l.onUpdate(info, list);
-                        }
-                    }
+                    postChange(info, false);
                     // Start next download
                     ensureDownload();
                     break;
@@ -1148,12 +1288,7 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
                 if (mDownloadListener != null) {
                     mDownloadListener.onDownload(info);
                 }
-                List<DownloadInfo> list = getInfoListForLabel(info.label);
-                if (list != null) {
-                    for (DownloadInfoListener l: mDownloadInfoListeners) {
-                        l.onUpdate(info, list);
-                    }
-                }
+                postChange(info, true);
             }
 
             mBytesRead = 0;
@@ -1167,21 +1302,17 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
     private static final Comparator<DownloadInfo> DATE_DESC_COMPARATOR = new Comparator<DownloadInfo>() {
         @Override
         public int compare(DownloadInfo lhs, DownloadInfo rhs) {
-            return lhs.time - rhs.time > 0 ? -1 : 1;
+            return Long.compare(rhs.time, lhs.time);
         }
     };
 
     public interface DownloadInfoListener {
 
         /**
-         * Add the special info to the special position
+         * Infos are added, removed, moved or changed in the list.
+         * Changes of infos are merged, at most once per loop.
          */
-        void onAdd(@NonNull DownloadInfo info, @NonNull List<DownloadInfo> list, int position);
-
-        /**
-         * The special info is changed
-         */
-        void onUpdate(@NonNull DownloadInfo info, @NonNull List<DownloadInfo> list);
+        void onChanges(@NonNull List<DownloadInfo> list, @NonNull DownloadInfoChangeSet changes);
 
         /**
          * Maybe all data is changed, but size is the same
@@ -1203,11 +1334,6 @@ public class DownloadManager implements SpiderQueen.OnSpiderListener {
          */
         void onRenameLabel(String from, String to);
 
-        /**
-         * Remove the special info from the special position
-         */
-        void onRemove(@NonNull DownloadInfo info, @NonNull List<DownloadInfo> list, int position);
-
         void onUpdateLabels();
     }
 
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.download;
+
+import android.util.AtomicFile;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import com.hippo.util.IoThreadPoolExecutor;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Gids of the running download and waiting downloads, in the order to start.
+ * Download states in DB are reset on start, this is how the queue survives
+ * the process being killed.
+ */
+final class DownloadQueueJournal {
+
+    private static final String TAG = DownloadQueueJournal.class.getSimpleName();
+
+    private static final String FILENAME = "download_queue";
+
+    private final AtomicFile mFile;
+
+    private final Object mLock = new Object();
+    // Only newer snapshot is written
+    private long mVersion;
+    private long mWrittenVersion;
+
+    DownloadQueueJournal(File dir) {
+        mFile = new AtomicFile(new File(dir, FILENAME));
+    }
+
+    /**
+     * Read gids in the journal, empty if there is no journal.
+     */
+    @NonNull
+    List<String> read() {
+        List<String> gids = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(mFile.openRead(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    gids.add(line);
+                }
+            }
+        } catch (IOException e) {
+            // No journal
+        }
+        return gids;
+    }
+
+    /**
+     * Write the gids in background. Snapshots are written in order,
+     * an old one never overwrites a new one.
+     */
+    void write(@NonNull List<String> gids) {
+        final long version;
+        synchronized (mLock) {
+            version = ++mVersion;
+        }
+        IoThreadPoolExecutor.getInstance().execute(() -> {
+            synchronized (mLock) {
+                if (version <= mWrittenVersion) {
+                    return;
+                }
+                mWrittenVersion = version;
+                writeInternal(gids);
+            }
+        });
+    }
+
+    private void writeInternal(List<String> gids) {
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            StringBuilder sb = new StringBuilder();
+            for (String gid : gids) {
+                sb.append(gid).append('\n');
+            }
+            fos.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+            mFile.finishWrite(fos);
+        } catch (IOException e) {
+            Log.e(TAG, "Can't write download queue", e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+        }
+    }
+}
@@ -42,11 +42,11 @@ import com.hippo.scene.StageActivity;
 import com.hippo.util.ReadableTime;
 import com.hippo.yorozuya.FileUtils;
 import com.hippo.yorozuya.SimpleHandler;
-import com.hippo.yorozuya.collect.LongList;
 import com.hippo.yorozuya.collect.SparseJBArray;
 import com.hippo.yorozuya.collect.SparseJLArray;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayList;
 import java.util.HashMap;
 
 public class DownloadService extends Service implements DownloadManager.DownloadListener {
@@ -113,6 +113,8 @@ public class DownloadService extends Service implements DownloadManager.Download
         }
         mDownloadManager = EhApplication.getDownloadManager(getApplicationContext());
         mDownloadManager.setDownloadListener(this);
+        // Continue downloads which were running when the process was killed
+        mDownloadManager.resumeQueue();
     }
 
     @Override
@@ -157,7 +159,7 @@ public class DownloadService extends Service implements DownloadManager.Download
                 mDownloadManager.startDownload(gi, label);
             }
         } else if (ACTION_START_RANGE.equals(action)) {
-            LongList gidList = intent.getParcelableExtra(KEY_GID_LIST);
+            ArrayList<String> gidList = intent.getStringArrayListExtra(KEY_GID_LIST);
             if (gidList != null && mDownloadManager != null) {
                 mDownloadManager.startRangeDownload(gidList);
             }
@@ -175,7 +177,7 @@ public class DownloadService extends Service implements DownloadManager.Download
                 mDownloadManager.stopCurrentDownload();
             }
         } else if (ACTION_STOP_RANGE.equals(action)) {
-            LongList gidList = intent.getParcelableExtra(KEY_GID_LIST);
+            ArrayList<String> gidList = intent.getStringArrayListExtra(KEY_GID_LIST);
             if (gidList != null && mDownloadManager != null) {
                 mDownloadManager.stopRangeDownload(gidList);
             }
@@ -189,7 +191,7 @@ public class DownloadService extends Service implements DownloadManager.Download
                 mDownloadManager.deleteDownload(gid);
             }
         } else if (ACTION_DELETE_RANGE.equals(action)) {
-            LongList gidList = intent.getParcelableExtra(KEY_GID_LIST);
+            ArrayList<String> gidList = intent.getStringArrayListExtra(KEY_GID_LIST);
             if (gidList != null && mDownloadManager != null) {
                 mDownloadManager.deleteRangeDownload(gidList);
             }
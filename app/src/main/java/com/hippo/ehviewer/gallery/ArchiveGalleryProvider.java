@@ -258,7 +258,7 @@ public class ArchiveGalleryProvider extends GalleryProvider2 {
         }
 
         try {
-          Image image = Image.decode(stream, true);
+          Image image = TiledPageDecoder.decode(file.getUri().toString() + '#' + index, stream);
           if (image != null) {
             notifyPageSucceed(index, image);
           } else {
@@ -0,0 +1,428 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.gallery;
+
+import android.content.Context;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.UiThread;
+import com.hippo.ehviewer.GetText;
+import com.hippo.ehviewer.R;
+import com.hippo.ehviewer.client.data.GalleryChapter;
+import com.hippo.ehviewer.client.data.GalleryChapterGroup;
+import com.hippo.ehviewer.client.data.GalleryDetail;
+import com.hippo.ehviewer.client.data.GalleryInfo;
+import com.hippo.ehviewer.spider.SpiderQueen;
+import com.hippo.glgallery.GalleryProvider;
+import com.hippo.image.Image;
+import com.hippo.unifile.UniFile;
+import com.hippo.util.Metrics;
+import com.hippo.yorozuya.SimpleHandler;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Reads the chapter and the chapters following it in {@link GalleryDetail#chapters}
+ * as one gallery. Pages of a chapter come after the pages of the chapter before it.
+ * <p>
+ * Each chapter has its own {@link SpiderQueen}. When the reader gets close to
+ * the end of the last opened chapter, the next chapter is opened, its page list
+ * is fetched and its first pages are downloaded. The queens of chapters left
+ * behind are released, their page counts are kept.
+ */
+public class ChapterGalleryProvider extends GalleryProvider2 {
+
+    // Open the next chapter when the reader is this close to the end
+    private static final int PREFETCH_DISTANCE = 5;
+    // Pages of the next chapter downloaded before the reader gets there
+    private static final int PREFETCH_PAGES = 3;
+    // Chapters before the current one which keep their queens
+    private static final int KEEP_BEHIND = 1;
+    // Activity recreate may called, so wait 3000ms
+    private static final long RELEASE_DELAY = 3000;
+
+    private final Context mContext;
+    private final GalleryInfo mGalleryInfo;
+    // The first chapter and the chapters following it
+    private final List<GalleryChapter> mChapterList;
+    // Opened chapters in order, only appended on UI thread
+    private final List<Chapter> mChapters = new CopyOnWriteArrayList<>();
+
+    private boolean mStarted;
+    // The chapter of the page the reader is on
+    @Nullable
+    private volatile Chapter mCurrentChapter;
+
+    public ChapterGalleryProvider(Context context, GalleryInfo galleryInfo,
+            List<GalleryChapter> chapterList) {
+        mContext = context;
+        mGalleryInfo = galleryInfo;
+        mChapterList = chapterList;
+    }
+
+    /**
+     * Returns the chapter of the gallery info and the chapters following it
+     * in the same group, empty if the chapter isn't found.
+     */
+    @NonNull
+    public static List<GalleryChapter> getChapterList(@NonNull GalleryInfo galleryInfo) {
+        List<GalleryChapter> result = new ArrayList<>();
+        if (!(galleryInfo instanceof GalleryDetail) || galleryInfo.cid == null) {
+            return result;
+        }
+        GalleryChapterGroup[] groups = ((GalleryDetail) galleryInfo).chapters;
+        if (groups == null) {
+            return result;
+        }
+        for (GalleryChapterGroup group : groups) {
+            List<GalleryChapter> list = group.getChapterList();
+            for (int i = 0, n = list.size(); i < n; i++) {
+                GalleryChapter chapter = list.get(i);
+                if (galleryInfo.cid.equals(chapter.getUrl()) || galleryInfo.cid.equals(chapter.getTitle())) {
+                    result.addAll(list.subList(i, n));
+                    return result;
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void start() {
+        super.start();
+
+        mStarted = true;
+        if (mChapters.isEmpty()) {
+            // Keep cid of the first chapter, it might be a title
+            mChapters.add(new Chapter(0, 0, mGalleryInfo.cid));
+        }
+        // Only the first chapter in the window is opened again
+        mChapters.get(0).obtain();
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+
+        mStarted = false;
+        for (Chapter chapter : mChapters) {
+            chapter.release();
+        }
+    }
+
+    /**
+     * Returns the chapter the reader is on, or the first chapter.
+     */
+    @Nullable
+    private Chapter getCurrentChapter() {
+        Chapter chapter = mCurrentChapter;
+        if (chapter == null && !mChapters.isEmpty()) {
+            chapter = mChapters.get(0);
+        }
+        return chapter;
+    }
+
+    /**
+     * Returns the chapter of the page, null if the page is not in opened chapters.
+     */
+    @Nullable
+    private Chapter getChapter(int index) {
+        for (Chapter chapter : mChapters) {
+            int pages = chapter.pages;
+            if (pages <= 0) {
+                return null;
+            }
+            if (index < chapter.offset + pages) {
+                return index >= chapter.offset ? chapter : null;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public int getStartPage() {
+        Chapter chapter = getCurrentChapter();
+        if (chapter == null) {
+            return super.getStartPage();
+        }
+        SpiderQueen queen = chapter.queen;
+        // The start of the chapter if its queen is released
+        return chapter.offset + (queen != null ? queen.getStartPage() : 0);
+    }
+
+    @Override
+    public void putStartPage(int page) {
+        // Save the position in the chapter of the page
+        Chapter chapter = getChapter(page);
+        if (chapter != null) {
+            mCurrentChapter = chapter;
+        }
+        SpiderQueen queen = chapter != null ? chapter.queen : null;
+        if (queen != null) {
+            queen.putStartPage(page - chapter.offset);
+        }
+    }
+
+    @NonNull
+    @Override
+    public String getImageFilename(int index) {
+        Chapter chapter = getChapter(index);
+        int position = chapter != null ? chapter.position : 0;
+        int page = chapter != null ? index - chapter.offset : index;
+        return String.format(Locale.US, "%s-%s-%d-%08d", mGalleryInfo.gid, mGalleryInfo.token, position + 1, page + 1);
+    }
+
+    @Override
+    public boolean save(int index, @NonNull UniFile file) {
+        Chapter chapter = getChapter(index);
+        SpiderQueen queen = chapter != null ? chapter.queen : null;
+        if (queen != null) {
+            return queen.save(index - chapter.offset, file);
+        } else {
+            return false;
+        }
+    }
+
+    @Nullable
+    @Override
+    public UniFile save(int index, @NonNull UniFile dir, @NonNull String filename) {
+        Chapter chapter = getChapter(index);
+        SpiderQueen queen = chapter != null ? chapter.queen : null;
+        if (queen != null) {
+            return queen.save(index - chapter.offset, dir, filename);
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Pages of the opened chapters, until the first chapter without page count.
+     */
+    @Override
+    public int size() {
+        int size = 0;
+        for (Chapter chapter : mChapters) {
+            int pages = chapter.pages;
+            if (pages <= 0) {
+                // The first chapter decides the state
+                return size == 0 ? pages : size;
+            }
+            size += pages;
+        }
+        return size == 0 ? GalleryProvider.STATE_ERROR : size;
+    }
+
+    private void notifyResult(int index, Object object) {
+        if (object instanceof Float) {
+            notifyPagePercent(index, (Float) object);
+        } else if (object instanceof String) {
+            notifyPageFailed(index, (String) object);
+        } else if (object == null) {
+            notifyPageWait(index);
+        }
+    }
+
+    private void request(int index, boolean force) {
+        Chapter chapter = getChapter(index);
+        if (chapter == null) {
+            return;
+        }
+
+        SpiderQueen queen = chapter.queen;
+        if (queen != null) {
+            int page = index - chapter.offset;
+            notifyResult(index, force ? queen.forceRequest(page) : queen.request(page));
+        } else {
+            // Released chapter, open it again on UI thread
+            notifyPageWait(index);
+        }
+
+        SimpleHandler.getInstance().post(() -> onReadChapter(chapter, index, queen == null, force));
+    }
+
+    @UiThread
+    private void onReadChapter(Chapter chapter, int index, boolean request, boolean force) {
+        if (!mStarted) {
+            return;
+        }
+
+        mCurrentChapter = chapter;
+
+        if (request) {
+            chapter.obtain();
+            SpiderQueen queen = chapter.queen;
+            if (queen != null) {
+                int page = index - chapter.offset;
+                notifyResult(index, force ? queen.forceRequest(page) : queen.request(page));
+            }
+        }
+
+        // Release chapters far from the current one
+        for (Chapter c : mChapters) {
+            if (c.position < chapter.position - KEEP_BEHIND || c.position > chapter.position + 1) {
+                c.release();
+            }
+        }
+
+        // Open the next chapter when the reader is near the end
+        int next = chapter.position + 1;
+        if (next < mChapterList.size() && index - chapter.offset >= chapter.pages - PREFETCH_DISTANCE) {
+            if (next == mChapters.size()) {
+                mChapters.add(new Chapter(next, chapter.offset + chapter.pages, mChapterList.get(next).getUrl()));
+            }
+            mChapters.get(next).obtain();
+        }
+    }
+
+    @Override
+    protected void onRequest(int index) {
+        request(index, false);
+    }
+
+    @Override
+    protected void onForceRequest(int index) {
+        request(index, true);
+    }
+
+    @Override
+    protected void onCancelRequest(int index) {
+        Chapter chapter = getChapter(index);
+        SpiderQueen queen = chapter != null ? chapter.queen : null;
+        if (queen != null) {
+            queen.cancelRequest(index - chapter.offset);
+        }
+    }
+
+    @Override
+    public String getError() {
+        Chapter chapter = getCurrentChapter();
+        SpiderQueen queen = chapter != null ? chapter.queen : null;
+        String error = queen != null ? queen.getError() : null;
+        return error != null ? error : GetText.getString(R.string.error_unknown);
+    }
+
+    private class Chapter implements SpiderQueen.OnSpiderListener {
+
+        // Position in mChapterList
+        final int position;
+        // Index of the first page in the provider
+        final int offset;
+        final GalleryInfo info;
+
+        @Nullable
+        volatile SpiderQueen queen;
+        // Page count, kept after the queen is released
+        volatile int pages = GalleryProvider.STATE_WAIT;
+        private boolean mPrefetched;
+
+        Chapter(int position, int offset, String cid) {
+            this.position = position;
+            this.offset = offset;
+            info = new GalleryInfo();
+            info.gid = mGalleryInfo.gid;
+            info.token = mGalleryInfo.token;
+            info.title = mGalleryInfo.title;
+            info.titleJpn = mGalleryInfo.titleJpn;
+            info.thumb = mGalleryInfo.thumb;
+            info.category = mGalleryInfo.category;
+            info.posted = mGalleryInfo.posted;
+            info.uploader = mGalleryInfo.uploader;
+            info.rating = mGalleryInfo.rating;
+            info.source = mGalleryInfo.source;
+            info.cid = cid;
+        }
+
+        @UiThread
+        void obtain() {
+            if (queen != null) {
+                return;
+            }
+            SpiderQueen spiderQueen = SpiderQueen.obtainSpiderQueen(mContext, info, SpiderQueen.MODE_READ);
+            spiderQueen.addOnSpiderListener(this);
+            queen = spiderQueen;
+            int size = spiderQueen.size();
+            if (size > 0 || pages <= 0) {
+                onGetPages(size);
+            }
+            if (position > 0 && !mPrefetched) {
+                // Download first pages before the reader gets there,
+                // the queen keeps them until the page list is fetched
+                mPrefetched = true;
+                spiderQueen.preload(0, PREFETCH_PAGES);
+            }
+        }
+
+        @UiThread
+        void release() {
+            SpiderQueen spiderQueen = queen;
+            if (spiderQueen != null) {
+                spiderQueen.removeOnSpiderListener(this);
+                SimpleHandler.getInstance().postDelayed(new EhGalleryProvider.ReleaseTask(spiderQueen), RELEASE_DELAY);
+                queen = null;
+            }
+        }
+
+        @Override
+        public void onGetPages(int pages) {
+            boolean changed = this.pages != pages;
+            this.pages = pages;
+            if (changed) {
+                notifyDataChanged();
+            }
+        }
+
+        @Override
+        public void onGet509(int index) {
+            notifyPageFailed(offset + index, GetText.getString(R.string.error_509));
+        }
+
+        @Override
+        public void onPageDownload(int index, long contentLength, long receivedSize, int bytesRead) {
+            if (contentLength > 0) {
+                notifyPagePercent(offset + index, (float) receivedSize / contentLength);
+            }
+        }
+
+        @Override
+        public void onPageSuccess(int index, int finished, int downloaded, int total) {
+            notifyDataChanged(offset + index);
+        }
+
+        @Override
+        public void onPageFailure(int index, String error, int finished, int downloaded, int total) {
+            notifyPageFailed(offset + index, error);
+        }
+
+        @Override
+        public void onFinish(int finished, int downloaded, int total) {
+        }
+
+        @Override
+        public void onGetImageSuccess(int index, Image image) {
+            long start = Metrics.start();
+            notifyPageSucceed(offset + index, image);
+            Metrics.record(Metrics.SPIDER_DELIVER, start);
+        }
+
+        @Override
+        public void onGetImageFailure(int index, String error) {
+            notifyPageFailed(offset + index, error);
+        }
+    }
+}
@@ -22,6 +22,7 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import com.hippo.ehviewer.GetText;
 import com.hippo.ehviewer.R;
+import com.hippo.ehviewer.spider.GalleryPack;
 import com.hippo.glgallery.GalleryPageView;
 import com.hippo.image.Image;
 import com.hippo.unifile.FilenameFilter;
@@ -49,6 +50,9 @@ public class DirGalleryProvider extends GalleryProvider2 implements Runnable {
     private final Stack<Integer> mRequests = new Stack<>();
     private final AtomicInteger mDecodingIndex = new AtomicInteger(GalleryPageView.INVALID_INDEX);
     private final AtomicReference<UniFile[]> mFileList = new AtomicReference<>();
+    // Pages in a pack, see GalleryPack
+    private final AtomicReference<GalleryPack> mPack = new AtomicReference<>();
+    private volatile int[] mPackIndexes;
     @Nullable
     private Thread mBgThread;
     private volatile int mSize = STATE_WAIT;
@@ -117,17 +121,54 @@ public class DirGalleryProvider extends GalleryProvider2 implements Runnable {
         return Integer.toString(index);
     }
 
-    @Override
-    public boolean save(int index, @NonNull UniFile file) {
+    /**
+     * Returns null if the index is invalid.
+     */
+    @Nullable
+    private InputStream openPageInputStream(int index) throws IOException {
+        GalleryPack pack = mPack.get();
+        int[] packIndexes = mPackIndexes;
+        if (pack != null && packIndexes != null) {
+            if (index < 0 || index >= packIndexes.length) {
+                return null;
+            }
+            return pack.openInputStream(packIndexes[index]);
+        }
+
         UniFile[] fileList = mFileList.get();
         if (null == fileList || index < 0 || index >= fileList.length) {
-            return false;
+            return null;
         }
+        return fileList[index].openInputStream();
+    }
 
+    /**
+     * Returns the extension of the page without dot.
+     */
+    @Nullable
+    private String getPageExtension(int index) {
+        GalleryPack pack = mPack.get();
+        int[] packIndexes = mPackIndexes;
+        if (pack != null && packIndexes != null) {
+            return index >= 0 && index < packIndexes.length ? pack.getExtension(packIndexes[index]) : null;
+        }
+
+        UniFile[] fileList = mFileList.get();
+        if (null == fileList || index < 0 || index >= fileList.length) {
+            return null;
+        }
+        return FileUtils.getExtensionFromFilename(fileList[index].getName());
+    }
+
+    @Override
+    public boolean save(int index, @NonNull UniFile file) {
         InputStream is = null;
         OutputStream os = null;
         try {
-            is = fileList[index].openInputStream();
+            is = openPageInputStream(index);
+            if (null == is) {
+                return false;
+            }
             os = file.openOutputStream();
             IOUtils.copy(is, os);
             return true;
@@ -142,13 +183,7 @@ public class DirGalleryProvider extends GalleryProvider2 implements Runnable {
     @Nullable
     @Override
     public UniFile save(int index, @NonNull UniFile dir, @NonNull String filename) {
-        UniFile[] fileList = mFileList.get();
-        if (null == fileList || index < 0 || index >= fileList.length) {
-            return null;
-        }
-
-        UniFile src = fileList[index];
-        String extension = FileUtils.getExtensionFromFilename(src.getName());
+        String extension = getPageExtension(index);
         UniFile dst = dir.subFile(null != extension ? filename + "." + extension : filename);
         if (null == dst) {
             return null;
@@ -157,7 +192,10 @@ public class DirGalleryProvider extends GalleryProvider2 implements Runnable {
         InputStream is = null;
         OutputStream os = null;
         try {
-            is = src.openInputStream();
+            is = openPageInputStream(index);
+            if (null == is) {
+                return null;
+            }
             os = dst.openOutputStream();
             IOUtils.copy(is, os);
             return dst;
@@ -169,8 +207,43 @@ public class DirGalleryProvider extends GalleryProvider2 implements Runnable {
         }
     }
 
+    /**
+     * Open the pack in the dir to read. Reading never changes the dir,
+     * a download might be writing the pack.
+     *
+     * @return page indexes in the pack, null if there is no pack
+     */
+    @Nullable
+    private int[] openPack() {
+        if (!GalleryPack.exists(mDir)) {
+            return null;
+        }
+        GalleryPack pack;
+        try {
+            pack = GalleryPack.openReadOnly(mDir);
+        } catch (IOException e) {
+            Log.e(TAG, "Can't open gallery pack", e);
+            return null;
+        }
+        mPack.lazySet(pack);
+        return pack.getIndexes();
+    }
+
     @Override
     public void run() {
+        // Pages of downloaded gallery might be in one pack
+        int[] packIndexes = openPack();
+        if (packIndexes != null) {
+            mPackIndexes = packIndexes;
+            mSize = packIndexes.length;
+            notifyDataChanged();
+            decodeLoop(packIndexes.length);
+            IOUtils.closeQuietly(mPack.getAndSet(null));
+            mPackIndexes = null;
+            Log.i(TAG, "ImageDecoder end");
+            return;
+        }
+
         // It may take a long time, so run it in new thread
         UniFile[] files = mDir.listFiles(imageFilter);
 
@@ -195,6 +268,15 @@ public class DirGalleryProvider extends GalleryProvider2 implements Runnable {
         mSize = files.length;
         notifyDataChanged();
 
+        decodeLoop(files.length);
+
+        // Clear file list
+        mFileList.lazySet(null);
+
+        Log.i(TAG, "ImageDecoder end");
+    }
+
+    private void decodeLoop(int size) {
         while (!Thread.currentThread().isInterrupted()) {
             int index;
             synchronized (mRequests) {
@@ -212,7 +294,7 @@ public class DirGalleryProvider extends GalleryProvider2 implements Runnable {
             }
 
             // Check index valid
-            if (index < 0 || index >= files.length) {
+            if (index < 0 || index >= size) {
                 mDecodingIndex.lazySet(GalleryPageView.INVALID_INDEX);
                 notifyPageFailed(index, GetText.getString(R.string.error_out_of_range));
                 continue;
@@ -220,8 +302,18 @@ public class DirGalleryProvider extends GalleryProvider2 implements Runnable {
 
             InputStream is = null;
             try {
-                is = files[index].openInputStream();
-                Image image = Image.decode(is, true);
+                is = openPageInputStream(index);
+                if (is == null) {
+                    throw new IOException("Can't open page " + index);
+                }
+                final int page = index;
+                Image image = TiledPageDecoder.decode(mDir.getUri().toString() + '#' + index, is, () -> {
+                    InputStream stream = openPageInputStream(page);
+                    if (stream == null) {
+                        throw new IOException("Can't open page " + page);
+                    }
+                    return stream;
+                });
                 mDecodingIndex.lazySet(GalleryPageView.INVALID_INDEX);
                 if (image != null) {
                     notifyPageSucceed(index, image);
@@ -236,11 +328,6 @@ public class DirGalleryProvider extends GalleryProvider2 implements Runnable {
             }
             mDecodingIndex.lazySet(GalleryPageView.INVALID_INDEX);
         }
-
-        // Clear file list
-        mFileList.lazySet(null);
-
-        Log.i(TAG, "ImageDecoder end");
     }
 
     private static FilenameFilter imageFilter =
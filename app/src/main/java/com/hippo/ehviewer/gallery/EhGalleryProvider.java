@@ -24,6 +24,7 @@ import com.hippo.ehviewer.spider.SpiderQueen;
 import com.hippo.glgallery.GalleryProvider;
 import com.hippo.image.Image;
 import com.hippo.unifile.UniFile;
+import com.hippo.util.Metrics;
 import com.hippo.yorozuya.SimpleHandler;
 import java.util.Locale;
 
@@ -186,7 +187,9 @@ public class EhGalleryProvider extends GalleryProvider2 implements SpiderQueen.O
 
     @Override
     public void onGetImageSuccess(int index, Image image) {
+        long start = Metrics.start();
         notifyPageSucceed(index, image);
+        Metrics.record(Metrics.SPIDER_DELIVER, start);
     }
 
     @Override
@@ -194,7 +197,7 @@ public class EhGalleryProvider extends GalleryProvider2 implements SpiderQueen.O
         notifyPageFailed(index, error);
     }
 
-    private static class ReleaseTask implements Runnable {
+    static class ReleaseTask implements Runnable {
 
         private SpiderQueen mSpiderQueen;
 
@@ -37,6 +37,13 @@ public abstract class GalleryProvider2 extends GalleryProvider {
 
     public void putStartPage(int page) {}
 
+    @Override
+    public void stop() {
+        super.stop();
+        // Tiles are only reused while reading
+        TiledPageDecoder.clearCache();
+    }
+
     /**
      * @return without extension
      */
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.gallery;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.collection.LruCache;
+import com.hippo.image.Image;
+import com.hippo.yorozuya.IOUtils;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes pages for the reader.
+ * <p>
+ * Most pages are decoded by {@link Image#decode(InputStream, boolean)} as before.
+ * Pages taller or wider than {@link #MAX_SIDE}, like long strips, are decoded
+ * in tiles by {@link BitmapRegionDecoder}, with a sample size which keeps them
+ * in {@link #MAX_PIXELS}. Decoded tiles are kept in a small cache keyed by page,
+ * tile and sample size, so decoding the page again skips them. Decoding stops
+ * between tiles if the thread is interrupted.
+ * <p>
+ * If the bounds can't be read in {@link #MARK_LIMIT}, the page is opened again
+ * by the {@link Opener} and decoded by {@link Image#decode(InputStream, boolean)}.
+ */
+public final class TiledPageDecoder {
+
+    private static final String TAG = TiledPageDecoder.class.getSimpleName();
+
+    // Pages with a longer side are decoded in tiles
+    private static final int MAX_SIDE = 4096;
+    // Pixels of a decoded tiled page
+    private static final int MAX_PIXELS = 4096 * 1024;
+    // Height of a tile in source pixels
+    private static final int TILE_HEIGHT = 1024;
+    // Enough to read the bounds, even with a big exif
+    private static final int MARK_LIMIT = 1024 * 1024;
+
+    private static final int CACHE_SIZE = 8 * 1024 * 1024;
+
+    private static final LruCache<String, Bitmap> sTileCache = new LruCache<String, Bitmap>(CACHE_SIZE) {
+        @Override
+        protected int sizeOf(@NonNull String key, @NonNull Bitmap value) {
+            return value.getByteCount();
+        }
+    };
+
+    /**
+     * Opens the page again from the start.
+     */
+    public interface Opener {
+        @NonNull
+        InputStream open() throws IOException;
+    }
+
+    private TiledPageDecoder() {}
+
+    /**
+     * Decode the page.
+     *
+     * @param key identifies the page for the tile cache, null for no cache
+     * @return null if it can't be decoded
+     */
+    @Nullable
+    public static Image decode(@Nullable String key, @NonNull InputStream is) {
+        return decode(key, is, null);
+    }
+
+    /**
+     * Decode the page.
+     *
+     * @param key identifies the page for the tile cache, null for no cache
+     * @param opener opens the page again if the stream can't be reset, null if it can't be opened again
+     * @return null if it can't be decoded
+     */
+    @Nullable
+    public static Image decode(@Nullable String key, @NonNull InputStream is, @Nullable Opener opener) {
+        BufferedInputStream bis = new BufferedInputStream(is, 8 * 1024);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        try {
+            bis.mark(MARK_LIMIT);
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeStream(bis, null, options);
+            bis.reset();
+        } catch (IOException e) {
+            // The bounds are beyond the mark, read the page from the start
+            return opener != null ? decodeAgain(opener) : null;
+        }
+
+        int width = options.outWidth;
+        int height = options.outHeight;
+        if (width <= 0 || height <= 0 || (width <= MAX_SIDE && height <= MAX_SIDE) ||
+                "image/gif".equals(options.outMimeType)) {
+            return Image.decode(bis, true);
+        }
+
+        try {
+            return decodeTiles(key, bis, width, height, options.outMimeType);
+        } catch (IOException | OutOfMemoryError e) {
+            Log.e(TAG, "Can't decode tiles of " + width + "x" + height + " page", e);
+            return null;
+        }
+    }
+
+    @Nullable
+    private static Image decodeAgain(@NonNull Opener opener) {
+        InputStream is = null;
+        try {
+            is = opener.open();
+            return Image.decode(is, true);
+        } catch (IOException e) {
+            Log.e(TAG, "Can't open the page again", e);
+            return null;
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    private static int getSampleSize(int width, int height) {
+        int sampleSize = 1;
+        while ((long) (width / sampleSize) * (height / sampleSize) > MAX_PIXELS) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    @Nullable
+    private static Image decodeTiles(@Nullable String key, InputStream is,
+            int width, int height, String mimeType) throws IOException {
+        int sampleSize = getSampleSize(width, height);
+        // Jpeg has no alpha
+        Bitmap.Config config = "image/jpeg".equals(mimeType) ?
+                Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+
+        BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(is, false);
+        Bitmap page = null;
+        try {
+            page = Bitmap.createBitmap(ceilDiv(width, sampleSize), ceilDiv(height, sampleSize), config);
+            Canvas canvas = new Canvas(page);
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+            options.inPreferredConfig = config;
+            Rect rect = new Rect();
+
+            for (int tile = 0, top = 0; top < height; tile++, top += TILE_HEIGHT) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return null;
+                }
+
+                String tileKey = key != null ? key + '/' + tile + '/' + sampleSize : null;
+                Bitmap bitmap = tileKey != null ? sTileCache.get(tileKey) : null;
+                if (bitmap == null) {
+                    rect.set(0, top, width, Math.min(top + TILE_HEIGHT, height));
+                    bitmap = decoder.decodeRegion(rect, options);
+                    if (bitmap == null) {
+                        return null;
+                    }
+                    if (tileKey != null) {
+                        sTileCache.put(tileKey, bitmap);
+                    }
+                }
+                canvas.drawBitmap(bitmap, 0, top / sampleSize, null);
+            }
+
+            return Image.create(page);
+        } finally {
+            decoder.recycle();
+            // Image has its own copy of the pixels
+            if (page != null) {
+                page.recycle();
+            }
+        }
+    }
+
+    private static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
+    }
+
+    /**
+     * Drop all cached tiles.
+     */
+    public static void clearCache() {
+        sTileCache.evictAll();
+    }
+}
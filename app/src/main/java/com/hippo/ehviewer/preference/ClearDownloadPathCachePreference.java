@@ -19,8 +19,8 @@ package com.hippo.ehviewer.preference;
 import android.content.Context;
 import android.util.AttributeSet;
 import androidx.appcompat.app.AlertDialog;
-import com.hippo.ehviewer.EhDB;
 import com.hippo.ehviewer.R;
+import com.hippo.ehviewer.spider.DownloadDirRegistry;
 import com.hippo.preference.MessagePreference;
 
 public class ClearDownloadPathCachePreference extends MessagePreference {
@@ -56,7 +56,7 @@ public class ClearDownloadPathCachePreference extends MessagePreference {
         super.onDialogClosed(positiveResult);
 
         if (positiveResult) {
-            EhDB.clearDownloadDirname();
+            DownloadDirRegistry.clear();
         }
     }
 }
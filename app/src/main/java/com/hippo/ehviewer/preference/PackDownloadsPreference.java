@@ -0,0 +1,93 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.preference;
+
+import android.content.Context;
+import android.util.AttributeSet;
+import android.widget.Toast;
+import androidx.annotation.NonNull;
+import com.hippo.ehviewer.EhApplication;
+import com.hippo.ehviewer.R;
+import com.hippo.ehviewer.dao.DownloadInfo;
+import com.hippo.ehviewer.spider.GalleryPack;
+import com.hippo.ehviewer.spider.SpiderDen;
+import com.hippo.unifile.UniFile;
+import java.util.List;
+
+/**
+ * Move pages of finished downloads to gallery packs.
+ */
+public class PackDownloadsPreference extends TaskPreference {
+
+    public PackDownloadsPreference(Context context) {
+        super(context);
+    }
+
+    public PackDownloadsPreference(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    public PackDownloadsPreference(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+    }
+
+    @NonNull
+    @Override
+    protected Task onCreateTask() {
+        return new PackTask(getContext());
+    }
+
+    private static class PackTask extends Task {
+
+        private final EhApplication mApplication;
+        private final List<DownloadInfo> mInfoList;
+
+        public PackTask(@NonNull Context context) {
+            super(context);
+            mApplication = (EhApplication) context.getApplicationContext();
+            // Downloads being running are left alone
+            mInfoList = EhApplication.getDownloadManager(mApplication).getFinishedDownloadInfoList();
+        }
+
+        @Override
+        protected Object doInBackground(Void... params) {
+            int count = 0;
+            for (DownloadInfo info : mInfoList) {
+                UniFile dir = SpiderDen.getGalleryDownloadDir(info);
+                if (dir != null && dir.isDirectory() && GalleryPack.convert(dir) > 0) {
+                    ++count;
+                }
+            }
+            return count;
+        }
+
+        @Override
+        protected void onPostExecute(Object o) {
+            int count;
+            if (o instanceof Integer) {
+                count = (Integer) o;
+            } else {
+                count = 0;
+            }
+
+            Toast.makeText(mApplication, 0 == count ?
+                    mApplication.getString(R.string.settings_download_pack_existing_nothing) :
+                    mApplication.getString(R.string.settings_download_pack_existing_done, count), Toast.LENGTH_SHORT).show();
+            super.onPostExecute(o);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.spider;
+
+import android.net.Uri;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import com.hippo.ehviewer.EhDB;
+import com.hippo.ehviewer.Settings;
+import com.hippo.ehviewer.client.EhUtils;
+import com.hippo.ehviewer.client.data.GalleryInfo;
+import com.hippo.unifile.UniFile;
+import com.hippo.util.IoThreadPoolExecutor;
+import com.hippo.yorozuya.FileUtils;
+import com.hippo.yorozuya.SimpleHandler;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+/**
+ * Maps gallery cid to the name of its download directory.
+ * <p>
+ * All dirnames are loaded from db once, changes are written back in batches.
+ * The download location is listed once, the names are kept sorted
+ * to find the directories of a gallery which has no dirname in db.
+ */
+public final class DownloadDirRegistry {
+
+    private static final String TAG = DownloadDirRegistry.class.getSimpleName();
+
+    private static final long FLUSH_DELAY = 1000;
+
+    // cid -> dirname, null before loaded
+    @Nullable
+    private static Map<String, String> sDirnames;
+    private static volatile boolean sStale;
+    // Names in download location, null before listed
+    @Nullable
+    private static NavigableSet<String> sFilenames;
+    @Nullable
+    private static Uri sFilenamesRoot;
+
+    // cid -> dirname to write, null value to remove
+    private static final Map<String, String> sPending = new HashMap<>();
+    private static boolean sFlushScheduled;
+    private static final Object sFlushLock = new Object();
+
+    private static final Runnable sFlushTask = () ->
+            IoThreadPoolExecutor.getInstance().execute(DownloadDirRegistry::flush);
+
+    private DownloadDirRegistry() {}
+
+    /**
+     * Load dirnames and list download location in background.
+     */
+    public static void initialize() {
+        IoThreadPoolExecutor.getInstance().execute(() -> {
+            synchronized (DownloadDirRegistry.class) {
+                ensureLoaded();
+                UniFile root = Settings.getDownloadLocation();
+                if (root != null) {
+                    ensureListed(root);
+                }
+            }
+        });
+    }
+
+    private static Map<String, String> ensureLoaded() {
+        Map<String, String> dirnames = sDirnames;
+        if (dirnames == null || sStale) {
+            sStale = false;
+            dirnames = EhDB.getAllDownloadDirnames();
+            for (Map.Entry<String, String> entry : dirnames.entrySet()) {
+                // Some dirname may be invalid in some version
+                String dirname = entry.getValue();
+                String sanitized = FileUtils.sanitizeFilename(dirname);
+                if (!sanitized.equals(dirname)) {
+                    entry.setValue(sanitized);
+                    putPending(entry.getKey(), sanitized);
+                }
+            }
+            // Changes not written yet
+            for (Map.Entry<String, String> entry : sPending.entrySet()) {
+                if (entry.getValue() == null) {
+                    dirnames.remove(entry.getKey());
+                } else {
+                    dirnames.put(entry.getKey(), entry.getValue());
+                }
+            }
+            sDirnames = dirnames;
+        }
+        return dirnames;
+    }
+
+    private static NavigableSet<String> ensureListed(@NonNull UniFile root) {
+        NavigableSet<String> filenames = sFilenames;
+        if (filenames == null || !root.getUri().equals(sFilenamesRoot)) {
+            filenames = new TreeSet<>();
+            UniFile[] files = root.listFiles();
+            if (files != null) {
+                for (UniFile file : files) {
+                    String name = file.getName();
+                    if (name != null) {
+                        filenames.add(name);
+                    }
+                }
+            }
+            sFilenames = filenames;
+            sFilenamesRoot = root.getUri();
+        }
+        return filenames;
+    }
+
+    /**
+     * Returns the dirname of the gallery in the download location.
+     * The dirname is found or created if the gallery has no dirname yet.
+     */
+    @NonNull
+    public static synchronized String getDirname(@NonNull UniFile root, @NonNull GalleryInfo galleryInfo) {
+        Map<String, String> dirnames = ensureLoaded();
+        String cid = galleryInfo.getCid();
+        String dirname = dirnames.get(cid);
+        if (dirname != null) {
+            return dirname;
+        }
+
+        // Find it, get max-length-name dir
+        String prefix = cid + "-";
+        int maxLength = -1;
+        for (String name : ensureListed(root).subSet(prefix, true, prefix + Character.MAX_VALUE, false)) {
+            if (name.length() > maxLength) {
+                UniFile file = root.subFile(name);
+                if (file != null && file.isDirectory()) {
+                    maxLength = name.length();
+                    dirname = name;
+                }
+            }
+        }
+
+        // Create it
+        if (dirname == null) {
+            dirname = FileUtils.sanitizeFilename(prefix + EhUtils.getSuitableTitle(galleryInfo));
+        }
+
+        dirnames.put(cid, dirname);
+        putPending(cid, dirname);
+        return dirname;
+    }
+
+    /**
+     * Forget the dirname of the gallery, and the directories of it in the listed names.
+     */
+    public static synchronized void remove(@NonNull String cid) {
+        ensureLoaded().remove(cid);
+        if (sFilenames != null) {
+            String prefix = cid + "-";
+            sFilenames.subSet(prefix, true, prefix + Character.MAX_VALUE, false).clear();
+        }
+        putPending(cid, null);
+    }
+
+    public static synchronized void clear() {
+        sPending.clear();
+        if (sDirnames != null) {
+            sDirnames.clear();
+        }
+        sFilenames = null;
+        sFilenamesRoot = null;
+        EhDB.clearDownloadDirname();
+    }
+
+    /**
+     * Load dirnames from db again on next access.
+     * Call it after db is changed behind the registry.
+     * It doesn't lock, so it's safe to call it with the lock of {@link EhDB}.
+     */
+    public static void reload() {
+        sStale = true;
+    }
+
+    private static void putPending(String cid, @Nullable String dirname) {
+        sPending.put(cid, dirname);
+        if (!sFlushScheduled) {
+            sFlushScheduled = true;
+            SimpleHandler.getInstance().postDelayed(sFlushTask, FLUSH_DELAY);
+        }
+    }
+
+    private static void flush() {
+        // Keep flushes in order
+        synchronized (sFlushLock) {
+            Map<String, String> pending;
+            synchronized (DownloadDirRegistry.class) {
+                sFlushScheduled = false;
+                if (sPending.isEmpty()) {
+                    return;
+                }
+                pending = new HashMap<>(sPending);
+                sPending.clear();
+            }
+            EhDB.putDownloadDirnames(pending);
+            Log.d(TAG, "Write " + pending.size() + " dirnames");
+        }
+    }
+}
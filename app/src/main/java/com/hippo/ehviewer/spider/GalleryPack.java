@@ -0,0 +1,814 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.spider;
+
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import com.hippo.ehviewer.AppConfig;
+import com.hippo.ehviewer.gallery.GalleryProvider2;
+import com.hippo.streampipe.InputStreamPipe;
+import com.hippo.streampipe.OutputStreamPipe;
+import com.hippo.unifile.UniFile;
+import com.hippo.unifile.UniRandomAccessFile;
+import com.hippo.yorozuya.IOUtils;
+import com.hippo.yorozuya.Utilities;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * All pages of a downloaded gallery in one file.
+ * <p>
+ * Pages are appended as records, an index of all pages is written after
+ * the last record. New records overwrite the index, a new one is written
+ * every {@link #INDEX_INTERVAL} records and when the pack is closed.
+ * If the process is killed before the index is written, the index is
+ * rebuilt from records, a record is only taken if its checksum matches.
+ * <pre>
+ * header:  magic(4) version(4)
+ * record:  magic(4) index(4) length(4) crc(4) extLength(1) extension data
+ * index:   magic(4) count(4) [index(4) offset(8) length(4) extLength(1) extension]... padding
+ * trailer: indexOffset(8) magic(4)
+ * </pre>
+ * A record of length -1 removes the page.
+ * <p>
+ * There is one writable pack for a file, {@link #open(UniFile)} returns the same one
+ * until all of them are closed. Readers which don't write use {@link #openReadOnly(UniFile)}.
+ * Pages are streamed, a page being written goes to a temp file until it's committed.
+ */
+public final class GalleryPack implements Closeable {
+
+    private static final String TAG = GalleryPack.class.getSimpleName();
+
+    public static final String FILENAME = ".ehviewer_pack";
+
+    private static final int HEADER_MAGIC = 0x4548504B; // EHPK
+    private static final int RECORD_MAGIC = 0x50414745; // PAGE
+    private static final int INDEX_MAGIC = 0x494E4458; // INDX
+    private static final int TRAILER_MAGIC = 0x454E4421; // END!
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 17;
+    private static final int TRAILER_SIZE = 12;
+
+    // Records written before the index is written again
+    private static final int INDEX_INTERVAL = 32;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Length of a record being written, it's broken if it's left
+    private static final int UNKNOWN_LENGTH = -2;
+
+    // Writable packs by file uri, guarded by itself
+    private static final Map<String, GalleryPack> sPacks = new HashMap<>();
+
+    private static class Entry {
+        // Offset of data
+        final long offset;
+        final int length;
+        final String extension;
+
+        Entry(long offset, int length, String extension) {
+            this.offset = offset;
+            this.length = length;
+            this.extension = extension;
+        }
+    }
+
+    private final UniRandomAccessFile mFile;
+    // Key in sPacks, null for read-only
+    @Nullable
+    private final String mKey;
+    // Guarded by sPacks
+    private int mReferences;
+    private final Map<Integer, Entry> mEntries = new HashMap<>();
+    // Where the next record goes, the index is after it
+    private long mEnd;
+    private long mLength;
+    // Records after the last index
+    private int mUnindexed;
+
+    private GalleryPack(UniRandomAccessFile file, @Nullable String key) {
+        mFile = file;
+        mKey = key;
+    }
+
+    /**
+     * Open the pack in the dir, create it if it doesn't exist.
+     * It's shared with others which open the same pack, each one must be closed.
+     */
+    @NonNull
+    public static GalleryPack open(@NonNull UniFile dir) throws IOException {
+        UniFile file = dir.findFile(FILENAME);
+        if (file == null) {
+            file = dir.createFile(FILENAME);
+        }
+        if (file == null) {
+            throw new IOException("Can't create " + FILENAME);
+        }
+
+        String key = file.getUri().toString();
+        synchronized (sPacks) {
+            GalleryPack pack = sPacks.get(key);
+            if (pack != null) {
+                pack.mReferences++;
+                return pack;
+            }
+
+            pack = new GalleryPack(file.createRandomAccessFile("rw"), key);
+            pack.mReferences = 1;
+            try {
+                pack.load();
+            } catch (IOException e) {
+                pack.close();
+                throw e;
+            }
+            sPacks.put(key, pack);
+            return pack;
+        }
+    }
+
+    /**
+     * Open the pack in the dir to read pages. Nothing is written to it,
+     * pages added after it's opened are not in it.
+     */
+    @NonNull
+    public static GalleryPack openReadOnly(@NonNull UniFile dir) throws IOException {
+        UniFile file = dir.findFile(FILENAME);
+        if (file == null) {
+            throw new IOException("No " + FILENAME);
+        }
+
+        GalleryPack pack = new GalleryPack(file.createRandomAccessFile("r"), null);
+        try {
+            pack.load();
+        } catch (IOException e) {
+            pack.close();
+            throw e;
+        }
+        return pack;
+    }
+
+    private boolean isReadOnly() {
+        return mKey == null;
+    }
+
+    private void checkWritable() throws IOException {
+        if (isReadOnly()) {
+            throw new IOException(FILENAME + " is read-only");
+        }
+    }
+
+    /**
+     * Returns true if there is a pack in the dir.
+     */
+    public static boolean exists(@NonNull UniFile dir) {
+        return dir.findFile(FILENAME) != null;
+    }
+
+    /**
+     * Move pages in separate image files of the dir to the pack.
+     *
+     * @return the number of moved pages, -1 for error
+     */
+    public static int convert(@NonNull UniFile dir) {
+        GalleryPack pack = null;
+        try {
+            pack = open(dir);
+            return pack.importFiles(dir);
+        } catch (IOException e) {
+            Log.e(TAG, "Can't convert " + dir.getName(), e);
+            return -1;
+        } finally {
+            IOUtils.closeQuietly(pack);
+        }
+    }
+
+    private void readFully(byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            int read = mFile.read(buffer, offset, length);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            offset += read;
+            length -= read;
+        }
+    }
+
+    private void load() throws IOException {
+        mLength = mFile.length();
+
+        if (mLength == 0) {
+            if (isReadOnly()) {
+                // Not written yet
+                mEnd = 0;
+                return;
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(HEADER_MAGIC).putInt(VERSION);
+            mFile.seek(0);
+            mFile.write(header.array(), 0, HEADER_SIZE);
+            mEnd = HEADER_SIZE;
+            mLength = HEADER_SIZE;
+            writeIndex();
+            return;
+        }
+
+        byte[] header = new byte[HEADER_SIZE];
+        mFile.seek(0);
+        readFully(header, 0, HEADER_SIZE);
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        if (buffer.getInt() != HEADER_MAGIC || buffer.getInt() != VERSION) {
+            throw new IOException("Not a gallery pack");
+        }
+
+        if (!readIndex()) {
+            Log.w(TAG, "Rebuild index of " + FILENAME);
+            recover();
+            if (!isReadOnly()) {
+                writeIndex();
+            }
+        }
+    }
+
+    private boolean readIndex() throws IOException {
+        if (mLength < HEADER_SIZE + TRAILER_SIZE + 8) {
+            return false;
+        }
+
+        byte[] trailer = new byte[TRAILER_SIZE];
+        mFile.seek(mLength - TRAILER_SIZE);
+        readFully(trailer, 0, TRAILER_SIZE);
+        ByteBuffer buffer = ByteBuffer.wrap(trailer);
+        long indexOffset = buffer.getLong();
+        if (buffer.getInt() != TRAILER_MAGIC || indexOffset < HEADER_SIZE ||
+                indexOffset > mLength - TRAILER_SIZE - 8) {
+            return false;
+        }
+
+        byte[] index = new byte[(int) (mLength - TRAILER_SIZE - indexOffset)];
+        mFile.seek(indexOffset);
+        readFully(index, 0, index.length);
+        buffer = ByteBuffer.wrap(index);
+        // A new record might be written over the index, but not the new index
+        if (buffer.getInt() != INDEX_MAGIC) {
+            return false;
+        }
+        try {
+            for (int i = 0, n = buffer.getInt(); i < n; i++) {
+                int page = buffer.getInt();
+                long offset = buffer.getLong();
+                int length = buffer.getInt();
+                byte[] extension = new byte[buffer.get()];
+                buffer.get(extension);
+                if (offset < HEADER_SIZE || offset + length > indexOffset) {
+                    mEntries.clear();
+                    return false;
+                }
+                mEntries.put(page, new Entry(offset, length,
+                        new String(extension, StandardCharsets.US_ASCII)));
+            }
+        } catch (RuntimeException e) {
+            mEntries.clear();
+            return false;
+        }
+        mEnd = indexOffset;
+        return true;
+    }
+
+    /**
+     * Take records one by one until a broken one.
+     */
+    private void recover() throws IOException {
+        mEntries.clear();
+        long position = HEADER_SIZE;
+        byte[] header = new byte[RECORD_HEADER_SIZE];
+        byte[] data = new byte[BUFFER_SIZE];
+        CRC32 crc = new CRC32();
+        while (position + RECORD_HEADER_SIZE <= mLength) {
+            mFile.seek(position);
+            readFully(header, 0, RECORD_HEADER_SIZE);
+            ByteBuffer buffer = ByteBuffer.wrap(header);
+            if (buffer.getInt() != RECORD_MAGIC) {
+                break;
+            }
+            int page = buffer.getInt();
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            int extensionLength = buffer.get();
+            if (extensionLength < 0) {
+                break;
+            }
+            long offset = position + RECORD_HEADER_SIZE + extensionLength;
+            if (length == -1) {
+                mEntries.remove(page);
+                position = offset;
+                continue;
+            }
+            if (length < 0 || offset + length > mLength) {
+                break;
+            }
+
+            byte[] extension = new byte[extensionLength];
+            readFully(extension, 0, extensionLength);
+            crc.reset();
+            for (int remaining = length; remaining > 0; ) {
+                int n = Math.min(remaining, data.length);
+                readFully(data, 0, n);
+                crc.update(data, 0, n);
+                remaining -= n;
+            }
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+
+            mEntries.put(page, new Entry(offset, length,
+                    new String(extension, StandardCharsets.US_ASCII)));
+            position = offset + length;
+        }
+        mEnd = position;
+    }
+
+    private void writeIndex() throws IOException {
+        int size = 8 + TRAILER_SIZE;
+        for (Entry entry : mEntries.values()) {
+            size += 17 + entry.extension.length();
+        }
+        // Never leave an old trailer after the new one
+        size = (int) Math.max(size, mLength - mEnd);
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(INDEX_MAGIC);
+        buffer.putInt(mEntries.size());
+        for (Map.Entry<Integer, Entry> e : mEntries.entrySet()) {
+            Entry entry = e.getValue();
+            byte[] extension = entry.extension.getBytes(StandardCharsets.US_ASCII);
+            buffer.putInt(e.getKey());
+            buffer.putLong(entry.offset);
+            buffer.putInt(entry.length);
+            buffer.put((byte) extension.length);
+            buffer.put(extension);
+        }
+        buffer.position(size - TRAILER_SIZE);
+        buffer.putLong(mEnd);
+        buffer.putInt(TRAILER_MAGIC);
+
+        mFile.seek(mEnd);
+        mFile.write(buffer.array(), 0, size);
+        mLength = mEnd + size;
+        mUnindexed = 0;
+    }
+
+    private void writeRecordHeader(int index, byte[] ext, int length, int checksum) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE + ext.length);
+        header.putInt(RECORD_MAGIC);
+        header.putInt(index);
+        header.putInt(length);
+        header.putInt(checksum);
+        header.put((byte) ext.length);
+        header.put(ext);
+        mFile.seek(mEnd);
+        mFile.write(header.array(), 0, header.capacity());
+    }
+
+    /**
+     * Data is streamed after a header of unknown length, which breaks the old index,
+     * then the header is written again with the length and checksum.
+     *
+     * @param data null for removing the page
+     */
+    private void writeRecord(int index, @Nullable String extension, @Nullable InputStream data)
+            throws IOException {
+        checkWritable();
+        byte[] ext = extension != null ? extension.getBytes(StandardCharsets.US_ASCII) : new byte[0];
+        long offset = mEnd + RECORD_HEADER_SIZE + ext.length;
+        int length = -1;
+        int checksum = 0;
+        if (data != null) {
+            writeRecordHeader(index, ext, UNKNOWN_LENGTH, 0);
+            CRC32 crc = new CRC32();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long size = 0;
+            mFile.seek(offset);
+            for (int n; (n = data.read(buffer)) != -1; ) {
+                mFile.write(buffer, 0, n);
+                crc.update(buffer, 0, n);
+                size += n;
+            }
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Page " + index + " is too large");
+            }
+            length = (int) size;
+            checksum = (int) crc.getValue();
+        }
+
+        writeRecordHeader(index, ext, length, checksum);
+
+        if (data != null) {
+            mEntries.put(index, new Entry(offset, length, extension));
+            mEnd = offset + length;
+        } else {
+            mEntries.remove(index);
+            mEnd = offset;
+        }
+        mLength = Math.max(mLength, mEnd);
+        if (++mUnindexed >= INDEX_INTERVAL) {
+            writeIndex();
+        }
+    }
+
+    /**
+     * Add the page, an old one is replaced.
+     *
+     * @param extension without dot
+     */
+    public synchronized void append(int index, @NonNull String extension, @NonNull byte[] data, int length)
+            throws IOException {
+        writeRecord(index, extension, new ByteArrayInputStream(data, 0, length));
+    }
+
+    /**
+     * Add the page read from the stream to the end, an old one is replaced.
+     *
+     * @param extension without dot
+     */
+    public synchronized void append(int index, @NonNull String extension, @NonNull InputStream is)
+            throws IOException {
+        writeRecord(index, extension, is);
+    }
+
+    public synchronized boolean remove(int index) {
+        if (!mEntries.containsKey(index)) {
+            return false;
+        }
+        try {
+            writeRecord(index, null, null);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Can't remove page " + index, e);
+            return false;
+        }
+    }
+
+    public synchronized boolean contains(int index) {
+        return mEntries.containsKey(index);
+    }
+
+    /**
+     * Returns the extension of the page without dot, null if there is no such page.
+     */
+    @Nullable
+    public synchronized String getExtension(int index) {
+        Entry entry = mEntries.get(index);
+        return entry != null ? entry.extension : null;
+    }
+
+    /**
+     * Returns indexes of all pages in ascending order.
+     */
+    @NonNull
+    public synchronized int[] getIndexes() {
+        int[] indexes = new int[mEntries.size()];
+        int i = 0;
+        for (int index : mEntries.keySet()) {
+            indexes[i++] = index;
+        }
+        Arrays.sort(indexes);
+        return indexes;
+    }
+
+    /**
+     * Read the page from the pack without loading all of it.
+     */
+    @NonNull
+    public synchronized InputStream openInputStream(int index) throws IOException {
+        Entry entry = mEntries.get(index);
+        if (entry == null) {
+            throw new IOException("No page " + index);
+        }
+        return new PageInputStream(entry);
+    }
+
+    /**
+     * Move pages in separate image files of the dir to the pack.
+     * A file is removed after it is in the pack.
+     *
+     * @return the number of moved pages
+     */
+    public int importFiles(@NonNull UniFile dir) throws IOException {
+        UniFile[] files = dir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+
+        int count = 0;
+        for (UniFile file : files) {
+            String name = file.getName();
+            int index = parseIndex(name);
+            if (index < 0) {
+                continue;
+            }
+            if (!contains(index)) {
+                InputStream is = null;
+                try {
+                    is = file.openInputStream();
+                    append(index, name.substring(name.lastIndexOf('.') + 1), is);
+                } finally {
+                    IOUtils.closeQuietly(is);
+                }
+                count++;
+            }
+            file.delete();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the index of the image filename from
+     * {@link SpiderDen#generateImageFilename(int, String)}, -1 if it isn't.
+     */
+    private static int parseIndex(@Nullable String name) {
+        if (name == null || name.length() < 9 || name.charAt(8) != '.') {
+            return -1;
+        }
+        if (!Utilities.contain(GalleryProvider2.SUPPORT_IMAGE_EXTENSIONS, name.substring(8).toLowerCase())) {
+            return -1;
+        }
+        int number = 0;
+        for (int i = 0; i < 8; i++) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            number = number * 10 + (c - '0');
+        }
+        return number - 1;
+    }
+
+    @NonNull
+    public InputStreamPipe openInputStreamPipe(int index) {
+        return new PageInputStreamPipe(index);
+    }
+
+    /**
+     * The page is added when the stream is passed to {@link #commit(OutputStream)}.
+     * A stream closed without it is dropped, like an incomplete download.
+     *
+     * @param extension without dot
+     */
+    @NonNull
+    public OutputStreamPipe openOutputStreamPipe(int index, @NonNull String extension) {
+        return new PageOutputStreamPipe(index, extension);
+    }
+
+    /**
+     * Add the page written to the stream of {@link #openOutputStreamPipe(int, String)}.
+     * Nothing is done for other streams, their data is already written.
+     */
+    public static void commit(@NonNull OutputStream os) throws IOException {
+        if (os instanceof PageOutputStream) {
+            ((PageOutputStream) os).commit();
+        }
+    }
+
+    /**
+     * The file is closed after all who opened it close it.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mKey == null) {
+            mFile.close();
+            return;
+        }
+        synchronized (sPacks) {
+            if (--mReferences > 0) {
+                return;
+            }
+            sPacks.remove(mKey);
+            synchronized (this) {
+                try {
+                    if (mUnindexed > 0) {
+                        writeIndex();
+                    }
+                } finally {
+                    mFile.close();
+                }
+            }
+        }
+    }
+
+    private class PageInputStreamPipe implements InputStreamPipe {
+
+        private final int mIndex;
+
+        PageInputStreamPipe(int index) {
+            mIndex = index;
+        }
+
+        @Override
+        public void obtain() {
+            // Empty
+        }
+
+        @Override
+        public void release() {
+            // Empty
+        }
+
+        @NonNull
+        @Override
+        public InputStream open() throws IOException {
+            return openInputStream(mIndex);
+        }
+
+        @Override
+        public void close() {
+            // Empty
+        }
+    }
+
+    private class PageOutputStreamPipe implements OutputStreamPipe {
+
+        private final int mIndex;
+        private final String mExtension;
+        private PageOutputStream mOs;
+
+        PageOutputStreamPipe(int index, String extension) {
+            mIndex = index;
+            mExtension = extension;
+        }
+
+        @Override
+        public void obtain() {
+            // Empty
+        }
+
+        @Override
+        public void release() {
+            // Empty
+        }
+
+        @NonNull
+        @Override
+        public OutputStream open() throws IOException {
+            if (mOs != null) {
+                throw new IllegalStateException("Please close it first");
+            }
+
+            mOs = new PageOutputStream(mIndex, mExtension);
+            return mOs;
+        }
+
+        @Override
+        public void close() {
+            IOUtils.closeQuietly(mOs);
+            mOs = null;
+        }
+    }
+
+    /**
+     * Reads a record, it's never changed after written.
+     */
+    private class PageInputStream extends InputStream {
+
+        private long mPosition;
+        private final long mEnd;
+
+        PageInputStream(Entry entry) {
+            mPosition = entry.offset;
+            mEnd = entry.offset + entry.length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (mPosition >= mEnd) {
+                return -1;
+            }
+            len = (int) Math.min(len, mEnd - mPosition);
+            int read;
+            synchronized (GalleryPack.this) {
+                mFile.seek(mPosition);
+                read = mFile.read(b, off, len);
+            }
+            if (read < 0) {
+                throw new EOFException();
+            }
+            mPosition += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) {
+            n = Math.max(0, Math.min(n, mEnd - mPosition));
+            mPosition += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, mEnd - mPosition);
+        }
+    }
+
+    /**
+     * Writes the page to a temp file, it's copied to the pack on commit.
+     * Pages are downloaded at the same time, but only one is written to the pack.
+     */
+    private class PageOutputStream extends OutputStream {
+
+        private final int mIndex;
+        private final String mExtension;
+        private final File mTemp;
+        private final OutputStream mOs;
+        private boolean mCommitted;
+        private boolean mClosed;
+
+        PageOutputStream(int index, String extension) throws IOException {
+            checkWritable();
+            mIndex = index;
+            mExtension = extension;
+            mTemp = AppConfig.createTempFile();
+            if (mTemp == null) {
+                throw new IOException("Can't create temp file");
+            }
+            mOs = new BufferedOutputStream(new FileOutputStream(mTemp), BUFFER_SIZE);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            mOs.write(b);
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            mOs.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            mOs.flush();
+        }
+
+        synchronized void commit() throws IOException {
+            if (mCommitted || mClosed) {
+                return;
+            }
+            mCommitted = true;
+            mOs.close();
+            InputStream is = null;
+            try {
+                is = new FileInputStream(mTemp);
+                append(mIndex, mExtension, is);
+            } finally {
+                IOUtils.closeQuietly(is);
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            // Not committed, drop it
+            if (!mClosed) {
+                mClosed = true;
+                IOUtils.closeQuietly(mOs);
+                mTemp.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.spider;
+
+import android.os.SystemClock;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import com.hippo.unifile.UniFile;
+import com.hippo.yorozuya.IOUtils;
+import com.hippo.yorozuya.NumberUtils;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Finished pages and pages being written of a download, saved in download dir.
+ * <p>
+ * With it, a download resumes from unfinished pages without looking for
+ * each image file. Files of pages being written when the process was killed
+ * are incomplete, they are removed and downloaded again.
+ */
+class PageCheckpoint {
+
+    private static final String TAG = PageCheckpoint.class.getSimpleName();
+
+    static final String FILENAME = ".ehviewer_pages";
+    private static final String TEMP_FILENAME = ".ehviewer_pages.tmp";
+
+    private static final String VERSION_STR = "VERSION1";
+
+    // Save at most once in the interval, unless forced. Only pause, stop
+    // and release force it. Pages finished after the last save are
+    // downloaded again if the process is killed, it's at most the interval.
+    private static final long SAVE_INTERVAL = 3000;
+
+    private final int mPages;
+    private final boolean mRestored;
+    private final BitSet mFinished;
+    // Page index to received bytes
+    private final Map<Integer, Long> mActive = new HashMap<>();
+
+    private boolean mDirty;
+    private long mLastSaveTime;
+    private final Object mSaveLock = new Object();
+
+    /**
+     * @param restored true if it is read from download dir
+     */
+    PageCheckpoint(int pages, boolean restored) {
+        mPages = pages;
+        mRestored = restored;
+        mFinished = new BitSet(pages);
+    }
+
+    /**
+     * Returns true if it is read from download dir, so unfinished pages
+     * are not in download dir.
+     */
+    boolean isRestored() {
+        return mRestored;
+    }
+
+    synchronized boolean isFinished(int index) {
+        return mFinished.get(index);
+    }
+
+    /**
+     * Returns the first unfinished page from the index, or pages if all are finished.
+     */
+    synchronized int nextUnfinished(int index) {
+        int next = mFinished.nextClearBit(index);
+        return Math.min(next, mPages);
+    }
+
+    @NonNull
+    synchronized int[] getActivePages() {
+        int[] pages = new int[mActive.size()];
+        int i = 0;
+        for (int index : mActive.keySet()) {
+            pages[i++] = index;
+        }
+        return pages;
+    }
+
+    synchronized void onStart(int index) {
+        mActive.put(index, 0L);
+        mFinished.clear(index);
+        mDirty = true;
+    }
+
+    synchronized void onProgress(int index, long bytes) {
+        if (mActive.containsKey(index)) {
+            mActive.put(index, bytes);
+        }
+    }
+
+    synchronized void onFinish(int index) {
+        mActive.remove(index);
+        mFinished.set(index);
+        mDirty = true;
+    }
+
+    synchronized void onReset(int index) {
+        mActive.remove(index);
+        mFinished.clear(index);
+        mDirty = true;
+    }
+
+    private synchronized String snapshot() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(VERSION_STR).append('\n');
+        sb.append(mPages).append('\n');
+        // Finished pages as ranges, like 0-15,17
+        boolean first = true;
+        for (int start = mFinished.nextSetBit(0); start >= 0 && start < mPages;) {
+            int end = Math.min(mFinished.nextClearBit(start), mPages);
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            sb.append(start);
+            if (end - 1 > start) {
+                sb.append('-').append(end - 1);
+            }
+            start = mFinished.nextSetBit(end);
+        }
+        sb.append('\n');
+        for (Map.Entry<Integer, Long> entry : mActive.entrySet()) {
+            sb.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        mDirty = false;
+        return sb.toString();
+    }
+
+    private synchronized boolean isDirty() {
+        return mDirty;
+    }
+
+    /**
+     * Write it to the dir if it is changed.
+     *
+     * @param force false to skip it if it was saved just now
+     */
+    void save(@NonNull UniFile dir, boolean force) {
+        synchronized (mSaveLock) {
+            long now = SystemClock.elapsedRealtime();
+            if (!isDirty() || (!force && now - mLastSaveTime < SAVE_INTERVAL)) {
+                return;
+            }
+            mLastSaveTime = now;
+
+            UniFile temp = dir.createFile(TEMP_FILENAME);
+            if (temp == null) {
+                return;
+            }
+            OutputStream os = null;
+            try {
+                os = temp.openOutputStream();
+                os.write(snapshot().getBytes(StandardCharsets.UTF_8));
+                os.close();
+                os = null;
+                // Replace the old one, it is read again if this fails
+                UniFile file = dir.subFile(FILENAME);
+                if (file != null && file.exists()) {
+                    file.delete();
+                }
+                temp.renameTo(FILENAME);
+            } catch (IOException e) {
+                Log.e(TAG, "Can't write page checkpoint", e);
+            } finally {
+                IOUtils.closeQuietly(os);
+            }
+        }
+    }
+
+    /**
+     * Read the checkpoint from the dir.
+     *
+     * @return null if there is no checkpoint or it's for another page count
+     */
+    @Nullable
+    static PageCheckpoint read(@NonNull UniFile dir, int pages) {
+        UniFile file = dir.findFile(FILENAME);
+        if (file == null) {
+            return null;
+        }
+
+        InputStream is = null;
+        try {
+            is = file.openInputStream();
+            if (!VERSION_STR.equals(IOUtils.readAsciiLine(is))) {
+                return null;
+            }
+            if (NumberUtils.parseIntSafely(IOUtils.readAsciiLine(is), -1) != pages) {
+                return null;
+            }
+
+            PageCheckpoint checkpoint = new PageCheckpoint(pages, true);
+            String line = IOUtils.readAsciiLine(is);
+            if (!line.isEmpty()) {
+                for (String range : line.split(",")) {
+                    int pos = range.indexOf('-');
+                    int start = Integer.parseInt(pos < 0 ? range : range.substring(0, pos));
+                    int end = pos < 0 ? start : Integer.parseInt(range.substring(pos + 1));
+                    if (start >= 0 && end < pages && start <= end) {
+                        checkpoint.mFinished.set(start, end + 1);
+                    }
+                }
+            }
+            try {
+                while (true) { // EOFException will raise
+                    line = IOUtils.readAsciiLine(is);
+                    int pos = line.indexOf(' ');
+                    if (pos > 0) {
+                        int index = Integer.parseInt(line.substring(0, pos));
+                        long bytes = Long.parseLong(line.substring(pos + 1));
+                        if (index >= 0 && index < pages) {
+                            checkpoint.mActive.put(index, bytes);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // End of file
+            }
+            return checkpoint;
+        } catch (IOException | NumberFormatException e) {
+            return null;
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.spider;
+
+import android.view.Choreographer;
+import androidx.annotation.NonNull;
+import com.hippo.yorozuya.SimpleHandler;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Merges page download progress from workers, and delivers it in UI thread
+ * on a frame callback at most once per {@link #FLUSH_INTERVAL}.
+ * Workers never lock, they only update counters of the page.
+ */
+class PageProgressAggregator implements Choreographer.FrameCallback {
+
+    // About 4 frames
+    private static final long FLUSH_INTERVAL = 66;
+
+    interface Callback {
+        /**
+         * Called in UI thread.
+         *
+         * @param bytesRead bytes read since last flush of the page
+         */
+        void onPageDownload(int index, long contentLength, long receivedSize, int bytesRead);
+    }
+
+    private static class PageProgress {
+        volatile long contentLength;
+        volatile long receivedSize;
+        final AtomicLong bytesRead = new AtomicLong();
+    }
+
+    private final Callback mCallback;
+    private final ConcurrentHashMap<Integer, PageProgress> mPages = new ConcurrentHashMap<>();
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+
+    private final AtomicLong mRecordCount = new AtomicLong();
+    private long mFlushCount;
+
+    private final Runnable mScheduleTask = () ->
+            Choreographer.getInstance().postFrameCallbackDelayed(this, FLUSH_INTERVAL);
+
+    PageProgressAggregator(@NonNull Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * Called in worker threads.
+     */
+    void record(int index, long contentLength, long receivedSize, int bytesRead) {
+        PageProgress progress = mPages.get(index);
+        if (progress == null) {
+            progress = new PageProgress();
+            PageProgress old = mPages.putIfAbsent(index, progress);
+            if (old != null) {
+                progress = old;
+            }
+        }
+        progress.contentLength = contentLength;
+        progress.receivedSize = receivedSize;
+        progress.bytesRead.addAndGet(bytesRead);
+        mRecordCount.incrementAndGet();
+
+        if (mScheduled.compareAndSet(false, true)) {
+            SimpleHandler.getInstance().post(mScheduleTask);
+        }
+    }
+
+    /**
+     * The page is done. Progress not delivered yet is dropped,
+     * so no progress comes after the success or failure of the page.
+     */
+    void remove(int index) {
+        mPages.remove(index);
+    }
+
+    void clear() {
+        mPages.clear();
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mScheduled.set(false);
+        mFlushCount++;
+        for (Map.Entry<Integer, PageProgress> entry : mPages.entrySet()) {
+            PageProgress progress = entry.getValue();
+            long bytesRead = progress.bytesRead.getAndSet(0);
+            // Skip the page if it is done now
+            if (bytesRead != 0 && mPages.get(entry.getKey()) == progress) {
+                mCallback.onPageDownload(entry.getKey(), progress.contentLength,
+                        progress.receivedSize, (int) Math.min(bytesRead, Integer.MAX_VALUE));
+            }
+        }
+    }
+
+    /**
+     * Number of progress recorded by workers.
+     */
+    long getRecordCount() {
+        return mRecordCount.get();
+    }
+
+    /**
+     * Number of flushes in UI thread.
+     */
+    long getFlushCount() {
+        return mFlushCount;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.spider;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import com.hippo.ehviewer.Settings;
+import com.hippo.util.IoThreadPoolExecutor;
+import com.hippo.util.Metrics;
+import com.hippo.util.SegmentedDiskCache;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Chapters prefetched into the read cache in background, oldest first.
+ * <p>
+ * Prefetched bytes are kept under a quota, the oldest chapters are removed
+ * from the read cache to make room. When the reader opens a prefetched chapter
+ * for the first time, the time to the first page is compared with the time
+ * it took when prefetching, the difference is the latency saved.
+ */
+public final class PrefetchLedger {
+
+    private static final String TAG = PrefetchLedger.class.getSimpleName();
+
+    private static final String FILENAME = "prefetch_ledger";
+
+    // Prefetch takes at most a quarter of the read cache
+    private static final int QUOTA_DIVISOR = 4;
+
+    private static final class Entry {
+        final long bytes;
+        // Time from start to the first page when prefetching
+        final long coldMillis;
+
+        Entry(long bytes, long coldMillis) {
+            this.bytes = bytes;
+            this.coldMillis = coldMillis;
+        }
+    }
+
+    @Nullable
+    private static AtomicFile sFile;
+    // cid -> entry, oldest first
+    private static final LinkedHashMap<String, Entry> sEntries = new LinkedHashMap<>();
+    private static long sBytes;
+    private static int sOpened;
+    private static long sSavedMillis;
+
+    // Only newer snapshot is written
+    private static long sVersion;
+    private static long sWrittenVersion;
+
+    private PrefetchLedger() {}
+
+    /**
+     * Load the ledger in background.
+     */
+    public static void initialize(Context context) {
+        File file = new File(context.getFilesDir(), FILENAME);
+        IoThreadPoolExecutor.getInstance().execute(() -> {
+            synchronized (PrefetchLedger.class) {
+                sFile = new AtomicFile(file);
+                read(sFile);
+            }
+        });
+    }
+
+    private static long getQuota() {
+        return Settings.getReadCacheSize() * 1024L * 1024L / QUOTA_DIVISOR;
+    }
+
+    /**
+     * Remove the oldest chapters from the read cache until the bytes fit in the quota.
+     *
+     * @return false if the bytes are more than the quota
+     */
+    public static synchronized boolean ensureQuota(long bytes) {
+        long quota = getQuota();
+        if (bytes > quota) {
+            return false;
+        }
+
+        SegmentedDiskCache cache = SpiderDen.getCache();
+        boolean changed = false;
+        Iterator<Map.Entry<String, Entry>> iterator = sEntries.entrySet().iterator();
+        while (sBytes + bytes > quota && iterator.hasNext()) {
+            Map.Entry<String, Entry> entry = iterator.next();
+            iterator.remove();
+            sBytes -= entry.getValue().bytes;
+            if (cache != null) {
+                cache.removeSegment(entry.getKey());
+            }
+            changed = true;
+        }
+        if (changed) {
+            write();
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the chapter is prefetched and not opened yet.
+     */
+    public static synchronized boolean contains(@NonNull String cid) {
+        return sEntries.containsKey(cid);
+    }
+
+    /**
+     * The chapter is prefetched.
+     *
+     * @param cid {@link com.hippo.ehviewer.client.data.GalleryInfo#getCid()}
+     * @param coldMillis the time from start to the first page
+     */
+    public static synchronized void put(@NonNull String cid, long bytes, long coldMillis) {
+        Entry old = sEntries.remove(cid);
+        if (old != null) {
+            sBytes -= old.bytes;
+        }
+        sEntries.put(cid, new Entry(bytes, coldMillis));
+        sBytes += bytes;
+        Metrics.add(Metrics.PREFETCH_BYTES, bytes);
+        write();
+    }
+
+    /**
+     * The reader gets the first page of the chapter. If it's prefetched,
+     * the latency saved is reported, and the read cache takes it over.
+     *
+     * @param warmMillis the time from open to the first page
+     */
+    static synchronized void onFirstPage(@NonNull String cid, long warmMillis) {
+        Entry entry = sEntries.remove(cid);
+        if (entry == null) {
+            return;
+        }
+        sBytes -= entry.bytes;
+
+        long saved = Math.max(0, entry.coldMillis - warmMillis);
+        sOpened++;
+        sSavedMillis += saved;
+        Metrics.increment(Metrics.PREFETCH_OPENED);
+        Metrics.recordNanos(Metrics.PREFETCH_LATENCY_SAVED, saved * 1000000L);
+        Log.d(TAG, "Opened prefetched " + cid + " in " + warmMillis + "ms, saved " + saved
+                + "ms. Total " + sOpened + " opened, " + sSavedMillis + "ms saved");
+        write();
+    }
+
+    private static void read(AtomicFile file) {
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(file.openRead(), StandardCharsets.UTF_8))) {
+            String line = reader.readLine();
+            if (line != null) {
+                // Totals of opened chapters
+                String[] totals = line.split(" ");
+                sOpened = Integer.parseInt(totals[0]);
+                sSavedMillis = Long.parseLong(totals[1]);
+            }
+            while ((line = reader.readLine()) != null) {
+                // bytes cold cid, cid has no line break
+                String[] parts = line.split(" ", 3);
+                if (parts.length == 3) {
+                    long bytes = Long.parseLong(parts[0]);
+                    sEntries.put(parts[2], new Entry(bytes, Long.parseLong(parts[1])));
+                    sBytes += bytes;
+                }
+            }
+        } catch (IOException | NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            // No ledger or it's broken, prefetched chapters are left to read cache
+            sEntries.clear();
+            sBytes = 0;
+        }
+    }
+
+    private static void write() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(sOpened).append(' ').append(sSavedMillis).append('\n');
+        for (Map.Entry<String, Entry> entry : sEntries.entrySet()) {
+            sb.append(entry.getValue().bytes).append(' ')
+                    .append(entry.getValue().coldMillis).append(' ')
+                    .append(entry.getKey()).append('\n');
+        }
+        String content = sb.toString();
+        long version = ++sVersion;
+
+        IoThreadPoolExecutor.getInstance().execute(() -> {
+            synchronized (PrefetchLedger.class) {
+                AtomicFile file = sFile;
+                if (file == null || version <= sWrittenVersion) {
+                    return;
+                }
+                sWrittenVersion = version;
+                FileOutputStream fos = null;
+                try {
+                    fos = file.startWrite();
+                    fos.write(content.getBytes(StandardCharsets.UTF_8));
+                    file.finishWrite(fos);
+                } catch (IOException e) {
+                    Log.e(TAG, "Can't write prefetch ledger", e);
+                    if (fos != null) {
+                        file.failWrite(fos);
+                    }
+                }
+            }
+        });
+    }
+}
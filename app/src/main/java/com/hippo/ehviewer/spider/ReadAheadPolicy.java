@@ -0,0 +1,196 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.spider;
+
+import android.os.SystemClock;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Decides which pages a {@link SpiderQueen} downloads ahead of the reader.
+ * <p>
+ * Reading speed in pages per second and reading direction are estimated from
+ * changes of the current page. The window covers {@link #BUFFER_TIME} of reading
+ * at that speed, at least one page, at most the preload setting and the pages
+ * which fit in the byte budget with the average page size.
+ * <p>
+ * Preloaded pages are hits when the reader requests them. Bytes of preloaded
+ * pages the reader never requests are wasted.
+ */
+class ReadAheadPolicy {
+
+    // Keep pages for this time of reading
+    private static final long BUFFER_TIME = 10000;
+    // Window before the speed is known
+    private static final int DEFAULT_WINDOW = 3;
+    // Longer moves are seeks, not reading
+    private static final int MAX_STEP = 3;
+    private static final float ALPHA = 0.3f;
+    private static final long DEFAULT_PAGE_BYTES = 300 * 1024;
+
+    private final int mMaxPages;
+    private final long mByteBudget;
+
+    private int mPosition = -1;
+    private long mPositionTime;
+    // Pages per second, 0 for unknown
+    private float mSpeed;
+    // Average of move signs, from -1 for backward to 1 for forward
+    private float mDirection = 1.0f;
+    private long mPageBytes = DEFAULT_PAGE_BYTES;
+
+    // Preloaded page index to bytes, until the reader requests it
+    private final Map<Integer, Long> mPreloaded = new HashMap<>();
+    private int mPreloadCount;
+    private int mHitCount;
+    private int mCancelCount;
+    private long mWastedBytes;
+
+    /**
+     * @param maxPages the max window
+     * @param byteBudget the max bytes of the window
+     */
+    ReadAheadPolicy(int maxPages, long byteBudget) {
+        mMaxPages = maxPages;
+        mByteBudget = byteBudget;
+    }
+
+    /**
+     * The reader is on the page now.
+     */
+    synchronized void onPosition(int index) {
+        if (index == mPosition) {
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        int step = index - mPosition;
+        if (mPosition >= 0 && Math.abs(step) <= MAX_STEP) {
+            long interval = now - mPositionTime;
+            if (interval > 0) {
+                float speed = Math.abs(step) * 1000.0f / interval;
+                mSpeed = mSpeed == 0.0f ? speed : mSpeed + ALPHA * (speed - mSpeed);
+            }
+            mDirection += ALPHA * (Math.signum(step) - mDirection);
+        }
+        mPosition = index;
+        mPositionTime = now;
+    }
+
+    synchronized boolean isForward() {
+        return mDirection >= 0.0f;
+    }
+
+    /**
+     * Returns the pages to download ahead of the reader.
+     */
+    synchronized int getWindow() {
+        if (mMaxPages <= 0) {
+            return 0;
+        }
+
+        int window;
+        if (mSpeed == 0.0f) {
+            window = DEFAULT_WINDOW;
+        } else {
+            // Slow down if the reader stays on the page longer than usual
+            float speed = mSpeed;
+            long idle = SystemClock.elapsedRealtime() - mPositionTime;
+            if (idle > 0) {
+                speed = Math.min(speed, 1000.0f / idle);
+            }
+            window = (int) Math.ceil(speed * BUFFER_TIME / 1000.0f);
+        }
+
+        int byBytes = (int) Math.max(1, mByteBudget / Math.max(1, mPageBytes));
+        return Math.max(1, Math.min(window, Math.min(mMaxPages, byBytes)));
+    }
+
+    /**
+     * Returns true if the reader has passed the page, it's not worth downloading.
+     */
+    synchronized boolean isBehind(int index) {
+        if (mPosition < 0) {
+            return false;
+        }
+        boolean behind = isForward() ? index < mPosition : index > mPosition;
+        if (behind) {
+            mCancelCount++;
+        }
+        return behind;
+    }
+
+    /**
+     * A worker starts to download the page ahead of the reader.
+     */
+    synchronized void onPreload(int index) {
+        mPreloaded.put(index, 0L);
+        mPreloadCount++;
+    }
+
+    /**
+     * The page is downloaded.
+     */
+    synchronized void onPageBytes(int index, long bytes) {
+        if (bytes <= 0) {
+            return;
+        }
+        mPageBytes += (long) (ALPHA * (bytes - mPageBytes));
+        if (mPreloaded.containsKey(index)) {
+            mPreloaded.put(index, bytes);
+        }
+    }
+
+    /**
+     * The reader requests the page.
+     */
+    synchronized void onRequest(int index) {
+        if (mPreloaded.remove(index) != null) {
+            mHitCount++;
+        }
+    }
+
+    /**
+     * Count preloaded pages never requested as wasted, returns the bytes.
+     */
+    synchronized long finish() {
+        for (long bytes : mPreloaded.values()) {
+            mWastedBytes += bytes;
+        }
+        mPreloaded.clear();
+        return mWastedBytes;
+    }
+
+    synchronized int getPreloadCount() {
+        return mPreloadCount;
+    }
+
+    synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    synchronized float getHitRate() {
+        return mPreloadCount == 0 ? 0.0f : (float) mHitCount / mPreloadCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "%d preloads, %d hits (%.0f%%), %d cancelled, %d bytes wasted, %.2f pages/s",
+                mPreloadCount, mHitCount, getHitRate() * 100, mCancelCount, mWastedBytes, mSpeed);
+    }
+}
@@ -17,100 +17,79 @@
 package com.hippo.ehviewer.spider;
 
 import android.content.Context;
-import android.graphics.BitmapFactory;
-import android.webkit.MimeTypeMap;
+import android.os.SystemClock;
+import android.util.Log;
 import androidx.annotation.Nullable;
-import com.hippo.beerbelly.SimpleDiskCache;
-import com.hippo.ehviewer.EhDB;
 import com.hippo.ehviewer.Settings;
 import com.hippo.ehviewer.client.EhCacheKeyFactory;
-import com.hippo.ehviewer.client.EhUtils;
 import com.hippo.ehviewer.client.data.GalleryInfo;
 import com.hippo.ehviewer.gallery.GalleryProvider2;
 import com.hippo.io.UniFileInputStreamPipe;
 import com.hippo.io.UniFileOutputStreamPipe;
 import com.hippo.streampipe.InputStreamPipe;
 import com.hippo.streampipe.OutputStreamPipe;
-import com.hippo.unifile.FilenameFilter;
 import com.hippo.unifile.UniFile;
-import com.hippo.yorozuya.FileUtils;
+import com.hippo.util.IoThreadPoolExecutor;
+import com.hippo.util.SegmentedDiskCache;
 import com.hippo.yorozuya.IOUtils;
 import com.hippo.yorozuya.MathUtils;
 import com.hippo.yorozuya.Utilities;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.HashSet;
 import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public final class SpiderDen {
 
+    private static final String TAG = SpiderDen.class.getSimpleName();
+
+    // Enough for all magic numbers in sniffExtension()
+    private static final int SNIFF_HEADER_SIZE = 12;
+    private static final int COPY_THREAD_NUM = 4;
+
     @Nullable
     private final UniFile mDownloadDir;
     private volatile int mMode = SpiderQueen.MODE_READ;
     private final String mGid;
 
+    // Pages of download dir in one file
+    @Nullable
+    private GalleryPack mPack;
+    private boolean mPackChecked;
+    // Nothing is written to download dir after closed, guarded by mPackLock
+    private boolean mClosed;
+    private final Object mPackLock = new Object();
+
     @Nullable
-    private static SimpleDiskCache sCache;
+    private static SegmentedDiskCache sCache;
 
     public static void initialize(Context context) {
-        sCache = new SimpleDiskCache(new File(context.getCacheDir(), "image"),
+        // Pages of a gallery are in the same segment, evicted together
+        sCache = new SegmentedDiskCache(new File(context.getCacheDir(), "image"),
                 MathUtils.clamp(Settings.getReadCacheSize(), 40, 640) * 1024 * 1024);
     }
 
-    private static class StartWithFilenameFilter implements FilenameFilter {
-
-        private final String mPrefix;
-
-        public StartWithFilenameFilter(String prefix) {
-            mPrefix = prefix;
-        }
+    @Nullable
+    public static SegmentedDiskCache getCache() {
+        return sCache;
+    }
 
-        @Override
-        public boolean accept(UniFile dir, String filename) {
-            return filename.startsWith(mPrefix);
-        }
+    /**
+     * Remove all cached pages of the gallery.
+     */
+    public static boolean removeCache(GalleryInfo galleryInfo) {
+        return sCache != null && sCache.removeSegment(galleryInfo.getCid());
     }
 
     public static UniFile getGalleryDownloadDir(GalleryInfo galleryInfo) {
         UniFile dir = Settings.getDownloadLocation();
         if (dir != null) {
-            // Read from DB
-            String dirname = EhDB.getDownloadDirname(galleryInfo.getCid());
-            if (null != dirname) {
-                // Some dirname may be invalid in some version
-                dirname = FileUtils.sanitizeFilename(dirname);
-                EhDB.putDownloadDirname(galleryInfo.getCid(), dirname);
-            }
-
-            // Find it
-            if (null == dirname) {
-                UniFile[] files = dir.listFiles(new StartWithFilenameFilter(galleryInfo.getCid() + "-"));
-                if (null != files) {
-                    // Get max-length-name dir
-                    int maxLength = -1;
-                    for (UniFile file : files) {
-                        if (file.isDirectory()) {
-                            String name = file.getName();
-                            int length = name.length();
-                            if (length > maxLength) {
-                                maxLength = length;
-                                dirname = name;
-                            }
-                        }
-                    }
-                    if (null != dirname) {
-                        EhDB.putDownloadDirname(galleryInfo.getCid(), dirname);
-                    }
-                }
-            }
-
-            // Create it
-            if (null == dirname) {
-                dirname = FileUtils.sanitizeFilename(galleryInfo.getCid() + "-" + EhUtils.getSuitableTitle(galleryInfo));
-                EhDB.putDownloadDirname(galleryInfo.getCid(), dirname);
-            }
-
-            return dir.subFile(dirname);
+            return dir.subFile(DownloadDirRegistry.getDirname(dir, galleryInfo));
         } else {
             return null;
         }
@@ -149,13 +128,65 @@ public final class SpiderDen {
         return mDownloadDir != null && mDownloadDir.isDirectory() ? mDownloadDir : null;
     }
 
+    /**
+     * Returns the pack of download dir if packing is enabled or it is already there.
+     * Separate image files in download dir are moved to it when it is opened.
+     * It's null after the den is closed.
+     */
+    @Nullable
+    private GalleryPack getPack() {
+        synchronized (mPackLock) {
+            if (mClosed || mPackChecked) {
+                return mPack;
+            }
+            UniFile dir = getDownloadDir();
+            if (dir == null) {
+                // Check again after download dir is created
+                return null;
+            }
+            mPackChecked = true;
+
+            if (Settings.getDownloadPack() || GalleryPack.exists(dir)) {
+                try {
+                    mPack = GalleryPack.open(dir);
+                } catch (IOException e) {
+                    Log.e(TAG, "Can't open gallery pack", e);
+                    return null;
+                }
+                try {
+                    mPack.importFiles(dir);
+                } catch (IOException e) {
+                    Log.e(TAG, "Can't move images to gallery pack", e);
+                }
+            }
+            return mPack;
+        }
+    }
+
+    /**
+     * Close files kept open. Tasks finishing after it don't write to download dir.
+     */
+    public void close() {
+        synchronized (mPackLock) {
+            mClosed = true;
+            IOUtils.closeQuietly(mPack);
+            mPack = null;
+        }
+    }
+
+    private boolean isClosed() {
+        synchronized (mPackLock) {
+            return mClosed;
+        }
+    }
+
     private boolean containInCache(int index) {
         if (sCache == null) {
             return false;
         }
 
         String key = EhCacheKeyFactory.getImageKey(mGid, index);
-        return sCache.contain(key);
+        return sCache.contain(mGid, key);
     }
 
     /**
@@ -183,6 +214,11 @@ public final class SpiderDen {
             return false;
         }
 
+        GalleryPack pack = getPack();
+        if (pack != null) {
+            return pack.contains(index);
+        }
+
         // Find image file in download dir
         return findImageFile(dir, index) != null;
     }
@@ -198,8 +234,49 @@ public final class SpiderDen {
         }
     }
 
+    /**
+     * @return the extension with dot, or null if it is not an image
+     */
+    @Nullable
+    private static String sniffExtension(byte[] header, int length) {
+        if (length >= 3 && (header[0] & 0xff) == 0xff && (header[1] & 0xff) == 0xd8 &&
+                (header[2] & 0xff) == 0xff) {
+            return ".jpg";
+        }
+        if (length >= 8 && (header[0] & 0xff) == 0x89 && header[1] == 'P' && header[2] == 'N' &&
+                header[3] == 'G' && header[4] == '\r' && header[5] == '\n' && header[6] == 0x1a &&
+                header[7] == '\n') {
+            return ".png";
+        }
+        if (length >= 6 && header[0] == 'G' && header[1] == 'I' && header[2] == 'F' &&
+                header[3] == '8' && (header[4] == '7' || header[4] == '9') && header[5] == 'a') {
+            return ".gif";
+        }
+        if (length >= 12 && header[0] == 'R' && header[1] == 'I' && header[2] == 'F' &&
+                header[3] == 'F' && header[8] == 'W' && header[9] == 'E' && header[10] == 'B' &&
+                header[11] == 'P') {
+            return ".webp";
+        }
+        if (length >= 2 && header[0] == 'B' && header[1] == 'M') {
+            return ".bmp";
+        }
+        return null;
+    }
+
+    private static int readHeader(InputStream is, byte[] header) throws IOException {
+        int length = 0;
+        while (length < header.length) {
+            int n = is.read(header, length, header.length - length);
+            if (n == -1) {
+                break;
+            }
+            length += n;
+        }
+        return length;
+    }
+
     private boolean copyFromCacheToDownloadDir(int index) {
-        if (sCache == null) {
+        if (sCache == null || isClosed()) {
             return false;
         }
         UniFile dir = getDownloadDir();
@@ -208,35 +285,39 @@ public final class SpiderDen {
         }
         // Find image file in cache
         String key = EhCacheKeyFactory.getImageKey(mGid, index);
-        InputStreamPipe pipe = sCache.getInputStreamPipe(key);
+        InputStreamPipe pipe = sCache.getInputStreamPipe(mGid, key);
         if (pipe == null) {
             return false;
         }
 
         OutputStream os = null;
         try {
-            // Get extension
-            String extension;
-            BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inJustDecodeBounds = true;
             pipe.obtain();
-            BitmapFactory.decodeStream(pipe.open(), null, options);
-            pipe.close();
-            extension = MimeTypeMap.getSingleton().getExtensionFromMimeType(options.outMimeType);
-            if (extension != null) {
-                extension = '.' + extension;
-            } else {
+            InputStream is = pipe.open();
+            // Get extension from magic number
+            byte[] header = new byte[SNIFF_HEADER_SIZE];
+            int length = readHeader(is, header);
+            String extension = sniffExtension(header, length);
+            if (extension == null) {
                 return false;
             }
             // Fix extension
             extension = fixExtension(extension);
-            // Copy from cache to download dir
-            UniFile file = dir.createFile(generateImageFilename(index, extension));
-            if (file == null) {
-                return false;
+            // Copy from cache to download dir, the header first
+            GalleryPack pack = getPack();
+            if (pack != null) {
+                os = pack.openOutputStreamPipe(index, extension.substring(1)).open();
+            } else {
+                UniFile file = dir.createFile(generateImageFilename(index, extension));
+                if (file == null) {
+                    return false;
+                }
+                os = file.openOutputStream();
             }
-            os = file.openOutputStream();
-            IOUtils.copy(pipe.open(), os);
+            os.write(header, 0, length);
+            IOUtils.copy(is, os);
+            os.flush();
+            GalleryPack.commit(os);
             return true;
         } catch (IOException e) {
             return false;
@@ -247,6 +328,80 @@ public final class SpiderDen {
         }
     }
 
+    /**
+     * Copy all cached pages which are not in download dir to download dir.
+     * It blocks until all pages are done.
+     *
+     * @return the number of copied pages, -1 if interrupted
+     */
+    public int copyAllFromCacheToDownloadDir(int pages) {
+        if (mMode != SpiderQueen.MODE_DOWNLOAD || sCache == null || pages <= 0) {
+            return 0;
+        }
+        UniFile dir = getDownloadDir();
+        if (dir == null) {
+            return 0;
+        }
+
+        // List download dir once instead of finding each file
+        final GalleryPack pack = getPack();
+        final Set<String> filenames = new HashSet<>();
+        UniFile[] files = pack == null ? dir.listFiles() : null;
+        if (files != null) {
+            for (UniFile file : files) {
+                filenames.add(file.getName());
+            }
+        }
+
+        final long start = SystemClock.elapsedRealtime();
+        final AtomicInteger nextIndex = new AtomicInteger();
+        final AtomicInteger copied = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(COPY_THREAD_NUM);
+        Runnable task = () -> {
+            try {
+                int index;
+                while ((index = nextIndex.getAndIncrement()) < pages &&
+                        !Thread.currentThread().isInterrupted()) {
+                    boolean contained = pack != null ? pack.contains(index) :
+                            containInFilenames(filenames, index);
+                    if (!contained && containInCache(index) &&
+                            copyFromCacheToDownloadDir(index)) {
+                        copied.incrementAndGet();
+                    }
+                }
+            } finally {
+                latch.countDown();
+            }
+        };
+        for (int i = 0; i < COPY_THREAD_NUM; i++) {
+            IoThreadPoolExecutor.getInstance().execute(task);
+        }
+
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            // Stop taking new pages
+            nextIndex.set(pages);
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+
+        int count = copied.get();
+        long time = SystemClock.elapsedRealtime() - start;
+        Log.d(TAG, "Copy " + count + " pages from cache in " + time + "ms, " +
+                (count * 1000.0f / Math.max(1, time)) + " pages/s");
+        return count;
+    }
+
+    private static boolean containInFilenames(Set<String> filenames, int index) {
+        for (String extension : GalleryProvider2.SUPPORT_IMAGE_EXTENSIONS) {
+            if (filenames.contains(generateImageFilename(index, extension))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public boolean contain(int index) {
         if (mMode == SpiderQueen.MODE_READ) {
             return containInCache(index) || containInDownloadDir(index);
@@ -257,13 +412,26 @@ public final class SpiderDen {
         }
     }
 
+    /**
+     * Like {@link #contain(int)}, for a page which is known to be absent from download dir.
+     */
+    public boolean containExceptDownloadDir(int index) {
+        if (mMode == SpiderQueen.MODE_READ) {
+            return containInCache(index);
+        } else if (mMode == SpiderQueen.MODE_DOWNLOAD) {
+            return copyFromCacheToDownloadDir(index);
+        } else {
+            return false;
+        }
+    }
+
     private boolean removeFromCache(int index) {
         if (sCache == null) {
             return false;
         }
 
         String key = EhCacheKeyFactory.getImageKey(mGid, index);
-        return sCache.remove(key);
+        return sCache.remove(mGid, key);
     }
 
     private boolean removeFromDownloadDir(int index) {
@@ -272,6 +440,11 @@ public final class SpiderDen {
             return false;
         }
 
+        GalleryPack pack = getPack();
+        if (pack != null) {
+            return pack.remove(index);
+        }
+
         boolean result = false;
         for (int i = 0, n = GalleryProvider2.SUPPORT_IMAGE_EXTENSIONS.length; i < n; i++) {
             String filename = generateImageFilename(index, GalleryProvider2.SUPPORT_IMAGE_EXTENSIONS[i]);
@@ -296,7 +469,7 @@ public final class SpiderDen {
         }
 
         String key = EhCacheKeyFactory.getImageKey(mGid, index);
-        return sCache.getOutputStreamPipe(key);
+        return sCache.getOutputStreamPipe(mGid, key);
     }
 
     /**
@@ -305,11 +478,15 @@ public final class SpiderDen {
     @Nullable
     private OutputStreamPipe openDownloadOutputStreamPipe(int index, @Nullable String extension) {
         UniFile dir = getDownloadDir();
-        if (dir == null) {
+        if (dir == null || isClosed()) {
             return null;
         }
 
         extension = fixExtension('.' + extension);
+        GalleryPack pack = getPack();
+        if (pack != null) {
+            return pack.openOutputStreamPipe(index, extension.substring(1));
+        }
         UniFile file = dir.createFile(generateImageFilename(index, extension));
         if (file != null) {
             return new UniFileOutputStreamPipe(file);
@@ -342,7 +519,7 @@ public final class SpiderDen {
         }
 
         String key = EhCacheKeyFactory.getImageKey(mGid, index);
-        return sCache.getInputStreamPipe(key);
+        return sCache.getInputStreamPipe(mGid, key);
     }
 
     @Nullable
@@ -352,11 +529,19 @@ public final class SpiderDen {
             return null;
         }
 
+        GalleryPack pack = getPack();
         for (int i = 0; i < 2; i++) {
-            UniFile file = findImageFile(dir, index);
-            if (file != null) {
-                return new UniFileInputStreamPipe(file);
-            } else if (!copyFromCacheToDownloadDir(index)) {
+            if (pack != null) {
+                if (pack.contains(index)) {
+                    return pack.openInputStreamPipe(index);
+                }
+            } else {
+                UniFile file = findImageFile(dir, index);
+                if (file != null) {
+                    return new UniFileInputStreamPipe(file);
+                }
+            }
+            if (!copyFromCacheToDownloadDir(index)) {
                 return null;
             }
         }
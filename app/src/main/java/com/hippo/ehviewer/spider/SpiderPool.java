@@ -0,0 +1,110 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.spider;
+
+import android.os.Process;
+import androidx.annotation.IntDef;
+import androidx.annotation.NonNull;
+import com.hippo.yorozuya.thread.PriorityThreadFactory;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Threads shared by all {@link SpiderQueen}s.
+ * <p>
+ * Workers run one page at a time and queue themselves again, so a queen
+ * never holds a thread while others wait. Queued tasks run by priority,
+ * pages the reader waits for first, then preloads, then downloads.
+ * Tasks of the same priority run in the order they are queued.
+ */
+final class SpiderPool {
+
+    @IntDef({PRIORITY_REQUEST, PRIORITY_PRELOAD, PRIORITY_DOWNLOAD})
+    @Retention(RetentionPolicy.SOURCE)
+    @interface Priority {
+    }
+
+    static final int PRIORITY_REQUEST = 0;
+    static final int PRIORITY_PRELOAD = 1;
+    static final int PRIORITY_DOWNLOAD = 2;
+
+    // Same as the max of multi-thread download
+    private static final int WORKER_THREAD_NUM = 10;
+    private static final int DECODER_THREAD_NUM = 2;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final AtomicLong sSequence = new AtomicLong();
+
+    private static final ThreadPoolExecutor sWorkerExecutor = newExecutor(WORKER_THREAD_NUM,
+            new PriorityBlockingQueue<>(), "SpiderWorker", Process.THREAD_PRIORITY_BACKGROUND);
+    private static final ThreadPoolExecutor sDecoderExecutor = newExecutor(DECODER_THREAD_NUM,
+            new LinkedBlockingQueue<>(), "SpiderDecoder", Process.THREAD_PRIORITY_DEFAULT);
+
+    private SpiderPool() {}
+
+    private static ThreadPoolExecutor newExecutor(int threads,
+            BlockingQueue<Runnable> queue, String name, int priority) {
+        // The queue is unbounded, only core threads are used
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, queue, new PriorityThreadFactory(name, priority));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Run the worker task with the priority.
+     */
+    static void executeWorker(@Priority int priority, @NonNull Runnable task) {
+        sWorkerExecutor.execute(new PriorityTask(priority, task));
+    }
+
+    static void executeDecoder(@NonNull Runnable task) {
+        sDecoderExecutor.execute(task);
+    }
+
+    private static final class PriorityTask implements Runnable, Comparable<PriorityTask> {
+
+        private final int mPriority;
+        private final long mSequence;
+        private final Runnable mTask;
+
+        PriorityTask(int priority, Runnable task) {
+            mPriority = priority;
+            mSequence = sSequence.getAndIncrement();
+            mTask = task;
+        }
+
+        @Override
+        public void run() {
+            mTask.run();
+        }
+
+        @Override
+        public int compareTo(@NonNull PriorityTask o) {
+            if (mPriority != o.mPriority) {
+                return Integer.compare(mPriority, o.mPriority);
+            }
+            return Long.compare(mSequence, o.mSequence);
+        }
+    }
+}
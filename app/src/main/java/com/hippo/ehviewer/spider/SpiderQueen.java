@@ -19,9 +19,10 @@ package com.hippo.ehviewer.spider;
 import android.content.Context;
 import android.graphics.BitmapFactory;
 import android.os.AsyncTask;
-import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.SparseArray;
+import android.util.SparseIntArray;
 import android.webkit.MimeTypeMap;
 
 import androidx.annotation.IntDef;
@@ -31,14 +32,15 @@ import androidx.annotation.UiThread;
 
 import com.axlecho.api.MHApi;
 import com.axlecho.api.MHComicData;
-import com.hippo.beerbelly.SimpleDiskCache;
 import com.hippo.ehviewer.EhApplication;
 import com.hippo.ehviewer.GetText;
 import com.hippo.ehviewer.R;
 import com.hippo.ehviewer.Settings;
 import com.hippo.ehviewer.client.EhRequestBuilder;
+import com.hippo.ehviewer.client.SourceGuard;
 import com.hippo.ehviewer.client.data.GalleryInfo;
 import com.hippo.ehviewer.gallery.GalleryProvider2;
+import com.hippo.ehviewer.gallery.TiledPageDecoder;
 import com.hippo.glgallery.GalleryPageView;
 import com.hippo.glgallery.GalleryProvider;
 import com.hippo.image.Image;
@@ -47,12 +49,14 @@ import com.hippo.streampipe.OutputStreamPipe;
 import com.hippo.unifile.UniFile;
 import com.hippo.util.ExceptionUtils;
 import com.hippo.util.IoThreadPoolExecutor;
+import com.hippo.util.Metrics;
+import com.hippo.util.SegmentedDiskCache;
+import com.hippo.util.Tracer;
 import com.hippo.yorozuya.IOUtils;
 import com.hippo.yorozuya.MathUtils;
 import com.hippo.yorozuya.OSUtils;
+import com.hippo.yorozuya.SimpleHandler;
 import com.hippo.yorozuya.Utilities;
-import com.hippo.yorozuya.thread.PriorityThread;
-import com.hippo.yorozuya.thread.PriorityThreadFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -61,13 +65,13 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingDeque;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -80,10 +84,6 @@ import okhttp3.ResponseBody;
 public final class SpiderQueen implements Runnable {
 
     private static final String TAG = SpiderQueen.class.getSimpleName();
-    private static final AtomicInteger sIdGenerator = new AtomicInteger();
-    private static final boolean DEBUG_LOG = true;
-    private static final boolean DEBUG_PTOKEN = true;
-
     @IntDef({MODE_READ, MODE_DOWNLOAD})
     @Retention(RetentionPolicy.SOURCE)
     public @interface Mode {
@@ -104,6 +104,9 @@ public final class SpiderQueen implements Runnable {
 
     public static final int DECODE_THREAD_NUM = 1;
 
+    // Attempts to download a page before it fails
+    private static final int MAX_PAGE_ATTEMPTS = 5;
+
     public static final String SPIDER_INFO_FILENAME = ".ehviewer";
 
     private static final String[] URL_509_SUFFIX_ARRAY = {
@@ -116,7 +119,7 @@ public final class SpiderQueen implements Runnable {
     @NonNull
     private final OkHttpClient mHttpClient;
     @NonNull
-    private final SimpleDiskCache mSpiderInfoCache;
+    private final SegmentedDiskCache mSpiderInfoCache;
     @NonNull
     private final GalleryInfo mGalleryInfo;
     @NonNull
@@ -125,18 +128,27 @@ public final class SpiderQueen implements Runnable {
     private int mReadReference = 0;
     private int mDownloadReference = 0;
 
-    // It mQueenThread is null, failed or stopped
+    // If it isn't alive, failed or stopped
+    private volatile boolean mAlive;
+    // The pool thread reading spider info, guarded by mQueenLock
     @Nullable
-    private volatile Thread mQueenThread;
+    private Thread mQueenThread;
     private final Object mQueenLock = new Object();
+    private final AtomicBoolean mReleased = new AtomicBoolean();
 
-    private final Thread[] mDecodeThreadArray = new Thread[DECODE_THREAD_NUM];
+    // Decoder tasks in SpiderPool, one for each slot at most
+    private final boolean[] mDecoderScheduled = new boolean[DECODE_THREAD_NUM];
     private final int[] mDecodeIndexArray = new int[DECODE_THREAD_NUM];
     private final Queue<Integer> mDecodeRequestQueue = new LinkedList<>();
 
     private final Object mWorkerLock = new Object();
-    private ThreadPoolExecutor mWorkerPoolExecutor;
+    // Workers and decoders are stopped, guarded by mWorkerLock
+    private boolean mWorkersStopped;
+    // Pool threads running workers and decoders of it, interrupted on stop
+    private final Set<Thread> mPoolThreads = new HashSet<>();
     private int mWorkerCount;
+    // A worker only for reader requests is queued or running
+    private boolean mRequestWorkerScheduled;
 
     private final AtomicReference<SpiderInfo> mSpiderInfo = new AtomicReference<>();
 
@@ -149,12 +161,20 @@ public final class SpiderQueen implements Runnable {
     private final Queue<Integer> mRequestPageQueue2 = new LinkedList<>();
     // Store force request page. The index may be invalid
     private final Queue<Integer> mForceRequestPageQueue = new LinkedList<>();
+    // Store failed page to try again, its delay is over
+    private final Queue<Integer> mRetryPageQueue = new LinkedList<>();
+    // Failed attempts of pages waiting for retry, guarded by mRequestPageQueue
+    private final SparseIntArray mRetryAttempts = new SparseIntArray();
     // For download, when it go to mPageStateArray.size(), done
     private volatile int mDownloadPage = -1;
 
     private final AtomicInteger mDownloadedPages = new AtomicInteger(0);
     private final AtomicInteger mFinishedPages = new AtomicInteger(0);
 
+    // Finished pages of the download, null if not in download mode or not loaded
+    private volatile PageCheckpoint mCheckpoint;
+    private final Object mCheckpointLock = new Object();
+
     private AtomicReference<String> showKey = new AtomicReference<>();
     private final Object showKeyLock = new Object();
 
@@ -164,11 +184,24 @@ public final class SpiderQueen implements Runnable {
     private final ConcurrentHashMap<Integer, Float> mPagePercentMap = new ConcurrentHashMap<>();
 
     private final List<OnSpiderListener> mSpiderListeners = new ArrayList<>();
+    // Workers report progress of every read, listeners get it merged
+    private final PageProgressAggregator mProgressAggregator =
+            new PageProgressAggregator(this::notifyPageDownload);
 
+    // Decides how many of mWorkerMaxCount workers to run
+    private final WorkerCountController mWorkerCountController;
+    private final Metrics.Gauge mWorkerGauge;
     private final int mWorkerMaxCount;
-    private final int mPreloadNumber;
+    // Pages to download ahead of the reader
+    private final ReadAheadPolicy mReadAhead;
+    // For latency to the first page of prefetched chapters
+    private volatile long mReadStartTime;
+    private volatile boolean mFirstImageDecoded;
 
-    private MHComicData data;
+    // Page urls, they are not kept in spider info
+    @Nullable
+    private volatile MHComicData data;
+    private final Object mComicDataLock = new Object();
 
     private SpiderQueen(EhApplication application, @NonNull GalleryInfo galleryInfo) {
         mHttpClient = EhApplication.getOkHttpClient(application);
@@ -177,15 +210,16 @@ public final class SpiderQueen implements Runnable {
         mSpiderDen = new SpiderDen(mGalleryInfo);
 
         mWorkerMaxCount = MathUtils.clamp(Settings.getMultiThreadDownload(), 1, 10);
-        mPreloadNumber = MathUtils.clamp(Settings.getPreloadImage(), 0, 100);
+        mWorkerCountController = new WorkerCountController(1, mWorkerMaxCount, mWorkerMaxCount);
+        mWorkerGauge = mWorkerCountController::getCount;
+        Metrics.gauge(Metrics.SPIDER_WORKERS, mWorkerGauge);
+        // Preloads take at most a quarter of the read cache
+        mReadAhead = new ReadAheadPolicy(MathUtils.clamp(Settings.getPreloadImage(), 0, 100),
+                Settings.getReadCacheSize() * 1024L * 1024L / 4);
 
         for (int i = 0; i < DECODE_THREAD_NUM; i++) {
             mDecodeIndexArray[i] = GalleryPageView.INVALID_INDEX;
         }
-
-        mWorkerPoolExecutor = new ThreadPoolExecutor(mWorkerMaxCount, mWorkerMaxCount,
-                0, TimeUnit.SECONDS, new LinkedBlockingDeque<Runnable>(),
-                new PriorityThreadFactory(SpiderWorker.class.getSimpleName(), Process.THREAD_PRIORITY_BACKGROUND));
     }
 
     public void addOnSpiderListener(OnSpiderListener listener) {
@@ -225,6 +259,7 @@ public final class SpiderQueen implements Runnable {
     }
 
     private void notifyPageSuccess(int index) {
+        mProgressAggregator.remove(index);
         int size = -1;
         int[] temp = mPageStateArray;
         if (temp != null) {
@@ -238,6 +273,7 @@ public final class SpiderQueen implements Runnable {
     }
 
     private void notifyPageFailure(int index, String error) {
+        mProgressAggregator.remove(index);
         int size = -1;
         int[] temp = mPageStateArray;
         if (temp != null) {
@@ -264,6 +300,10 @@ public final class SpiderQueen implements Runnable {
     }
 
     private void notifyGetImageSuccess(int index, Image image) {
+        if (!mFirstImageDecoded) {
+            mFirstImageDecoded = true;
+            PrefetchLedger.onFirstPage(mGalleryInfo.getCid(), SystemClock.elapsedRealtime() - mReadStartTime);
+        }
         synchronized (mSpiderListeners) {
             for (OnSpiderListener listener : mSpiderListeners) {
                 listener.onGetImageSuccess(index, image);
@@ -328,6 +368,7 @@ public final class SpiderQueen implements Runnable {
 
         // Update download page
         boolean intoDownloadMode = false;
+        boolean outOfDownloadMode = false;
         synchronized (mRequestPageQueue) {
             if (mode == MODE_DOWNLOAD) {
                 if (mDownloadPage < 0) {
@@ -335,10 +376,22 @@ public final class SpiderQueen implements Runnable {
                     intoDownloadMode = true;
                 }
             } else {
+                outOfDownloadMode = mDownloadPage >= 0;
                 mDownloadPage = -1;
             }
         }
 
+        if (intoDownloadMode || outOfDownloadMode) {
+            PageCheckpoint checkpoint;
+            synchronized (mCheckpointLock) {
+                checkpoint = mCheckpoint;
+                mCheckpoint = null;
+            }
+            if (checkpoint != null) {
+                IoThreadPoolExecutor.getInstance().execute(() -> saveCheckpoint(checkpoint, true));
+            }
+        }
+
         if (intoDownloadMode && mPageStateArray != null) {
             // Clear download state
             synchronized (mPageStateLock) {
@@ -363,6 +416,7 @@ public final class SpiderQueen implements Runnable {
         switch (mode) {
             case MODE_READ:
                 mReadReference++;
+                mReadStartTime = SystemClock.elapsedRealtime();
                 break;
             case MODE_DOWNLOAD:
                 mDownloadReference++;
@@ -394,22 +448,39 @@ public final class SpiderQueen implements Runnable {
     }
 
     private void start() {
-        Thread queenThread = new PriorityThread(this, TAG + '-' + sIdGenerator.incrementAndGet(),
-                Process.THREAD_PRIORITY_BACKGROUND);
-        mQueenThread = queenThread;
-        queenThread.start();
+        mAlive = true;
+        SpiderPool.executeWorker(mReadReference > 0 ?
+                SpiderPool.PRIORITY_REQUEST : SpiderPool.PRIORITY_DOWNLOAD, this);
     }
 
     private void stop() {
-        Thread queenThread = mQueenThread;
-        if (queenThread != null) {
-            queenThread.interrupt();
-            mQueenThread = null;
+        boolean reading;
+        synchronized (mQueenLock) {
+            mAlive = false;
+            reading = mQueenThread != null;
+            if (reading) {
+                mQueenThread.interrupt();
+            }
         }
+        if (!reading) {
+            // Otherwise it is released after reading spider info
+            IoThreadPoolExecutor.getInstance().execute(this::release);
+        }
+        mProgressAggregator.clear();
+        Metrics.removeGauge(Metrics.SPIDER_WORKERS, mWorkerGauge);
+        Log.d(TAG, "Page progress: " + mProgressAggregator.getRecordCount() + " reads, "
+                + mProgressAggregator.getFlushCount() + " flushes");
+        Log.d(TAG, "Worker concurrency: " + mWorkerCountController.getCount() + "/" + mWorkerMaxCount
+                + ", history " + mWorkerCountController.getHistory());
+        long wastedBytes = mReadAhead.finish();
+        Metrics.add(Metrics.SPIDER_PRELOADS, mReadAhead.getPreloadCount());
+        Metrics.add(Metrics.SPIDER_PRELOAD_HITS, mReadAhead.getHitCount());
+        Metrics.add(Metrics.SPIDER_PRELOAD_WASTED_BYTES, wastedBytes);
+        Log.d(TAG, "Read ahead: " + mReadAhead);
     }
 
     public int size() {
-        if (mQueenThread == null) {
+        if (!mAlive) {
             return GalleryProvider.STATE_ERROR;
         } else if (mPageStateArray == null) {
             return GalleryProvider.STATE_WAIT;
@@ -419,7 +490,7 @@ public final class SpiderQueen implements Runnable {
     }
 
     public String getError() {
-        if (mQueenThread == null) {
+        if (!mAlive) {
             return "Error";
         } else {
             return null;
@@ -445,9 +516,6 @@ public final class SpiderQueen implements Runnable {
     }
 
     private void tryToEnsureWorkers() {
-        if (DEBUG_LOG) {
-            Log.v(TAG, "tryToEnsureWorkers");
-        }
         boolean startWorkers = false;
         synchronized (mRequestPageQueue) {
             if (mPageStateArray != null &&
@@ -476,7 +544,7 @@ public final class SpiderQueen implements Runnable {
     }
 
     public void cancelRequest(int index) {
-        if (mQueenThread == null) {
+        if (!mAlive) {
             return;
         }
 
@@ -488,13 +556,35 @@ public final class SpiderQueen implements Runnable {
         }
     }
 
+    /**
+     * Download the pages from the index ahead, without decoding them.
+     * It works before the page count is known.
+     */
+    public void preload(int index, int count) {
+        if (!mAlive) {
+            return;
+        }
+
+        synchronized (mRequestPageQueue) {
+            int[] pageStateArray = mPageStateArray;
+            int size = pageStateArray != null ? pageStateArray.length : Integer.MAX_VALUE;
+            for (int i = index, n = index + count; i < n && i < size; i++) {
+                if (STATE_NONE == getPageState(i) && !mRequestPageQueue2.contains(i)) {
+                    mRequestPageQueue2.add(i);
+                }
+            }
+        }
+
+        tryToEnsureWorkers();
+    }
+
     /**
      * @return String for error<br>
      * Float for download percent<br>
      * null for wait
      */
     private Object request(int index, boolean ignoreError, boolean force, boolean addNeighbor) {
-        if (mQueenThread == null) {
+        if (!mAlive) {
             return null;
         }
 
@@ -519,8 +609,10 @@ public final class SpiderQueen implements Runnable {
                 }
             }
 
-            // Add next some pages to request queue
+            // Add some pages in reading direction to request queue,
+            // old ones are dropped
             if (addNeighbor) {
+                mReadAhead.onRequest(index);
                 mRequestPageQueue2.clear();
                 int[] pageStateArray = mPageStateArray;
                 int size;
@@ -529,9 +621,14 @@ public final class SpiderQueen implements Runnable {
                 } else {
                     size = Integer.MAX_VALUE;
                 }
-                for (int i = index + 1, n = index + 1 + mPreloadNumber; i < n && i < size; i++) {
-                    if (STATE_NONE == getPageState(i)) {
-                        mRequestPageQueue2.add(i);
+                int step = mReadAhead.isForward() ? 1 : -1;
+                for (int i = 1, n = mReadAhead.getWindow(); i <= n; i++) {
+                    int page = index + step * i;
+                    if (page < 0 || page >= size) {
+                        break;
+                    }
+                    if (STATE_NONE == getPageState(page)) {
+                        mRequestPageQueue2.add(page);
                     }
                 }
             }
@@ -558,14 +655,18 @@ public final class SpiderQueen implements Runnable {
                 synchronized (mDecodeRequestQueue) {
                     if (!contain(mDecodeIndexArray, index) && !mDecodeRequestQueue.contains(index)) {
                         mDecodeRequestQueue.add(index);
-                        mDecodeRequestQueue.notify();
                     }
                 }
+                ensureDecoders();
                 result = null;
                 break;
         }
 
         tryToEnsureWorkers();
+        if (state == STATE_NONE) {
+            // Don't wait behind downloads in the pool
+            ensureRequestWorker();
+        }
 
         return result;
     }
@@ -580,21 +681,152 @@ public final class SpiderQueen implements Runnable {
     }
 
     private void ensureWorkers() {
-        if (DEBUG_LOG) {
-            Log.v(TAG, "ensureWorkers");
+        if (Tracer.ENABLED) {
+            Tracer.instant(Tracer.PHASE_ENSURE_WORKERS, -1);
         }
         synchronized (mWorkerLock) {
-            if (null == mWorkerPoolExecutor) {
+            if (mWorkersStopped) {
                 Log.e(TAG, "Try to start worker after stopped");
                 return;
             }
 
-            for (; mWorkerCount < mWorkerMaxCount; mWorkerCount++) {
-                mWorkerPoolExecutor.execute(new SpiderWorker());
+            int count = mWorkerCountController.getCount();
+            for (; mWorkerCount < count; mWorkerCount++) {
+                SpiderPool.executeWorker(getWorkerPriority(), new SpiderWorker(false));
             }
         }
     }
 
+    /**
+     * Start a worker only for reader requests. It's queued with the highest
+     * priority, so reader requests don't wait behind download workers of
+     * other queens. It isn't counted in mWorkerCount.
+     */
+    private void ensureRequestWorker() {
+        synchronized (mWorkerLock) {
+            if (mWorkersStopped || mRequestWorkerScheduled || mPageStateArray == null) {
+                return;
+            }
+            mRequestWorkerScheduled = true;
+            SpiderPool.executeWorker(SpiderPool.PRIORITY_REQUEST, new SpiderWorker(true));
+        }
+    }
+
+    /**
+     * Try the page again after the delay. The worker returns its pool thread
+     * instead of sleeping, the page stays downloading until then.
+     */
+    private void scheduleRetry(int index, int attempt, long delay) {
+        synchronized (mRequestPageQueue) {
+            mRetryAttempts.put(index, attempt);
+        }
+        SimpleHandler.getInstance().postDelayed(() -> {
+            synchronized (mWorkerLock) {
+                if (mWorkersStopped) {
+                    return;
+                }
+            }
+            synchronized (mRequestPageQueue) {
+                mRetryPageQueue.add(index);
+            }
+            ensureWorkers();
+        }, delay);
+    }
+
+    private boolean hasPendingRetry() {
+        synchronized (mRequestPageQueue) {
+            return mRetryAttempts.size() > 0;
+        }
+    }
+
+    private boolean hasReaderRequest() {
+        synchronized (mRequestPageQueue) {
+            return !mForceRequestPageQueue.isEmpty() || !mRequestPageQueue.isEmpty();
+        }
+    }
+
+    @SpiderPool.Priority
+    private int getWorkerPriority() {
+        synchronized (mRequestPageQueue) {
+            if (!mForceRequestPageQueue.isEmpty() || !mRequestPageQueue.isEmpty()) {
+                return SpiderPool.PRIORITY_REQUEST;
+            } else if (!mRequestPageQueue2.isEmpty()) {
+                return SpiderPool.PRIORITY_PRELOAD;
+            } else {
+                return SpiderPool.PRIORITY_DOWNLOAD;
+            }
+        }
+    }
+
+    private void ensureDecoders() {
+        synchronized (mWorkerLock) {
+            if (mWorkersStopped) {
+                return;
+            }
+            synchronized (mDecodeRequestQueue) {
+                int pending = mDecodeRequestQueue.size();
+                for (int i = 0; i < DECODE_THREAD_NUM && pending > 0; i++) {
+                    if (!mDecoderScheduled[i]) {
+                        mDecoderScheduled[i] = true;
+                        SpiderPool.executeDecoder(new SpiderDecoder(i));
+                        pending--;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Register the current pool thread, so it's interrupted on stop.
+     *
+     * @return false if it's stopped
+     */
+    private boolean enterPoolThread() {
+        synchronized (mWorkerLock) {
+            if (mWorkersStopped) {
+                return false;
+            }
+            mPoolThreads.add(Thread.currentThread());
+            return true;
+        }
+    }
+
+    private void exitPoolThread() {
+        synchronized (mWorkerLock) {
+            mPoolThreads.remove(Thread.currentThread());
+        }
+    }
+
+    /**
+     * Returns the number of workers it tries to run now.
+     */
+    public int getWorkerConcurrency() {
+        return mWorkerCountController.getCount();
+    }
+
+    /**
+     * Returns recent changes of worker count, the oldest first.
+     */
+    @NonNull
+    public List<WorkerCountController.Sample> getWorkerConcurrencyHistory() {
+        return mWorkerCountController.getHistory();
+    }
+
+    private void onPageResult(boolean success, long bytes, int code) {
+        if (success) {
+            mWorkerCountController.onSuccess(bytes);
+            Metrics.increment(Metrics.SPIDER_PAGE_SUCCESSES);
+            Metrics.add(Metrics.SPIDER_BYTES, bytes);
+        } else {
+            mWorkerCountController.onFailure(code);
+            Metrics.increment(Metrics.SPIDER_PAGE_FAILURES);
+        }
+        if (mWorkerCountController.update()) {
+            // Start more workers if it grows, extra workers retire themselves if it shrinks
+            ensureWorkers();
+        }
+    }
+
     public boolean save(int index, @NonNull UniFile file) {
         int state = getPageState(index);
         if (STATE_FINISHED != state) {
@@ -672,6 +904,9 @@ public final class SpiderQueen implements Runnable {
     }
 
     public void putStartPage(int page) {
+        // It's called when the reader goes to the page
+        mReadAhead.onPosition(page);
+
         final SpiderInfo spiderInfo = mSpiderInfo.get();
         if (spiderInfo != null) {
             spiderInfo.startPage = page;
@@ -703,7 +938,7 @@ public final class SpiderQueen implements Runnable {
         }
 
         // Read from cache
-        InputStreamPipe pipe = mSpiderInfoCache.getInputStreamPipe(mGalleryInfo.getCid());
+        InputStreamPipe pipe = mSpiderInfoCache.getInputStreamPipe(mGalleryInfo.getCid(), SPIDER_INFO_FILENAME);
         if (null != pipe) {
             try {
                 pipe.obtain();
@@ -724,27 +959,61 @@ public final class SpiderQueen implements Runnable {
     }
 
     private SpiderInfo readSpiderInfoFromInternet() {
-        if (DEBUG_LOG) {
-            Log.v(TAG, "readSpiderInfoFromInternet");
+        if (Tracer.ENABLED) {
+            Tracer.begin(Tracer.PHASE_SPIDER_INFO, -1);
         }
-
         try {
             SpiderInfo spiderInfo = new SpiderInfo();
             spiderInfo.gid = mGalleryInfo.getCid();
             spiderInfo.token = mGalleryInfo.token;
 
-            data = MHApi.Companion.getINSTANCE().get(mGalleryInfo.source).data(mGalleryInfo.gid, mGalleryInfo.cid).blockingFirst();
-            spiderInfo.pages = data.getData().size();
+            MHComicData comicData = readComicData();
+            data = comicData;
+            spiderInfo.pages = comicData.getData().size();
             spiderInfo.pTokenMap = new SparseArray<>(spiderInfo.pages);
-            if (DEBUG_LOG) {
-                Log.v(TAG, "page" + spiderInfo.pages);
-            }
             // readPreviews(body, 0, spiderInfo);
             return spiderInfo;
         } catch (Throwable e) {
             e.printStackTrace();
             ExceptionUtils.throwIfFatal(e);
             return null;
+        } finally {
+            if (Tracer.ENABLED) {
+                Tracer.end(Tracer.PHASE_SPIDER_INFO, -1);
+            }
+        }
+    }
+
+    private MHComicData readComicData() throws Exception {
+        return SourceGuard.get(mGalleryInfo.source).call(() ->
+                MHApi.Companion.getINSTANCE().get(mGalleryInfo.source).data(mGalleryInfo.gid, mGalleryInfo.cid).blockingFirst());
+    }
+
+    /**
+     * Returns page urls. Spider info from local has no page urls, like a downloaded
+     * gallery or a prefetched chapter, they are got when the first page must be downloaded.
+     * So galleries in cache or download dir are read without network.
+     *
+     * @return null if they can't be got
+     */
+    @Nullable
+    private MHComicData ensureComicData() {
+        MHComicData comicData = data;
+        if (comicData != null) {
+            return comicData;
+        }
+        synchronized (mComicDataLock) {
+            comicData = data;
+            if (comicData == null) {
+                try {
+                    comicData = readComicData();
+                    data = comicData;
+                } catch (Throwable e) {
+                    ExceptionUtils.throwIfFatal(e);
+                    Log.e(TAG, "Can't get page urls", e);
+                }
+            }
+            return comicData;
         }
     }
 
@@ -762,7 +1031,7 @@ public final class SpiderQueen implements Runnable {
         }
 
         // Read from cache
-        OutputStreamPipe pipe = mSpiderInfoCache.getOutputStreamPipe(mGalleryInfo.getCid());
+        OutputStreamPipe pipe = mSpiderInfoCache.getOutputStreamPipe(mGalleryInfo.getCid(), SPIDER_INFO_FILENAME);
         try {
             pipe.obtain();
             spiderInfo.write(pipe.open());
@@ -774,13 +1043,14 @@ public final class SpiderQueen implements Runnable {
         }
     }
 
-    private void runInternal() {
+    // false if it failed or was interrupted
+    private boolean runInternal() {
         // Read spider info
         SpiderInfo spiderInfo = readSpiderInfoFromLocal();
 
         // Check interrupted
         if (Thread.currentThread().isInterrupted()) {
-            return;
+            return false;
         }
 
         // Spider info from internet
@@ -791,13 +1061,13 @@ public final class SpiderQueen implements Runnable {
         // Error! Can't get spiderInfo
         if (spiderInfo == null) {
             Log.e(TAG, "can't get spider info");
-            return;
+            return false;
         }
         mSpiderInfo.lazySet(spiderInfo);
 
         // Check interrupted
         if (Thread.currentThread().isInterrupted()) {
-            return;
+            return false;
         }
 
         // Write spider info to file
@@ -805,7 +1075,7 @@ public final class SpiderQueen implements Runnable {
 
         // Check interrupted
         if (Thread.currentThread().isInterrupted()) {
-            return;
+            return false;
         }
 
         // Setup page state
@@ -816,52 +1086,146 @@ public final class SpiderQueen implements Runnable {
         // Notify get pages
         notifyGetPages(spiderInfo.pages);
 
+        // Finished pages are known from checkpoint, no need to look for them
+        PageCheckpoint checkpoint = ensureCheckpoint();
+        // Copy cached pages to download dir in bulk, so workers find them there
+        if ((checkpoint == null || !checkpoint.isRestored()) &&
+                mSpiderDen.copyAllFromCacheToDownloadDir(spiderInfo.pages) < 0) {
+            return false;
+        }
+
         // Ensure worker
         tryToEnsureWorkers();
 
-        // Start decoder
-        for (int i = 0; i < DECODE_THREAD_NUM; i++) {
-            Thread decoderThread = new PriorityThread(new SpiderDecoder(i),
-                    "SpiderDecoder-" + i, Process.THREAD_PRIORITY_DEFAULT);
-            mDecodeThreadArray[i] = decoderThread;
-            decoderThread.start();
-        }
-
-        while (!Thread.currentThread().isInterrupted()) {
-            // Notify worker
-            synchronized (mWorkerLock) {
-                mWorkerLock.notifyAll();
-            }
-        }
+        return true;
     }
 
     @Override
     public void run() {
-        if (DEBUG_LOG) {
-            Log.i(TAG, Thread.currentThread().getName() + ": start");
+        synchronized (mQueenLock) {
+            if (!mAlive) {
+                return;
+            }
+            mQueenThread = Thread.currentThread();
         }
 
-        runInternal();
+        if (Tracer.ENABLED) {
+            Tracer.begin(Tracer.PHASE_QUEEN, -1);
+        }
 
-        // Set mQueenThread null
-        mQueenThread = null;
+        boolean success = runInternal();
 
-        // Interrupt decoder
-        for (Thread decoderThread : mDecodeThreadArray) {
-            if (decoderThread != null) {
-                decoderThread.interrupt();
+        if (Tracer.ENABLED) {
+            Tracer.end(Tracer.PHASE_QUEEN, -1);
+        }
+
+        synchronized (mQueenLock) {
+            mQueenThread = null;
+            if (!success) {
+                mAlive = false;
             }
+            success = mAlive;
         }
+        // Pool thread must not keep the interrupt of stop()
+        Thread.interrupted();
 
-        // Interrupt all workers
+        if (!success) {
+            release();
+        }
+    }
+
+    /**
+     * Stop workers and decoders, save the checkpoint and close the den.
+     * It's called once, on a background thread.
+     */
+    private void release() {
+        if (!mReleased.compareAndSet(false, true)) {
+            return;
+        }
+
+        // Interrupt all workers and decoders
         synchronized (mWorkerLock) {
-            mWorkerPoolExecutor.shutdownNow();
-            mWorkerPoolExecutor = null;
+            mWorkersStopped = true;
+            for (Thread thread : mPoolThreads) {
+                thread.interrupt();
+            }
+        }
+        synchronized (mDecodeRequestQueue) {
+            mDecodeRequestQueue.clear();
+        }
+
+        PageCheckpoint checkpoint = mCheckpoint;
+        if (checkpoint != null) {
+            saveCheckpoint(checkpoint, true);
         }
+        mSpiderDen.close();
+
         notifyFinish();
+    }
 
-        if (DEBUG_LOG) {
-            Log.i(TAG, Thread.currentThread().getName() + ": end");
+    /**
+     * Load checkpoint of the download, or create it from page states.
+     * Pages finished in the checkpoint are set finished, pages being written
+     * are removed.
+     *
+     * @return null if it is not in download mode
+     */
+    @Nullable
+    private PageCheckpoint ensureCheckpoint() {
+        PageCheckpoint checkpoint = mCheckpoint;
+        if (checkpoint != null || mDownloadPage < 0) {
+            return checkpoint;
+        }
+
+        synchronized (mCheckpointLock) {
+            checkpoint = mCheckpoint;
+            int[] pageStateArray = mPageStateArray;
+            if (checkpoint != null || mDownloadPage < 0 || pageStateArray == null) {
+                return checkpoint;
+            }
+
+            int pages = pageStateArray.length;
+            UniFile dir = mSpiderDen.getDownloadDir();
+            checkpoint = dir != null ? PageCheckpoint.read(dir, pages) : null;
+            if (checkpoint != null) {
+                // Files of them are incomplete
+                for (int index : checkpoint.getActivePages()) {
+                    mSpiderDen.remove(index);
+                    checkpoint.onReset(index);
+                }
+            } else {
+                checkpoint = new PageCheckpoint(pages, false);
+            }
+
+            synchronized (mPageStateLock) {
+                for (int i = 0; i < pages; i++) {
+                    int state = pageStateArray[i];
+                    if (state == STATE_FINISHED) {
+                        checkpoint.onFinish(i);
+                    } else if (state == STATE_NONE && checkpoint.isFinished(i)) {
+                        pageStateArray[i] = STATE_FINISHED;
+                        mDownloadedPages.incrementAndGet();
+                        mFinishedPages.incrementAndGet();
+                    }
+                }
+            }
+
+            // Skip finished pages
+            synchronized (mRequestPageQueue) {
+                if (mDownloadPage >= 0) {
+                    mDownloadPage = checkpoint.nextUnfinished(mDownloadPage);
+                }
+            }
+
+            mCheckpoint = checkpoint;
+            return checkpoint;
+        }
+    }
+
+    private void saveCheckpoint(@NonNull PageCheckpoint checkpoint, boolean force) {
+        UniFile dir = mSpiderDen.getDownloadDir();
+        if (dir != null) {
+            checkpoint.save(dir, force);
         }
     }
 
@@ -904,6 +1268,17 @@ public final class SpiderQueen implements Runnable {
                 }
                 mPageErrorMap.put(index, error);
             }
+
+            PageCheckpoint checkpoint = mCheckpoint;
+            if (checkpoint != null) {
+                if (state == STATE_DOWNLOADING) {
+                    checkpoint.onStart(index);
+                } else if (state == STATE_FINISHED) {
+                    checkpoint.onFinish(index);
+                } else {
+                    checkpoint.onReset(index);
+                }
+            }
         }
 
         // Notify listeners
@@ -917,52 +1292,84 @@ public final class SpiderQueen implements Runnable {
     private class SpiderWorker implements Runnable {
 
         private final String mGid;
+        // Only for reader requests, see ensureRequestWorker()
+        private final boolean mRequestOnly;
+        private boolean mRetired;
 
-        public SpiderWorker() {
+        public SpiderWorker(boolean requestOnly) {
             mGid = mGalleryInfo.getCid();
+            mRequestOnly = requestOnly;
         }
 
         // false for stop
-        private boolean downloadImage(String gid, int index, String pToken, String previousPToken, boolean force) {
-            if (DEBUG_LOG) {
-                Log.d(TAG, "download image ");
-            }
-
+        private boolean downloadImage(String gid, int index, int attempt, boolean force) {
             String pageUrl = null;
             String error = null;
             boolean interrupt = false;
+            SourceGuard guard = SourceGuard.get(mGalleryInfo.source);
+            // The page is in neither cache nor download dir, page urls are needed
+            MHComicData comicData = ensureComicData();
+            int attempts = MAX_PAGE_ATTEMPTS;
+            if (comicData == null || index >= comicData.getData().size()) {
+                error = GetText.getString(R.string.error_source_unavailable);
+                attempts = 0;
+            }
+
+            // One attempt each time, continue for failed
+            for (int i = attempt; i < attempts; i++) {
+                // Retry later in the queue instead of sleeping on a shared pool thread,
+                // give up if the source is down or retries are used up
+                if (i > attempt) {
+                    long delay = guard.retryDelay(i - 1);
+                    if (delay < 0) {
+                        break;
+                    }
+                    // Don't leave the part of failed image to the reader
+                    mSpiderDen.remove(index);
+                    scheduleRetry(index, i, delay);
+                    return true;
+                }
+                // Each allowed request reports exactly one result to the guard
+                if (!guard.allowRequest()) {
+                    error = GetText.getString(R.string.error_source_unavailable);
+                    break;
+                }
 
-            for (int i = 0; i < 5; i++) {
                 String targetImageUrl = null;
-                pageUrl = data.getData().get(index);
-                if (DEBUG_LOG) {
-                    Log.d(TAG, pageUrl);
+                pageUrl = comicData.getData().get(index);
+                long resolveStart = Metrics.start();
+                if (Tracer.ENABLED) {
+                    Tracer.begin(Tracer.PHASE_RESOLVE_URL, index);
                 }
                 try {
                     targetImageUrl = MHApi.Companion.getINSTANCE().get(mGalleryInfo.source).raw(pageUrl).blockingFirst();
+                    Metrics.record(Metrics.SPIDER_RESOLVE_URL, resolveStart);
                 } catch (Exception e) {
+                    guard.onFailure(e);
                     error = "Api failed";
+                } finally {
+                    if (Tracer.ENABLED) {
+                        Tracer.end(Tracer.PHASE_RESOLVE_URL, index);
+                    }
                 }
 
                 if (targetImageUrl == null) {
                     continue;
                 }
-                if (DEBUG_LOG) {
-                    Log.d(TAG, targetImageUrl);
-                }
 
                 // Download image
                 OutputStreamPipe pipe = null;
                 InputStream is = null;
                 try {
-                    if (DEBUG_LOG) {
-                        Log.d(TAG, "Start download image " + index);
+                    if (Tracer.ENABLED) {
+                        Tracer.begin(Tracer.PHASE_FETCH, index);
                     }
 
                     Call call = mHttpClient.newCall(new EhRequestBuilder(targetImageUrl,
                             MHApi.Companion.getINSTANCE().get(mGalleryInfo.source).pageUrl(mGalleryInfo.gid) + mGalleryInfo.cid + ".html")
                             .build());
 
+                    long downloadStart = Metrics.start();
                     Response response = call.execute();
                     ResponseBody responseBody = response.body();
 
@@ -970,11 +1377,16 @@ public final class SpiderQueen implements Runnable {
                         // Maybe 404
                         response.close();
                         error = "Bad code: " + response.code();
+                        onPageResult(false, 0, response.code());
+                        // A code not transient means the source answers
+                        guard.onFailure(SourceGuard.isTransientCode(response.code()) ?
+                                new IOException(error) : new IllegalStateException(error));
                         continue;
                     }
 
                     if (responseBody == null) {
                         error = "Empty response body";
+                        guard.onFailure(new IOException(error));
                         continue;
                     }
 
@@ -995,6 +1407,7 @@ public final class SpiderQueen implements Runnable {
                         // Can't get pipe
                         error = GetText.getString(R.string.error_write_failed);
                         response.close();
+                        guard.onCancel();
                         break;
                     }
 
@@ -1005,6 +1418,8 @@ public final class SpiderQueen implements Runnable {
 
                     final byte data[] = new byte[1024 * 4];
                     long receivedSize = 0;
+                    PageCheckpoint checkpoint = mCheckpoint;
+                    long writeNanos = 0;
 
                     while (!Thread.currentThread().isInterrupted()) {
                         int bytesRead = is.read(data);
@@ -1012,22 +1427,39 @@ public final class SpiderQueen implements Runnable {
                             response.close();
                             break;
                         }
+                        if (receivedSize == 0) {
+                            Metrics.record(Metrics.SPIDER_FIRST_BYTE, downloadStart);
+                        }
+                        long writeStart = Metrics.start();
                         os.write(data, 0, bytesRead);
+                        if (writeStart != 0) {
+                            writeNanos += System.nanoTime() - writeStart;
+                        }
                         receivedSize += bytesRead;
                         // Update page percent
                         if (contentLength > 0) {
                             mPagePercentMap.put(index, (float) receivedSize / contentLength);
                         }
                         // Notify listener
-                        notifyPageDownload(index, contentLength, receivedSize, bytesRead);
+                        mProgressAggregator.record(index, contentLength, receivedSize, bytesRead);
+                        if (checkpoint != null) {
+                            checkpoint.onProgress(index, receivedSize);
+                        }
                     }
+                    long flushStart = Metrics.start();
                     os.flush();
+                    if (flushStart != 0) {
+                        writeNanos += System.nanoTime() - flushStart;
+                        Metrics.recordNanos(Metrics.SPIDER_DISK_WRITE, writeNanos);
+                    }
 
                     // check download size
                     if (contentLength >= 0) {
                         if (receivedSize < contentLength) {
                             Log.e(TAG, "Can't download all of image data");
                             error = "Incomplete";
+                            onPageResult(false, 0, 0);
+                            guard.onFailure(new IOException(error));
                             continue;
                         } else if (receivedSize > contentLength) {
                             Log.w(TAG, "Received data is more than contentLength");
@@ -1038,19 +1470,25 @@ public final class SpiderQueen implements Runnable {
                     if (Thread.currentThread().isInterrupted()) {
                         interrupt = true;
                         error = "Interrupted";
+                        guard.onCancel();
                         break;
                     }
 
-                    if (DEBUG_LOG) {
-                        Log.d(TAG, "Download image succeed " + index);
-                    }
+                    // Only a complete page goes into the pack
+                    GalleryPack.commit(os);
 
                     // Download finished
+                    Metrics.record(Metrics.SPIDER_DOWNLOAD, downloadStart);
                     updatePageState(index, STATE_FINISHED);
+                    onPageResult(true, receivedSize, 0);
+                    mReadAhead.onPageBytes(index, receivedSize);
+                    guard.onSuccess();
                     return true;
                 } catch (IOException e) {
                     e.printStackTrace();
                     error = GetText.getString(R.string.error_socket);
+                    onPageResult(false, 0, 0);
+                    guard.onFailure(e);
                 } finally {
                     IOUtils.closeQuietly(is);
                     if (null != pipe) {
@@ -1058,8 +1496,8 @@ public final class SpiderQueen implements Runnable {
                         pipe.release();
                     }
 
-                    if (DEBUG_LOG) {
-                        Log.d(TAG, "End download image " + index);
+                    if (Tracer.ENABLED) {
+                        Tracer.end(Tracer.PHASE_FETCH, index);
                     }
                 }
             }
@@ -1071,6 +1509,20 @@ public final class SpiderQueen implements Runnable {
             return !interrupt;
         }
 
+        // Leave if there are more workers than wanted
+        private boolean retire() {
+            synchronized (mWorkerLock) {
+                if (mWorkerCount > mWorkerCountController.getCount()) {
+                    mWorkerCount--;
+                    mRetired = true;
+                    if (Tracer.ENABLED) {
+                        Tracer.instant(Tracer.PHASE_RETIRE, -1);
+                    }
+                }
+                return mRetired;
+            }
+        }
+
         // false for stop
         private boolean runInternal() {
             SpiderInfo spiderInfo = mSpiderInfo.get();
@@ -1081,18 +1533,30 @@ public final class SpiderQueen implements Runnable {
 
             int size = mPageStateArray.length;
 
+            // Restore finished pages before taking the first download page
+            PageCheckpoint checkpoint = ensureCheckpoint();
+
             // Get request index
             int index;
             // From force request
             boolean force = false;
+            // From preload
+            boolean preload = false;
+            // Failed attempts before, for retry
+            int attempt = 0;
             synchronized (mRequestPageQueue) {
                 if (!mForceRequestPageQueue.isEmpty()) {
                     index = mForceRequestPageQueue.remove();
                     force = true;
                 } else if (!mRequestPageQueue.isEmpty()) {
                     index = mRequestPageQueue.remove();
+                } else if (!mRetryPageQueue.isEmpty()) {
+                    index = mRetryPageQueue.remove();
+                    attempt = mRetryAttempts.get(index);
+                    mRetryAttempts.delete(index);
                 } else if (!mRequestPageQueue2.isEmpty()) {
                     index = mRequestPageQueue2.remove();
+                    preload = true;
                 } else if (mDownloadPage >= 0 && mDownloadPage < size) {
                     index = mDownloadPage;
                     mDownloadPage++;
@@ -1110,10 +1574,17 @@ public final class SpiderQueen implements Runnable {
                 }
             }
 
+            // Skip preloads the reader has passed
+            if (preload && mReadAhead.isBehind(index)) {
+                return true;
+            }
+
             synchronized (mPageStateLock) {
                 // Check the page state
                 int state = mPageStateArray[index];
-                if (state == STATE_DOWNLOADING || (!force && (state == STATE_FINISHED || state == STATE_FAILED))) {
+                // A page waiting for retry is still downloading
+                if (attempt == 0 && (state == STATE_DOWNLOADING ||
+                        (!force && (state == STATE_FINISHED || state == STATE_FAILED)))) {
                     return true;
                 }
 
@@ -1121,44 +1592,100 @@ public final class SpiderQueen implements Runnable {
                 updatePageState(index, STATE_DOWNLOADING);
             }
 
-            // Check exist for not force request
-            if (!force && mSpiderDen.contain(index)) {
+            // Check exist for not force request, unfinished pages
+            // in restored checkpoint are not in download dir
+            if (!force && (checkpoint != null && checkpoint.isRestored() ?
+                    mSpiderDen.containExceptDownloadDir(index) : mSpiderDen.contain(index))) {
                 updatePageState(index, STATE_FINISHED);
+                if (checkpoint != null) {
+                    saveCheckpoint(checkpoint, false);
+                }
                 return true;
             }
 
+            if (preload) {
+                mReadAhead.onPreload(index);
+            }
+
             // Get image url
-            return downloadImage(mGid, index, null, null, force);
+            if (Tracer.ENABLED) {
+                Tracer.begin(Tracer.PHASE_PAGE, index);
+            }
+            boolean result = downloadImage(mGid, index, attempt, force);
+            if (Tracer.ENABLED) {
+                Tracer.end(Tracer.PHASE_PAGE, index);
+            }
+            if (checkpoint != null) {
+                saveCheckpoint(checkpoint, false);
+            }
+            return result;
         }
 
+        // One page at a time, it's queued again in SpiderPool for the next one
         @Override
-        @SuppressWarnings("StatementWithEmptyBody")
         public void run() {
-            if (DEBUG_LOG) {
-                Log.i(TAG, Thread.currentThread().getName() + ": start");
+            if (Tracer.ENABLED) {
+                Tracer.begin(Tracer.PHASE_WORKER, -1);
             }
 
-            while (mSpiderDen.isReady() && !Thread.currentThread().isInterrupted() && runInternal())
-                ;
+            boolean next = false;
+            if (enterPoolThread()) {
+                try {
+                    if (mRequestOnly) {
+                        next = mSpiderDen.isReady() && hasReaderRequest() && runInternal();
+                    } else {
+                        next = mSpiderDen.isReady() && !retire() && runInternal();
+                    }
+                } finally {
+                    exitPoolThread();
+                }
+                // Interrupted by stop, don't leave it to the next task of the thread
+                if (Thread.interrupted()) {
+                    next = false;
+                }
+            }
+
+            if (Tracer.ENABLED) {
+                Tracer.end(Tracer.PHASE_WORKER, -1);
+            }
+
+            if (next) {
+                SpiderPool.executeWorker(mRequestOnly ?
+                        SpiderPool.PRIORITY_REQUEST : getWorkerPriority(), this);
+                return;
+            }
+
+            if (mRequestOnly) {
+                synchronized (mWorkerLock) {
+                    mRequestWorkerScheduled = false;
+                }
+                // A request might come before the flag is cleared
+                if (hasReaderRequest()) {
+                    ensureRequestWorker();
+                }
+                return;
+            }
 
             boolean finish;
             // Clear in spider worker array
             synchronized (mWorkerLock) {
-                mWorkerCount--;
-                if (mWorkerCount < 0) {
-                    Log.e(TAG, "WTF, mWorkerCount < 0, not thread safe or something wrong");
-                    mWorkerCount = 0;
+                if (mRetired) {
+                    // Counted in retire()
+                    finish = false;
+                } else {
+                    mWorkerCount--;
+                    if (mWorkerCount < 0) {
+                        Log.e(TAG, "WTF, mWorkerCount < 0, not thread safe or something wrong");
+                        mWorkerCount = 0;
+                    }
+                    // A page waiting for retry starts workers again
+                    finish = mWorkerCount <= 0 && !hasPendingRetry();
                 }
-                finish = mWorkerCount <= 0;
             }
 
             if (finish) {
                 notifyFinish();
             }
-
-            if (DEBUG_LOG) {
-                Log.i(TAG, Thread.currentThread().getName() + ": end");
-            }
         }
     }
 
@@ -1176,23 +1703,40 @@ public final class SpiderQueen implements Runnable {
             }
         }
 
+        // Decode until the queue is empty, the pool thread is returned then
         @Override
         public void run() {
-            if (DEBUG_LOG) {
-                Log.i(TAG, Thread.currentThread().getName() + ": start");
+            if (Tracer.ENABLED) {
+                Tracer.begin(Tracer.PHASE_DECODER, -1);
             }
 
-            while (!Thread.currentThread().isInterrupted()) {
+            if (enterPoolThread()) {
+                try {
+                    decodeLoop();
+                } finally {
+                    exitPoolThread();
+                }
+                // Interrupted by stop, don't leave it to the next task of the thread
+                Thread.interrupted();
+            } else {
+                synchronized (mDecodeRequestQueue) {
+                    mDecoderScheduled[mThreadIndex] = false;
+                }
+            }
+
+            if (Tracer.ENABLED) {
+                Tracer.end(Tracer.PHASE_DECODER, -1);
+            }
+        }
+
+        private void decodeLoop() {
+            while (true) {
                 int index;
                 synchronized (mDecodeRequestQueue) {
-                    if (mDecodeRequestQueue.isEmpty()) {
-                        try {
-                            mDecodeRequestQueue.wait();
-                        } catch (InterruptedException e) {
-                            // Interrupted
-                            break;
-                        }
-                        continue;
+                    if (mDecodeRequestQueue.isEmpty() || Thread.currentThread().isInterrupted()) {
+                        // Scheduled again by ensureDecoders() for new requests
+                        mDecoderScheduled[mThreadIndex] = false;
+                        break;
                     }
                     index = mDecodeRequestQueue.remove();
                     mDecodeIndexArray[mThreadIndex] = index;
@@ -1231,7 +1775,17 @@ public final class SpiderQueen implements Runnable {
                 }
 
                 if (is != null) {
-                    image = Image.decode(is, true);
+                    long decodeStart = Metrics.start();
+                    if (Tracer.ENABLED) {
+                        Tracer.begin(Tracer.PHASE_DECODE, index);
+                    }
+                    final int page = index;
+                    image = TiledPageDecoder.decode(mGalleryInfo.getCid() + '#' + index, is,
+                            () -> openPageInputStream(page));
+                    if (Tracer.ENABLED) {
+                        Tracer.end(Tracer.PHASE_DECODE, index);
+                    }
+                    Metrics.record(Metrics.SPIDER_DECODE, decodeStart);
                     if (image == null) {
                         error = GetText.getString(R.string.error_decoding_failed);
                     }
@@ -1246,10 +1800,25 @@ public final class SpiderQueen implements Runnable {
 
                 resetDecodeIndex();
             }
+        }
+    }
 
-            if (DEBUG_LOG) {
-                Log.i(TAG, Thread.currentThread().getName() + ": end");
-            }
+    /**
+     * Opens the page in the den with its own pipe, closed with the stream.
+     */
+    @NonNull
+    private InputStream openPageInputStream(int index) throws IOException {
+        InputStreamPipe pipe = mSpiderDen.openInputStreamPipe(index);
+        if (pipe == null) {
+            throw new IOException("Can't find page " + index);
+        }
+        pipe.obtain();
+        try {
+            return new AutoCloseInputStream(pipe, pipe.open());
+        } catch (IOException e) {
+            pipe.close();
+            pipe.release();
+            throw e;
         }
     }
 
@@ -1257,6 +1826,7 @@ public final class SpiderQueen implements Runnable {
 
         private final InputStreamPipe mPipe;
         private final InputStream mIs;
+        private boolean mClosed;
 
         public AutoCloseInputStream(InputStreamPipe pipe, InputStream is) {
             mPipe = pipe;
@@ -1275,6 +1845,11 @@ public final class SpiderQueen implements Runnable {
 
         @Override
         public void close() throws IOException {
+            // The pipe is released once
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
             mPipe.close();
             mPipe.release();
         }
@@ -1287,7 +1862,10 @@ public final class SpiderQueen implements Runnable {
         void onGet509(int index);
 
         /**
+         * Called in UI thread, the progress of all reads since last call is merged.
+         *
          * @param contentLength -1 for unknown
+         * @param bytesRead bytes read since last call for the page
          */
         void onPageDownload(int index, long contentLength, long receivedSize, int bytesRead);
 
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.spider;
+
+import android.util.Log;
+import androidx.annotation.NonNull;
+import com.hippo.util.Clock;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Decides how many workers a {@link SpiderQueen} runs, AIMD-style.
+ * <p>
+ * Results of page downloads are collected in windows. At the end of a window,
+ * the worker count is halved if the server throttles or too many pages fail,
+ * or goes back if it's the worker just tried. Otherwise one more worker is tried. If it makes throughput better, the count
+ * is kept and the next one is tried. If it doesn't, the count goes back to the
+ * last one which helped and stays there for some windows before trying again.
+ * The hold-off doubles each time the same try fails, so the count settles.
+ */
+public class WorkerCountController {
+
+    private static final String TAG = WorkerCountController.class.getSimpleName();
+
+    static final long WINDOW = 3000;
+    // Don't judge a window with fewer results
+    private static final int MIN_WINDOW_RESULTS = 3;
+    private static final float MAX_ERROR_RATE = 0.2f;
+    // Throughput must be better by it to keep an increase
+    private static final float MIN_GAIN = 1.1f;
+    private static final int MAX_HISTORY = 64;
+    // Windows to wait before trying one more worker again
+    private static final int MIN_HOLD_OFF = 5;
+    private static final int MAX_HOLD_OFF = 40;
+
+    public static final class Sample {
+        public final long time;
+        public final int count;
+        public final long throughput;
+        public final float errorRate;
+
+        Sample(long time, int count, long throughput, float errorRate) {
+            this.time = time;
+            this.count = count;
+            this.throughput = throughput;
+            this.errorRate = errorRate;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d workers, %d B/s, %.0f%% errors",
+                    count, throughput, errorRate * 100);
+        }
+    }
+
+    private final Clock mClock;
+    private final int mMinCount;
+    private final int mMaxCount;
+    private int mCount;
+
+    private long mWindowStart;
+    private long mWindowBytes;
+    private int mWindowSuccesses;
+    private int mWindowFailures;
+    private boolean mThrottled;
+
+    // Throughput before the last increase, -1 if the last change is not an increase
+    private long mThroughputBeforeIncrease = -1;
+    // The last count which made throughput better, or the start count
+    private int mStableCount;
+    private int mHoldOff = MIN_HOLD_OFF;
+    // Windows left before trying one more worker
+    private int mHoldWindows;
+
+    private final LinkedList<Sample> mHistory = new LinkedList<>();
+
+    /**
+     * @param startCount the count to start with, like the thread setting
+     */
+    WorkerCountController(int minCount, int maxCount, int startCount) {
+        this(minCount, maxCount, startCount, Clock.SYSTEM);
+    }
+
+    WorkerCountController(int minCount, int maxCount, int startCount, @NonNull Clock clock) {
+        mClock = clock;
+        mWindowStart = clock.elapsedRealtime();
+        mMinCount = Math.max(1, minCount);
+        mMaxCount = Math.max(mMinCount, maxCount);
+        mCount = Math.min(mMaxCount, Math.max(mMinCount, startCount));
+        mStableCount = mCount;
+    }
+
+    synchronized int getCount() {
+        return mCount;
+    }
+
+    int getMaxCount() {
+        return mMaxCount;
+    }
+
+    @NonNull
+    synchronized List<Sample> getHistory() {
+        return new ArrayList<>(mHistory);
+    }
+
+    synchronized void onSuccess(long bytes) {
+        mWindowBytes += bytes;
+        mWindowSuccesses++;
+    }
+
+    /**
+     * @param code the http status code, 0 for network error
+     */
+    synchronized void onFailure(int code) {
+        mWindowFailures++;
+        if (code == 429 || code == 503) {
+            mThrottled = true;
+        }
+    }
+
+    /**
+     * Close the window if it is time.
+     *
+     * @return true if the worker count is changed
+     */
+    synchronized boolean update() {
+        long now = mClock.elapsedRealtime();
+        long duration = now - mWindowStart;
+        int results = mWindowSuccesses + mWindowFailures;
+        if (!mThrottled && (duration < WINDOW || results < MIN_WINDOW_RESULTS)) {
+            return false;
+        }
+
+        long throughput = mWindowBytes * 1000 / Math.max(1, duration);
+        float errorRate = results == 0 ? 0.0f : (float) mWindowFailures / results;
+        int oldCount = mCount;
+
+        if ((mThrottled || errorRate > MAX_ERROR_RATE) && mThroughputBeforeIncrease >= 0) {
+            // The last increase is too much, go back and wait longer each time
+            mCount = mStableCount;
+            mThroughputBeforeIncrease = -1;
+            mHoldWindows = mHoldOff;
+            mHoldOff = Math.min(MAX_HOLD_OFF, mHoldOff * 2);
+        } else if (mThrottled || errorRate > MAX_ERROR_RATE) {
+            // Multiplicative decrease
+            mCount = Math.max(mMinCount, mCount / 2);
+            mStableCount = mCount;
+            mThroughputBeforeIncrease = -1;
+            mHoldOff = MIN_HOLD_OFF;
+            mHoldWindows = mHoldOff;
+        } else if (mThroughputBeforeIncrease >= 0) {
+            if (throughput >= mThroughputBeforeIncrease * MIN_GAIN) {
+                // The last increase helps, keep it and try the next one
+                mStableCount = mCount;
+                mHoldOff = MIN_HOLD_OFF;
+                mHoldWindows = 0;
+            } else {
+                // The last increase doesn't help, go back and wait longer each time
+                mCount = mStableCount;
+                mHoldWindows = mHoldOff;
+                mHoldOff = Math.min(MAX_HOLD_OFF, mHoldOff * 2);
+            }
+            mThroughputBeforeIncrease = -1;
+        } else if (mHoldWindows > 0) {
+            mHoldWindows--;
+        } else if (mCount < mMaxCount) {
+            // Additive increase
+            mStableCount = mCount;
+            mThroughputBeforeIncrease = throughput;
+            mCount++;
+        }
+
+        mHistory.addLast(new Sample(System.currentTimeMillis(), oldCount, throughput, errorRate));
+        if (mHistory.size() > MAX_HISTORY) {
+            mHistory.removeFirst();
+        }
+
+        mWindowStart = now;
+        mWindowBytes = 0;
+        mWindowSuccesses = 0;
+        mWindowFailures = 0;
+        mThrottled = false;
+
+        if (oldCount != mCount) {
+            Log.d(TAG, mHistory.getLast() + ", change to " + mCount + " workers");
+            return true;
+        } else {
+            return false;
+        }
+    }
+}
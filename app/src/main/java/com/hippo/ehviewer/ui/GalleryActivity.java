@@ -54,8 +54,10 @@ import com.hippo.ehviewer.AppConfig;
 import com.hippo.ehviewer.BuildConfig;
 import com.hippo.ehviewer.R;
 import com.hippo.ehviewer.Settings;
+import com.hippo.ehviewer.client.data.GalleryChapter;
 import com.hippo.ehviewer.client.data.GalleryDetail;
 import com.hippo.ehviewer.gallery.ArchiveGalleryProvider;
+import com.hippo.ehviewer.gallery.ChapterGalleryProvider;
 import com.hippo.ehviewer.gallery.DirGalleryProvider;
 import com.hippo.ehviewer.gallery.EhGalleryProvider;
 import com.hippo.ehviewer.gallery.GalleryProvider2;
@@ -83,6 +85,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.List;
 
 public class GalleryActivity extends EhActivity implements SeekBar.OnSeekBarChangeListener,
         GalleryView.Listener {
@@ -206,7 +209,13 @@ public class GalleryActivity extends EhActivity implements SeekBar.OnSeekBarChan
             }
         } else if (ACTION_EH.equals(mAction)) {
             if (mGalleryInfo != null) {
-                mGalleryProvider = new EhGalleryProvider(this, mGalleryInfo);
+                // Chain following chapters, if there are any
+                List<GalleryChapter> chapterList = ChapterGalleryProvider.getChapterList(mGalleryInfo);
+                if (chapterList.size() > 1) {
+                    mGalleryProvider = new ChapterGalleryProvider(this, mGalleryInfo, chapterList);
+                } else {
+                    mGalleryProvider = new EhGalleryProvider(this, mGalleryInfo);
+                }
             }
         } else if (Intent.ACTION_VIEW.equals(mAction)) {
             if (mUri != null) {
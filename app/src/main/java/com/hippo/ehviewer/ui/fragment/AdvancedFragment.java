@@ -29,8 +29,11 @@ import com.hippo.ehviewer.AppConfig;
 import com.hippo.ehviewer.EhApplication;
 import com.hippo.ehviewer.EhDB;
 import com.hippo.ehviewer.R;
+import com.hippo.ehviewer.Settings;
 import com.hippo.util.LogCat;
+import com.hippo.util.Metrics;
 import com.hippo.util.ReadableTime;
+import com.hippo.util.Tracer;
 import java.io.File;
 import java.util.Arrays;
 
@@ -38,9 +41,11 @@ public class AdvancedFragment extends PreferenceFragment
     implements Preference.OnPreferenceClickListener, Preference.OnPreferenceChangeListener {
 
     private static final String KEY_DUMP_LOGCAT = "dump_logcat";
+    private static final String KEY_SHOW_PERFORMANCE_METRICS = "show_performance_metrics";
     private static final String KEY_CLEAR_MEMORY_CACHE = "clear_memory_cache";
     private static final String KEY_APP_LANGUAGE = "app_language";
     private static final String KEY_EXPORT_DATA = "export_data";
+    private static final String KEY_EXPORT_RECORD = "export_record";
     private static final String KEY_IMPORT_DATA = "import_data";
     private static final String KEY_IMPORT_RECORD = "import_record";
 
@@ -50,18 +55,24 @@ public class AdvancedFragment extends PreferenceFragment
         addPreferencesFromResource(R.xml.advanced_settings);
 
         Preference dumpLogcat = findPreference(KEY_DUMP_LOGCAT);
+        Preference performanceMetrics = findPreference(Settings.KEY_PERFORMANCE_METRICS);
+        Preference showPerformanceMetrics = findPreference(KEY_SHOW_PERFORMANCE_METRICS);
         Preference clearMemoryCache = findPreference(KEY_CLEAR_MEMORY_CACHE);
         Preference appLanguage = findPreference(KEY_APP_LANGUAGE);
         Preference exportData = findPreference(KEY_EXPORT_DATA);
+        Preference exportRecord = findPreference(KEY_EXPORT_RECORD);
         Preference importData = findPreference(KEY_IMPORT_DATA);
         Preference importRecord = findPreference(KEY_IMPORT_RECORD);
 
         dumpLogcat.setOnPreferenceClickListener(this);
+        showPerformanceMetrics.setOnPreferenceClickListener(this);
         clearMemoryCache.setOnPreferenceClickListener(this);
         exportData.setOnPreferenceClickListener(this);
+        exportRecord.setOnPreferenceClickListener(this);
         importData.setOnPreferenceClickListener(this);
         importRecord.setOnPreferenceClickListener(this);
         appLanguage.setOnPreferenceChangeListener(this);
+        performanceMetrics.setOnPreferenceChangeListener(this);
     }
 
     @Override
@@ -79,6 +90,9 @@ public class AdvancedFragment extends PreferenceFragment
             if (dir != null) {
                 file = new File(dir, "logcat-" + ReadableTime.getFilenamableTime(System.currentTimeMillis()) + ".txt");
                 ok = LogCat.save(file);
+                if (Tracer.ENABLED) {
+                    Tracer.export(new File(dir, "trace-" + ReadableTime.getFilenamableTime(System.currentTimeMillis()) + ".json"));
+                }
             } else {
                 ok = false;
             }
@@ -87,6 +101,9 @@ public class AdvancedFragment extends PreferenceFragment
                     ok ? resources.getString(R.string.settings_advanced_dump_logcat_to, file.getPath()) :
                             resources.getString(R.string.settings_advanced_dump_logcat_failed), Toast.LENGTH_SHORT).show();
             return true;
+        } else if (KEY_SHOW_PERFORMANCE_METRICS.equals(key)) {
+            showPerformanceMetrics(getActivity());
+            return true;
         } else if (KEY_CLEAR_MEMORY_CACHE.equals(key)) {
             ((EhApplication) getActivity().getApplication()).clearMemoryCache();
             Runtime.getRuntime().gc();
@@ -102,6 +119,18 @@ public class AdvancedFragment extends PreferenceFragment
             }
             Toast.makeText(getActivity(),R.string.settings_advanced_export_data_failed, Toast.LENGTH_SHORT).show();
             return true;
+        } else if (KEY_EXPORT_RECORD.equals(key)) {
+            File dir = AppConfig.getExternalDataDir();
+            if (dir != null) {
+                File file = new File(dir, "record-" + ReadableTime.getFilenamableTime(System.currentTimeMillis()) + ".db");
+                if (EhDB.exportRecordAndFavorite(getActivity(), file)) {
+                    Toast.makeText(getActivity(),
+                            getString(R.string.settings_advanced_export_data_to, file.getPath()), Toast.LENGTH_SHORT).show();
+                    return true;
+                }
+            }
+            Toast.makeText(getActivity(),R.string.settings_advanced_export_data_failed, Toast.LENGTH_SHORT).show();
+            return true;
         } else if (KEY_IMPORT_DATA.equals(key)) {
             importData(getActivity());
             getActivity().setResult(Activity.RESULT_OK);
@@ -113,6 +142,30 @@ public class AdvancedFragment extends PreferenceFragment
         return false;
     }
 
+    private static void showPerformanceMetrics(final Context context) {
+        new AlertDialog.Builder(context)
+                .setTitle(R.string.settings_advanced_show_performance_metrics)
+                .setMessage(Metrics.dump())
+                .setPositiveButton(R.string.settings_advanced_dump_performance_metrics, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        boolean ok;
+                        File file = null;
+                        File dir = AppConfig.getExternalLogcatDir();
+                        if (dir != null) {
+                            file = new File(dir, "metrics-" + ReadableTime.getFilenamableTime(System.currentTimeMillis()) + ".txt");
+                            ok = Metrics.dump(file);
+                        } else {
+                            ok = false;
+                        }
+                        Toast.makeText(context,
+                                ok ? context.getString(R.string.settings_advanced_dump_performance_metrics_to, file.getPath()) :
+                                        context.getString(R.string.settings_advanced_dump_performance_metrics_failed), Toast.LENGTH_SHORT).show();
+                    }
+                })
+                .show();
+    }
+
     private static void importRecord(final Context context) {
         final File dir = AppConfig.getExternalDataDir();
         if (null == dir) {
@@ -169,6 +222,9 @@ public class AdvancedFragment extends PreferenceFragment
         if (KEY_APP_LANGUAGE.equals(key)) {
             ((EhApplication) getActivity().getApplication()).recreate();
             return true;
+        } else if (Settings.KEY_PERFORMANCE_METRICS.equals(key)) {
+            Metrics.setEnabled(Boolean.TRUE.equals(newValue));
+            return true;
         }
         return false;
     }
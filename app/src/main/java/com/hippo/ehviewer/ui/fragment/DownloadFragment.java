@@ -27,6 +27,7 @@ import android.preference.PreferenceFragment;
 import android.widget.Toast;
 import androidx.annotation.Nullable;
 import androidx.appcompat.app.AlertDialog;
+import com.hippo.ehviewer.FavoritePrefetchService;
 import com.hippo.ehviewer.R;
 import com.hippo.ehviewer.Settings;
 import com.hippo.ehviewer.ui.CommonOperations;
@@ -53,12 +54,14 @@ public class DownloadFragment extends PreferenceFragment implements
 
         Preference mediaScan = findPreference(Settings.KEY_MEDIA_SCAN);
         Preference imageResolution = findPreference(Settings.KEY_IMAGE_RESOLUTION);
+        Preference prefetchFavorites = findPreference(Settings.KEY_PREFETCH_FAVORITES);
         mDownloadLocation = findPreference(KEY_DOWNLOAD_LOCATION);
 
         onUpdateDownloadLocation();
 
         mediaScan.setOnPreferenceChangeListener(this);
         imageResolution.setOnPreferenceChangeListener(this);
+        prefetchFavorites.setOnPreferenceChangeListener(this);
 
         if (mDownloadLocation != null) {
             mDownloadLocation.setOnPreferenceClickListener(this);
@@ -207,6 +210,11 @@ public class DownloadFragment extends PreferenceFragment implements
                 Settings.putImageResolution((String) newValue);
             }
             return true;
+        } else if (Settings.KEY_PREFETCH_FAVORITES.equals(key)) {
+            if (newValue instanceof Boolean) {
+                FavoritePrefetchService.schedule(getActivity(), (Boolean) newValue);
+            }
+            return true;
         }
         return false;
     }
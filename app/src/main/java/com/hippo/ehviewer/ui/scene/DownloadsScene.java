@@ -67,7 +67,6 @@ import com.hippo.easyrecyclerview.FastScroller;
 import com.hippo.easyrecyclerview.HandlerDrawable;
 import com.hippo.easyrecyclerview.MarginItemDecoration;
 import com.hippo.ehviewer.EhApplication;
-import com.hippo.ehviewer.EhDB;
 import com.hippo.ehviewer.R;
 import com.hippo.ehviewer.Settings;
 import com.hippo.ehviewer.client.EhCacheKeyFactory;
@@ -75,8 +74,10 @@ import com.hippo.ehviewer.client.EhUtils;
 import com.hippo.ehviewer.client.data.GalleryInfo;
 import com.hippo.ehviewer.dao.DownloadInfo;
 import com.hippo.ehviewer.dao.DownloadLabel;
+import com.hippo.ehviewer.download.DownloadInfoChangeSet;
 import com.hippo.ehviewer.download.DownloadManager;
 import com.hippo.ehviewer.download.DownloadService;
+import com.hippo.ehviewer.spider.DownloadDirRegistry;
 import com.hippo.ehviewer.spider.SpiderDen;
 import com.hippo.ehviewer.ui.GalleryActivity;
 import com.hippo.ehviewer.ui.MainActivity;
@@ -97,7 +98,6 @@ import com.hippo.yorozuya.FileUtils;
 import com.hippo.yorozuya.IOUtils;
 import com.hippo.yorozuya.ObjectUtils;
 import com.hippo.yorozuya.ViewUtils;
-import com.hippo.yorozuya.collect.LongList;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -692,25 +692,35 @@ public class DownloadsScene extends ToolbarScene
     }
 
     @Override
-    public void onAdd(@NonNull DownloadInfo info, @NonNull List<DownloadInfo> list, int position) {
+    public void onChanges(@NonNull List<DownloadInfo> list, @NonNull DownloadInfoChangeSet changes) {
         if (mList != list) {
             return;
         }
-        if (mAdapter != null) {
-            mAdapter.notifyItemInserted(position);
-        }
-        updateView();
-    }
 
-    @Override
-    public void onUpdate(@NonNull DownloadInfo info, @NonNull List<DownloadInfo> list) {
-        if (mList != list) {
-            return;
+        if (mAdapter != null) {
+            for (int i = 0, n = changes.size(); i < n; i++) {
+                int position = changes.getPosition(i);
+                switch (changes.getType(i)) {
+                    case DownloadInfoChangeSet.TYPE_INSERT:
+                        mAdapter.notifyItemInserted(position);
+                        break;
+                    case DownloadInfoChangeSet.TYPE_REMOVE:
+                        mAdapter.notifyItemRemoved(position);
+                        break;
+                    case DownloadInfoChangeSet.TYPE_MOVE:
+                        mAdapter.notifyItemMoved(position, changes.getToPosition(i));
+                        break;
+                    case DownloadInfoChangeSet.TYPE_CHANGE:
+                        mAdapter.notifyItemChanged(position);
+                        break;
+                    case DownloadInfoChangeSet.TYPE_CHANGE_PROGRESS:
+                        mAdapter.notifyItemChanged(position, DownloadInfoChangeSet.PAYLOAD_PROGRESS);
+                        break;
+                }
+            }
         }
-
-        int index = list.indexOf(info);
-        if (index >= 0 && mAdapter != null) {
-            mAdapter.notifyItemChanged(index);
+        if (changes.hasStructuralChanges()) {
+            updateView();
         }
     }
 
@@ -747,17 +757,6 @@ public class DownloadsScene extends ToolbarScene
         updateView();
     }
 
-    @Override
-    public void onRemove(@NonNull DownloadInfo info, @NonNull List<DownloadInfo> list, int position) {
-        if (mList != list) {
-            return;
-        }
-        if (mAdapter != null) {
-            mAdapter.notifyItemRemoved(position);
-        }
-        updateView();
-    }
-
     @Override
     public void onUpdateLabels() {
         // TODO
@@ -860,6 +859,15 @@ public class DownloadsScene extends ToolbarScene
         }.executeOnExecutor(IoThreadPoolExecutor.getInstance(), files);
     }
 
+    // Read cache may list all its segments to build the index
+    private static void removeCacheAsync(GalleryInfo... infos) {
+        IoThreadPoolExecutor.getInstance().execute(() -> {
+            for (GalleryInfo info: infos) {
+                SpiderDen.removeCache(info);
+            }
+        });
+    }
+
     private class DeleteDialogHelper implements DialogInterface.OnClickListener {
 
         private final GalleryInfo mGalleryInfo;
@@ -885,11 +893,13 @@ public class DownloadsScene extends ToolbarScene
             boolean checked = mBuilder.isChecked();
             Settings.putRemoveImageFiles(checked);
             if (checked) {
-                // Remove download path
-                EhDB.removeDownloadDirname(mGalleryInfo.gid);
                 // Delete file
                 UniFile file = SpiderDen.getGalleryDownloadDir(mGalleryInfo);
                 deleteFileAsync(file);
+                // Remove download path
+                DownloadDirRegistry.remove(mGalleryInfo.getCid());
+                // Remove cached pages
+                removeCacheAsync(mGalleryInfo);
             }
         }
     }
@@ -897,11 +907,11 @@ public class DownloadsScene extends ToolbarScene
     private class DeleteRangeDialogHelper implements DialogInterface.OnClickListener {
 
         private final List<DownloadInfo> mDownloadInfoList;
-        private final LongList mGidList;
+        private final List<String> mGidList;
         private final CheckBoxDialogBuilder mBuilder;
 
         public DeleteRangeDialogHelper(List<DownloadInfo> downloadInfoList,
-                LongList gidList, CheckBoxDialogBuilder builder) {
+                List<String> gidList, CheckBoxDialogBuilder builder) {
             mDownloadInfoList = downloadInfoList;
             mGidList = gidList;
             mBuilder = builder;
@@ -928,16 +938,20 @@ public class DownloadsScene extends ToolbarScene
             Settings.putRemoveImageFiles(checked);
             if (checked) {
                 UniFile[] files = new UniFile[mDownloadInfoList.size()];
+                GalleryInfo[] infos = new GalleryInfo[mDownloadInfoList.size()];
                 int i = 0;
                 for (DownloadInfo info: mDownloadInfoList) {
-                    // Remove download path
-                    EhDB.removeDownloadDirname(info.gid);
                     // Put file
                     files[i] = SpiderDen.getGalleryDownloadDir(info);
+                    // Remove download path
+                    DownloadDirRegistry.remove(info.getCid());
+                    infos[i] = info;
                     i++;
                 }
                 // Delete file
                 deleteFileAsync(files);
+                // Remove cached pages
+                removeCacheAsync(infos);
             }
         }
     }
@@ -1090,6 +1104,16 @@ public class DownloadsScene extends ToolbarScene
             }
         }
 
+        @Override
+        public void onBindViewHolder(@NonNull DownloadHolder holder, int position, @NonNull List<Object> payloads) {
+            // Progress changes come many times per second, only rebind the state views
+            if (mList != null && payloads.contains(DownloadInfoChangeSet.PAYLOAD_PROGRESS)) {
+                bindForState(holder, mList.get(position));
+            } else {
+                onBindViewHolder(holder, position);
+            }
+        }
+
         @Override
         public int getItemCount() {
             return mList == null ? 0 : mList.size();
@@ -85,7 +85,6 @@ import com.hippo.ehviewer.client.EhUrl;
 import com.hippo.ehviewer.client.data.FavListUrlBuilder;
 import com.hippo.ehviewer.client.data.GalleryInfo;
 import com.hippo.ehviewer.client.parser.FavoritesParser;
-import com.hippo.ehviewer.dao.ReadingRecord;
 import com.hippo.ehviewer.ui.MainActivity;
 import com.hippo.ehviewer.ui.annotation.DrawerLifeCircle;
 import com.hippo.ehviewer.ui.annotation.ViewLifeCircle;
@@ -98,6 +97,8 @@ import com.hippo.ripple.Ripple;
 import com.hippo.scene.Announcer;
 import com.hippo.scene.SceneFragment;
 import com.hippo.util.DrawableManager;
+import com.hippo.util.IoThreadPoolExecutor;
+import com.hippo.util.ReadableTime;
 import com.hippo.widget.ContentLayout;
 import com.hippo.widget.FabLayout;
 import com.hippo.widget.SearchBarMover;
@@ -107,14 +108,11 @@ import com.hippo.yorozuya.ObjectUtils;
 import com.hippo.yorozuya.SimpleAnimatorListener;
 import com.hippo.yorozuya.SimpleHandler;
 import com.hippo.yorozuya.ViewUtils;
-import com.orhanobut.logger.Logger;
 
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
 
 import io.reactivex.Scheduler;
 import io.reactivex.android.schedulers.AndroidSchedulers;
@@ -127,8 +125,12 @@ public class FavoritesScene extends BaseScene implements
         FastScroller.OnDragHandlerListener, SearchBarMover.Helper, SearchBar.Helper,
         FabLayout.OnClickFabListener, EasyRecyclerView.CustomChoiceListener, FabLayout.OnExpandListener, CheckUpdateService.UpdateListener, RefreshLayout.OnRefreshListener {
 
+    private static final String TAG = FavoritesScene.class.getSimpleName();
+
     private static final long ANIMATE_TIME = 300L;
 
+    private static final int LOCAL_FAVORITES_PAGE_SIZE = 100;
+
     private static final String KEY_URL_BUILDER = "url_builder";
     private static final String KEY_SEARCH_MODE = "search_mode";
     private static final String KEY_HAS_FIRST_REFRESH = "has_first_refresh";
@@ -494,35 +496,34 @@ public class FavoritesScene extends BaseScene implements
 
     @Override
     public void onHeaderRefresh() {
-        Disposable disposable = MHApi.Companion.getINSTANCE().get(currentSource).recent(1)
-                .subscribeOn(Schedulers.io())
-                .observeOn(AndroidSchedulers.mainThread())
-                .subscribe(result -> {
-                    Log.d("checkupdate","info " + result.getDatas().size());
-
+        final String source = currentSource;
+        Disposable disposable = MHApi.Companion.getINSTANCE().get(source).recent(1)
+                .map(result -> {
+                    Map<String, Long> updateTimes = new HashMap<>();
                     for (MHComicInfo info : result.getDatas()) {
-                        Log.d("checkupdate","info " + info.getTitle() + " " + info.getGid() + " " + info.getPosted());
-
-                        if (!info.getPosted().isEmpty()) {
-                            Logger.d("checkupdate","info " + info.getTitle() + " " + info.getGid());
-                            ReadingRecord record = EhDB.getReadingRecord(info.getGid() + "@" + currentSource);
-                            if (record == null) {
-                                continue;
-                            }
-                            Log.d("checkupdate","record " + record.getId());
-
-                            try {
-                                long timeStamp = new SimpleDateFormat("yyyy-MM-dd", Locale.CHINA).parse(info.getPosted()).getTime();
-                                record.setUpdate_time(timeStamp);
-                                EhDB.putReadingRecord(record);
-                                Log.d("checkupdate","update " + info.getTitle() + " " + info.getPosted());
-                            } catch (Exception e) {
-                                e.printStackTrace();
-                            }
+                        if (info.getPosted().isEmpty()) {
+                            continue;
+                        }
+                        long time = ReadableTime.parseDay(info.getPosted());
+                        if (time != -1L) {
+                            updateTimes.put(info.getGid() + "@" + source, time);
                         }
                     }
-
-                    mHelper.refresh();
+                    // Only favorites which are read have records
+                    return EhDB.putReadingRecordUpdateTimes(updateTimes, false);
+                })
+                .subscribeOn(Schedulers.io())
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe(written -> {
+                    Log.d(TAG, "Update " + written + " records of " + source);
+                    if (mHelper != null) {
+                        mHelper.refresh();
+                    }
+                }, e -> {
+                    e.printStackTrace();
+                    if (mHelper != null) {
+                        mHelper.refresh();
+                    }
                 });
     }
 
@@ -998,25 +999,28 @@ public class FavoritesScene extends BaseScene implements
         }
     }
 
-    @SuppressWarnings("unchecked")
-    private void onGetFavoritesLocal(String keyword, int taskId) {
-        if (mHelper != null && mHelper.isCurrentTask(taskId)) {
-            List<GalleryInfo> list;
-            if (TextUtils.isEmpty(keyword)) {
-                list = EhDB.getLocalFavorites(currentSource);
-            } else {
-                list = EhDB.searchLocalFavorites(keyword);
-            }
+    private void onGetFavoritesLocal(final String keyword, final int page, final int taskId) {
+        if (mHelper == null || !mHelper.isCurrentTask(taskId)) {
+            return;
+        }
 
-            checkUpdate(list);
-            if (list.size() == 0) {
-                mHelper.onGetPageData(taskId, 0, 0, Collections.EMPTY_LIST);
-            } else {
-                mHelper.onGetPageData(taskId, 1, 0, list);
-            }
+        final String source = TextUtils.isEmpty(keyword) ? currentSource : null;
+        final String query = TextUtils.isEmpty(keyword) ? null : keyword;
+        IoThreadPoolExecutor.getInstance().execute(() -> {
+            int count = EhDB.getLocalFavoritesCount(source, query);
+            List<GalleryInfo> list = EhDB.getLocalFavoritesWithUpdate(source, query,
+                    page * LOCAL_FAVORITES_PAGE_SIZE, LOCAL_FAVORITES_PAGE_SIZE);
+            SimpleHandler.getInstance().post(() -> onGetFavoritesLocalSuccess(keyword, page, taskId, count, list));
+        });
+    }
+
+    private void onGetFavoritesLocalSuccess(String keyword, int page, int taskId, int count, List<GalleryInfo> list) {
+        if (mHelper != null && mHelper.isCurrentTask(taskId)) {
+            int pages = (count + LOCAL_FAVORITES_PAGE_SIZE - 1) / LOCAL_FAVORITES_PAGE_SIZE;
+            mHelper.onGetPageData(taskId, pages, page + 1, list);
 
             if (TextUtils.isEmpty(keyword)) {
-                mFavLocalCount = list.size();
+                mFavLocalCount = count;
                 Settings.putFavLocalCount(mFavLocalCount);
                 if (mDrawerAdapter != null) {
                     mDrawerAdapter.notifyDataSetChanged();
@@ -1025,33 +1029,6 @@ public class FavoritesScene extends BaseScene implements
         }
     }
 
-    private void checkUpdate(List<GalleryInfo> list) {
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd", Locale.CHINA);
-        for (GalleryInfo info : list) {
-            ReadingRecord record = EhDB.getReadingRecord(info.getId());
-            if (record == null) {
-                info.posted = sdf.format(new Date(0L));
-                continue;
-            }
-            info.posted = sdf.format(new Date(record.getUpdate_time()));
-
-            if (record.getRead_time() == null || record.getRead_time() < record.getUpdate_time()) {
-                info.category = EhConfig.UPDATE;
-            }
-        }
-
-        Collections.sort(list, (o1, o2) -> {
-            try {
-                long ret = sdf.parse(o2.posted).getTime() - sdf.parse(o1.posted).getTime();
-                if (ret > 0) return 1;
-                else if (ret < 0) return -1;
-                else return 0;
-            } catch (Exception e) {
-                return 0;
-            }
-        });
-    }
-
     private class DeleteDialogHelper implements DialogInterface.OnClickListener,
             DialogInterface.OnCancelListener {
 
@@ -1208,12 +1185,7 @@ public class FavoritesScene extends BaseScene implements
                 }
             } else if (mUrlBuilder.getFavCat() == FavListUrlBuilder.FAV_CAT_LOCAL) {
                 final String keyword = mUrlBuilder.getKeyword();
-                SimpleHandler.getInstance().post(new Runnable() {
-                    @Override
-                    public void run() {
-                        onGetFavoritesLocal(keyword, taskId);
-                    }
-                });
+                onGetFavoritesLocal(keyword, page, taskId);
             } else {
                 EhRequest request = new EhRequest();
                 request.setMethod(EhClient.METHOD_GET_FAVORITES);
@@ -1296,7 +1268,7 @@ public class FavoritesScene extends BaseScene implements
         public void onSuccess(Void result) {
             FavoritesScene scene = getScene();
             if (scene != null) {
-                scene.onGetFavoritesLocal(mKeyword, mTaskId);
+                scene.onGetFavoritesLocal(mKeyword, 0, mTaskId);
             }
         }
 
@@ -1308,7 +1280,7 @@ public class FavoritesScene extends BaseScene implements
 
             FavoritesScene scene = getScene();
             if (scene != null) {
-                scene.onGetFavoritesLocal(mKeyword, mTaskId);
+                scene.onGetFavoritesLocal(mKeyword, 0, mTaskId);
             }
         }
 
@@ -1345,7 +1317,7 @@ public class FavoritesScene extends BaseScene implements
             FavoritesScene scene = getScene();
             if (scene != null) {
                 if (mLocal) {
-                    scene.onGetFavoritesLocal(mKeyword, mTaskId);
+                    scene.onGetFavoritesLocal(mKeyword, 0, mTaskId);
                 } else {
                     scene.onGetFavoritesSuccess(result, mTaskId);
                 }
@@ -1358,7 +1330,7 @@ public class FavoritesScene extends BaseScene implements
             if (scene != null) {
                 if (mLocal) {
                     e.printStackTrace();
-                    scene.onGetFavoritesLocal(mKeyword, mTaskId);
+                    scene.onGetFavoritesLocal(mKeyword, 0, mTaskId);
                 } else {
                     scene.onGetFavoritesFailure(e, mTaskId);
                 }
@@ -1469,17 +1441,14 @@ public class FavoritesScene extends BaseScene implements
     }
 
     private void clearUpdate() {
-        List<GalleryInfo> infos = EhDB.getLocalFavorites(currentSource);
-        for(GalleryInfo info : infos) {
-            ReadingRecord record = EhDB.getReadingRecord(info.getId());
-            if (record == null) {
-                record = new ReadingRecord();
-            }
-
-            record.setId(info.getId());
-            record.setRead_time(System.currentTimeMillis());
-            EhDB.putReadingRecord(record);
-        }
-        mHelper.refresh();
+        final String source = currentSource;
+        IoThreadPoolExecutor.getInstance().execute(() -> {
+            EhDB.markLocalFavoritesRead(source, System.currentTimeMillis());
+            SimpleHandler.getInstance().post(() -> {
+                if (mHelper != null) {
+                    mHelper.refresh();
+                }
+            });
+        });
     }
 }
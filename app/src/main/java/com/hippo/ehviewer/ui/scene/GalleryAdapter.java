@@ -83,6 +83,7 @@ abstract class GalleryAdapter extends RecyclerView.Adapter<GalleryHolder> {
 
         mRecyclerView.setAdapter(this);
         mRecyclerView.setLayoutManager(mLayoutManager);
+        EhApplication.getLoadImageScheduler(inflater.getContext()).attachTo(mRecyclerView);
 
         View calculator = inflater.inflate(R.layout.item_gallery_list_thumb_height, null);
         ViewUtils.measureView(calculator, 1024, ViewGroup.LayoutParams.WRAP_CONTENT);
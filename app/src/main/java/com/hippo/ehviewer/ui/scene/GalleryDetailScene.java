@@ -84,6 +84,7 @@ import com.hippo.ehviewer.client.parser.GalleryListParser;
 import com.hippo.ehviewer.client.parser.RateGalleryParser;
 import com.hippo.ehviewer.dao.DownloadInfo;
 import com.hippo.ehviewer.dao.ReadingRecord;
+import com.hippo.ehviewer.download.DownloadInfoChangeSet;
 import com.hippo.ehviewer.ui.CommonOperations;
 import com.hippo.ehviewer.ui.GalleryActivity;
 import com.hippo.ehviewer.ui.MainActivity;
@@ -1372,13 +1373,11 @@ public class GalleryDetailScene extends BaseScene implements View.OnClickListene
     }
 
     @Override
-    public void onAdd(@NonNull DownloadInfo info, @NonNull List<DownloadInfo> list, int position) {
-        updateDownloadState();
-    }
-
-    @Override
-    public void onUpdate(@NonNull DownloadInfo info, @NonNull List<DownloadInfo> list) {
-        updateDownloadState();
+    public void onChanges(@NonNull List<DownloadInfo> list, @NonNull DownloadInfoChangeSet changes) {
+        // Progress never changes download state
+        if (!changes.isProgressOnly()) {
+            updateDownloadState();
+        }
     }
 
     @Override
@@ -1396,11 +1395,6 @@ public class GalleryDetailScene extends BaseScene implements View.OnClickListene
         updateDownloadState();
     }
 
-    @Override
-    public void onRemove(@NonNull DownloadInfo info, @NonNull List<DownloadInfo> list, int position) {
-        updateDownloadState();
-    }
-
     @Override
     public void onRenameLabel(String from, String to) {
     }
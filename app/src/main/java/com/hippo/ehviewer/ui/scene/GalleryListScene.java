@@ -83,6 +83,7 @@ import com.hippo.ehviewer.client.parser.GalleryListParser;
 import com.hippo.ehviewer.client.parser.GalleryPageUrlParser;
 import com.hippo.ehviewer.dao.DownloadInfo;
 import com.hippo.ehviewer.dao.QuickSearch;
+import com.hippo.ehviewer.download.DownloadInfoChangeSet;
 import com.hippo.ehviewer.download.DownloadManager;
 import com.hippo.ehviewer.ui.CommonOperations;
 import com.hippo.ehviewer.ui.GalleryActivity;
@@ -294,14 +295,24 @@ public final class GalleryListScene extends BaseScene
 
         mDownloadInfoListener = new DownloadManager.DownloadInfoListener() {
             @Override
-            public void onAdd(@NonNull DownloadInfo info, @NonNull List<DownloadInfo> list, int position) {
-                if (mAdapter != null) {
-                    mAdapter.notifyDataSetChanged();
+            public void onChanges(@NonNull List<DownloadInfo> list, @NonNull DownloadInfoChangeSet changes) {
+                // Only the downloaded mark is shown, so only added and removed galleries matter
+                if (mAdapter == null || mHelper == null || !changes.hasStructuralChanges()) {
+                    return;
+                }
+                for (int i = 0, n = changes.size(); i < n; i++) {
+                    int type = changes.getType(i);
+                    if (type != DownloadInfoChangeSet.TYPE_INSERT && type != DownloadInfoChangeSet.TYPE_REMOVE) {
+                        continue;
+                    }
+                    String gid = changes.getInfo(i).gid;
+                    for (int j = 0, size = mHelper.size(); j < size; j++) {
+                        GalleryInfo gi = mHelper.getDataAtEx(j);
+                        if (gi != null && gid.equals(gi.gid)) {
+                            mAdapter.notifyItemChanged(j);
+                        }
+                    }
                 }
-            }
-
-            @Override
-            public void onUpdate(@NonNull DownloadInfo info, @NonNull List<DownloadInfo> list) {
             }
 
             @Override
@@ -326,13 +337,6 @@ public final class GalleryListScene extends BaseScene
             public void onRenameLabel(String from, String to) {
             }
 
-            @Override
-            public void onRemove(@NonNull DownloadInfo info, @NonNull List<DownloadInfo> list, int position) {
-                if (mAdapter != null) {
-                    mAdapter.notifyDataSetChanged();
-                }
-            }
-
             @Override
             public void onUpdateLabels() {
             }
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.util;
+
+import androidx.annotation.NonNull;
+import com.hippo.yorozuya.IOUtils;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An in-process registry of counters, gauges and latency histograms.
+ * <p>
+ * It's disabled by default. When disabled, {@link #start()} is a volatile read
+ * and the other record methods return at once, nothing is allocated.
+ * <pre>
+ * long start = Metrics.start();
+ * doWork();
+ * Metrics.record(Metrics.SOME_LATENCY, start);
+ * </pre>
+ */
+public final class Metrics {
+
+  // Spider
+  public static final String SPIDER_RESOLVE_URL = "spider.resolve_url";
+  public static final String SPIDER_FIRST_BYTE = "spider.first_byte";
+  public static final String SPIDER_DOWNLOAD = "spider.download";
+  public static final String SPIDER_DISK_WRITE = "spider.disk_write";
+  public static final String SPIDER_DECODE = "spider.decode";
+  public static final String SPIDER_DELIVER = "spider.deliver";
+  public static final String SPIDER_BYTES = "spider.bytes";
+  public static final String SPIDER_PAGE_SUCCESSES = "spider.page_successes";
+  public static final String SPIDER_PAGE_FAILURES = "spider.page_failures";
+  public static final String SPIDER_WORKERS = "spider.workers";
+  public static final String SPIDER_PRELOADS = "spider.preloads";
+  public static final String SPIDER_PRELOAD_HITS = "spider.preload_hits";
+  public static final String SPIDER_PRELOAD_WASTED_BYTES = "spider.preload_wasted_bytes";
+
+  // Prefetch
+  public static final String PREFETCH_BYTES = "prefetch.bytes";
+  public static final String PREFETCH_OPENED = "prefetch.opened";
+  public static final String PREFETCH_LATENCY_SAVED = "prefetch.latency_saved";
+
+  private static volatile boolean enabled;
+
+  private static final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+  private static final ConcurrentHashMap<String, Gauge> gauges = new ConcurrentHashMap<>();
+  private static final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+  public interface Gauge {
+    long get();
+  }
+
+  private Metrics() {}
+
+  public static void setEnabled(boolean enabled) {
+    Metrics.enabled = enabled;
+  }
+
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Returns the start time for {@link #record(String, long)}, or 0 if disabled.
+   */
+  public static long start() {
+    return enabled ? System.nanoTime() : 0L;
+  }
+
+  /**
+   * Records the time since {@code start} in the histogram.
+   */
+  public static void record(@NonNull String name, long start) {
+    if (start == 0L || !enabled) {
+      return;
+    }
+    recordNanos(name, System.nanoTime() - start);
+  }
+
+  public static void recordNanos(@NonNull String name, long nanos) {
+    if (!enabled) {
+      return;
+    }
+    Histogram histogram = histograms.get(name);
+    if (histogram == null) {
+      histogram = new Histogram();
+      Histogram old = histograms.putIfAbsent(name, histogram);
+      if (old != null) {
+        histogram = old;
+      }
+    }
+    histogram.record(nanos / 1000);
+  }
+
+  public static void increment(@NonNull String name) {
+    add(name, 1);
+  }
+
+  public static void add(@NonNull String name, long delta) {
+    if (!enabled) {
+      return;
+    }
+    AtomicLong counter = counters.get(name);
+    if (counter == null) {
+      counter = new AtomicLong();
+      AtomicLong old = counters.putIfAbsent(name, counter);
+      if (old != null) {
+        counter = old;
+      }
+    }
+    counter.addAndGet(delta);
+  }
+
+  /**
+   * The gauge is read only when metrics are dumped. It replaces the old one of the same name.
+   */
+  public static void gauge(@NonNull String name, @NonNull Gauge gauge) {
+    gauges.put(name, gauge);
+  }
+
+  public static void removeGauge(@NonNull String name, @NonNull Gauge gauge) {
+    gauges.remove(name, gauge);
+  }
+
+  public static void reset() {
+    counters.clear();
+    histograms.clear();
+  }
+
+  /**
+   * Returns a readable text of all metrics, sorted by name.
+   * Latencies are in milliseconds.
+   */
+  @NonNull
+  public static String dump() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("enabled=").append(enabled).append('\n');
+    for (Map.Entry<String, AtomicLong> entry : new TreeMap<>(counters).entrySet()) {
+      sb.append(entry.getKey()).append(" = ").append(entry.getValue().get()).append('\n');
+    }
+    for (Map.Entry<String, Gauge> entry : new TreeMap<>(gauges).entrySet()) {
+      sb.append(entry.getKey()).append(" = ").append(entry.getValue().get()).append('\n');
+    }
+    for (Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+      sb.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+    }
+    return sb.toString();
+  }
+
+  public static boolean dump(@NonNull File file) {
+    OutputStream os = null;
+    try {
+      os = new FileOutputStream(file);
+      os.write(dump().getBytes("UTF-8"));
+      return true;
+    } catch (IOException e) {
+      return false;
+    } finally {
+      IOUtils.closeQuietly(os);
+    }
+  }
+
+  /**
+   * A log-linear histogram, like HdrHistogram with 3 significant bits.
+   * The value of a bucket is within 12.5% of recorded values.
+   */
+  static final class Histogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKET_COUNT = SUB_COUNT + (63 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    static int bucketIndex(long value) {
+      if (value < SUB_COUNT) {
+        return (int) Math.max(0, value);
+      }
+      int exponent = 63 - Long.numberOfLeadingZeros(value);
+      int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+      return SUB_COUNT + (exponent - SUB_BITS) * SUB_COUNT + sub;
+    }
+
+    static long bucketValue(int index) {
+      if (index < SUB_COUNT) {
+        return index;
+      }
+      int exponent = (index - SUB_COUNT) / SUB_COUNT + SUB_BITS;
+      int sub = (index - SUB_COUNT) % SUB_COUNT;
+      return (long) (SUB_COUNT + sub) << (exponent - SUB_BITS);
+    }
+
+    void record(long value) {
+      buckets.incrementAndGet(bucketIndex(value));
+      count.incrementAndGet();
+      sum.addAndGet(value);
+      long oldMax;
+      while (value > (oldMax = max.get())) {
+        if (max.compareAndSet(oldMax, value)) {
+          break;
+        }
+      }
+    }
+
+    long percentile(double percent) {
+      long total = count.get();
+      if (total == 0) {
+        return 0;
+      }
+      long target = (long) Math.ceil(total * percent / 100);
+      long seen = 0;
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+        seen += buckets.get(i);
+        if (seen >= Math.max(1, target)) {
+          return Math.min(bucketValue(i), max.get());
+        }
+      }
+      return max.get();
+    }
+
+    @Override
+    public String toString() {
+      long n = count.get();
+      return String.format(Locale.US, "count=%d mean=%.2f p50=%.2f p90=%.2f p99=%.2f max=%.2f",
+          n, n == 0 ? 0.0 : sum.get() / 1000.0 / n, percentile(50) / 1000.0,
+          percentile(90) / 1000.0, percentile(99) / 1000.0, max.get() / 1000.0);
+    }
+  }
+}
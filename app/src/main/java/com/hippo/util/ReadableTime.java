@@ -21,6 +21,7 @@ import android.content.res.Resources;
 
 import com.hippo.ehviewer.R;
 
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
@@ -73,6 +74,11 @@ public final class ReadableTime {
             new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss-SSS", Locale.getDefault());
     private static final Object sDateFormatLock2 = new Object();
 
+    // Day of update time, the same format as posted of MHComicInfo
+    private static final SimpleDateFormat DAY_FORMAT =
+            new SimpleDateFormat("yyyy-MM-dd", Locale.CHINA);
+    private static final Object sDateFormatLock3 = new Object();
+
     static {
         // The website use GMT+08:00, so tell user the same
         DATE_FORMAT.setTimeZone(TimeZone.getTimeZone("GMT+08:00"));
@@ -188,6 +194,27 @@ public final class ReadableTime {
         return sb.toString();
     }
 
+    public static String getDay(long time) {
+        synchronized (sDateFormatLock3) {
+            return DAY_FORMAT.format(new Date(time));
+        }
+    }
+
+    /**
+     * Parse the day string like {@code 2019-01-01}.
+     *
+     * @return the time in millis, or -1 if it's invalid
+     */
+    public static long parseDay(String day) {
+        synchronized (sDateFormatLock3) {
+            try {
+                return DAY_FORMAT.parse(day).getTime();
+            } catch (ParseException e) {
+                return -1L;
+            }
+        }
+    }
+
     public static String getFilenamableTime(long time) {
         synchronized (sDateFormatLock2) {
             return FILENAMABLE_DATE_FORMAT.format(new Date(time));
@@ -0,0 +1,371 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.util;
+
+import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import com.hippo.io.UniFileInputStreamPipe;
+import com.hippo.streampipe.InputStreamPipe;
+import com.hippo.streampipe.OutputStreamPipe;
+import com.hippo.unifile.UniFile;
+import com.hippo.yorozuya.FileUtils;
+import com.hippo.yorozuya.IOUtils;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * A disk cache which groups entries into segments, a segment is a directory.
+ * The whole segment is evicted when the cache is full, least recently used segment first.
+ * An in-memory index of all entries is built once from the directory,
+ * so membership checks never touch the disk.
+ */
+public class SegmentedDiskCache {
+
+  private static final String TAG = SegmentedDiskCache.class.getSimpleName();
+
+  private static final String TEMP_SUFFIX = ".tmp";
+  private static final String DELETED_SUFFIX = ".del";
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private final File dir;
+  private final long maxSize;
+
+  // Access order, the eldest is the least recently used
+  private final LinkedHashMap<String, Segment> segments = new LinkedHashMap<>(16, 0.75f, true);
+  private boolean indexed;
+  private long size;
+  private int deletedCount;
+
+  private int hitCount;
+  private int missCount;
+  private int evictionCount;
+  private long evictedBytes;
+
+  private static class Segment {
+    final File dir;
+    // Hashed key -> file size
+    final HashMap<String, Long> entries = new HashMap<>();
+    long size;
+    // Last modified time of dir is updated once per session
+    boolean touched;
+
+    Segment(File dir) {
+      this.dir = dir;
+    }
+  }
+
+  public SegmentedDiskCache(@NonNull File dir, long maxSize) {
+    this.dir = dir;
+    this.maxSize = maxSize;
+  }
+
+  private static String hash(String str) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("MD5");
+      byte[] bytes = digest.digest(str.getBytes(UTF_8));
+      char[] chars = new char[bytes.length * 2];
+      for (int i = 0; i < bytes.length; i++) {
+        chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+        chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+      }
+      return new String(chars);
+    } catch (NoSuchAlgorithmException e) {
+      // MD5 is always there
+      return Integer.toHexString(str.hashCode());
+    }
+  }
+
+  /**
+   * Build the index from the directory, the least recently modified segment first.
+   */
+  private void ensureIndex() {
+    if (indexed) {
+      return;
+    }
+    indexed = true;
+
+    dir.mkdirs();
+    File[] dirs = dir.listFiles();
+    if (dirs == null) {
+      return;
+    }
+    Arrays.sort(dirs, (lhs, rhs) -> Long.compare(lhs.lastModified(), rhs.lastModified()));
+
+    List<File> garbage = new ArrayList<>();
+    for (File segmentDir : dirs) {
+      String name = segmentDir.getName();
+      if (!segmentDir.isDirectory() || name.contains(DELETED_SUFFIX)) {
+        garbage.add(segmentDir);
+        continue;
+      }
+      Segment segment = new Segment(segmentDir);
+      File[] files = segmentDir.listFiles();
+      if (files != null) {
+        for (File file : files) {
+          if (file.getName().endsWith(TEMP_SUFFIX)) {
+            garbage.add(file);
+            continue;
+          }
+          long length = file.length();
+          segment.entries.put(file.getName(), length);
+          segment.size += length;
+        }
+      }
+      segments.put(name, segment);
+      size += segment.size;
+    }
+    deleteAsync(garbage);
+
+    trimToSize(null);
+  }
+
+  @Nullable
+  private Segment getSegment(String segmentHash, boolean create) {
+    Segment segment = segments.get(segmentHash);
+    if (segment == null && create) {
+      segment = new Segment(new File(dir, segmentHash));
+      segments.put(segmentHash, segment);
+    }
+    if (segment != null && !segment.touched) {
+      segment.touched = true;
+      segment.dir.setLastModified(System.currentTimeMillis());
+    }
+    return segment;
+  }
+
+  public synchronized boolean contain(@NonNull String segment, @NonNull String key) {
+    ensureIndex();
+    Segment s = segments.get(hash(segment));
+    return s != null && s.entries.containsKey(hash(key));
+  }
+
+  @Nullable
+  public synchronized InputStreamPipe getInputStreamPipe(@NonNull String segment, @NonNull String key) {
+    ensureIndex();
+    Segment s = getSegment(hash(segment), false);
+    String keyHash = hash(key);
+    if (s == null || !s.entries.containsKey(keyHash)) {
+      missCount++;
+      return null;
+    }
+    hitCount++;
+    return new UniFileInputStreamPipe(UniFile.fromFile(new File(s.dir, keyHash)));
+  }
+
+  /**
+   * The entry is visible after the pipe is closed.
+   */
+  @NonNull
+  public synchronized OutputStreamPipe getOutputStreamPipe(@NonNull String segment, @NonNull String key) {
+    ensureIndex();
+    String segmentHash = hash(segment);
+    getSegment(segmentHash, true);
+    return new CommitOutputStreamPipe(segmentHash, hash(key));
+  }
+
+  private synchronized void commit(String segmentHash, String keyHash, File temp) {
+    Segment segment = getSegment(segmentHash, true);
+    File file = new File(segment.dir, keyHash);
+    if (!segment.dir.isDirectory() || !temp.renameTo(file)) {
+      // The segment might be evicted while writing
+      temp.delete();
+      return;
+    }
+
+    long length = file.length();
+    Long old = segment.entries.put(keyHash, length);
+    long delta = length - (old != null ? old : 0L);
+    segment.size += delta;
+    size += delta;
+
+    trimToSize(segment);
+  }
+
+  public synchronized boolean remove(@NonNull String segment, @NonNull String key) {
+    ensureIndex();
+    Segment s = segments.get(hash(segment));
+    if (s == null) {
+      return false;
+    }
+    String keyHash = hash(key);
+    Long length = s.entries.remove(keyHash);
+    if (length == null) {
+      return false;
+    }
+    s.size -= length;
+    size -= length;
+    return new File(s.dir, keyHash).delete();
+  }
+
+  /**
+   * Remove all entries of the segment at once.
+   */
+  public synchronized boolean removeSegment(@NonNull String segment) {
+    ensureIndex();
+    Segment s = segments.remove(hash(segment));
+    if (s == null) {
+      return false;
+    }
+    size -= s.size;
+    deleteSegmentAsync(s);
+    return true;
+  }
+
+  public synchronized void clear() {
+    ensureIndex();
+    for (Segment segment : segments.values()) {
+      deleteSegmentAsync(segment);
+    }
+    segments.clear();
+    size = 0;
+  }
+
+  private void trimToSize(@Nullable Segment keep) {
+    Iterator<Segment> iterator = segments.values().iterator();
+    while (size > maxSize && iterator.hasNext()) {
+      Segment segment = iterator.next();
+      if (segment == keep) {
+        continue;
+      }
+      iterator.remove();
+      size -= segment.size;
+      evictionCount++;
+      evictedBytes += segment.size;
+      deleteSegmentAsync(segment);
+    }
+  }
+
+  /**
+   * Rename the directory first, so a new segment of the same name
+   * is not affected by the deleting.
+   */
+  private void deleteSegmentAsync(Segment segment) {
+    File deleted = new File(dir, segment.dir.getName() + DELETED_SUFFIX + (deletedCount++));
+    if (segment.dir.renameTo(deleted)) {
+      deleteAsync(Arrays.asList(deleted));
+    } else if (segment.dir.exists()) {
+      Log.w(TAG, "Can't rename " + segment.dir);
+      deleteAsync(Arrays.asList(segment.dir));
+    }
+  }
+
+  private static void deleteAsync(final List<File> files) {
+    if (files.isEmpty()) {
+      return;
+    }
+    IoThreadPoolExecutor.getInstance().execute(() -> {
+      for (File file : files) {
+        FileUtils.delete(file);
+      }
+    });
+  }
+
+  public synchronized long getSize() {
+    return size;
+  }
+
+  public long getMaxSize() {
+    return maxSize;
+  }
+
+  public synchronized int getSegmentCount() {
+    return segments.size();
+  }
+
+  public synchronized int getHitCount() {
+    return hitCount;
+  }
+
+  public synchronized int getMissCount() {
+    return missCount;
+  }
+
+  public synchronized int getEvictionCount() {
+    return evictionCount;
+  }
+
+  public synchronized long getEvictedBytes() {
+    return evictedBytes;
+  }
+
+  @Override
+  public synchronized String toString() {
+    int accesses = hitCount + missCount;
+    int hitPercent = accesses != 0 ? (100 * hitCount / accesses) : 0;
+    return "SegmentedDiskCache[dir=" + dir.getName() + ",size=" + size + ",maxSize=" + maxSize +
+        ",segments=" + segments.size() + ",hits=" + hitCount + ",misses=" + missCount +
+        ",hitRate=" + hitPercent + "%,evictions=" + evictionCount +
+        ",evictedBytes=" + evictedBytes + "]";
+  }
+
+  private class CommitOutputStreamPipe implements OutputStreamPipe {
+
+    private final String segmentHash;
+    private final String keyHash;
+    private File temp;
+    private OutputStream os;
+
+    CommitOutputStreamPipe(String segmentHash, String keyHash) {
+      this.segmentHash = segmentHash;
+      this.keyHash = keyHash;
+    }
+
+    @Override
+    public void obtain() {}
+
+    @Override
+    public void release() {}
+
+    @NonNull
+    @Override
+    public OutputStream open() throws IOException {
+      if (os != null) {
+        throw new IllegalStateException("Please close it first");
+      }
+      File segmentDir = new File(dir, segmentHash);
+      segmentDir.mkdirs();
+      temp = File.createTempFile(keyHash, TEMP_SUFFIX, segmentDir);
+      os = new FileOutputStream(temp);
+      return os;
+    }
+
+    @Override
+    public void close() {
+      if (os == null) {
+        return;
+      }
+      IOUtils.closeQuietly(os);
+      os = null;
+      commit(segmentHash, keyHash, temp);
+      temp = null;
+    }
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.util;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.Set;
+
+/**
+ * A list which is always sorted by the comparator.
+ * <p>
+ * {@link #indexOf(Object)} is a binary search, only elements equal in
+ * the comparator are scanned. Elements must not change their order keys
+ * while they are in the list.
+ * <p>
+ * Only {@link #add(Object)}, {@link #addAll(Collection)}, {@link #remove(int)},
+ * {@link #remove(Object)}, {@link #removeBatch(Set, List)} and {@link #clear()}
+ * can change the list.
+ */
+public class SortedArrayList<E> extends AbstractList<E> implements RandomAccess {
+
+  private final Comparator<? super E> comparator;
+  private final ArrayList<E> list;
+
+  public SortedArrayList(@NonNull Comparator<? super E> comparator) {
+    this.comparator = comparator;
+    this.list = new ArrayList<>();
+  }
+
+  public SortedArrayList(@NonNull Comparator<? super E> comparator, @NonNull Collection<? extends E> c) {
+    this.comparator = comparator;
+    this.list = new ArrayList<>(c);
+    Collections.sort(list, comparator);
+  }
+
+  @Override
+  public E get(int index) {
+    return list.get(index);
+  }
+
+  @Override
+  public int size() {
+    return list.size();
+  }
+
+  /**
+   * Returns the first position whose element is not less than the element.
+   */
+  private int lowerBound(E e) {
+    int low = 0;
+    int high = list.size();
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (comparator.compare(list.get(mid), e) < 0) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Inserts the element before all elements equal to it.
+   *
+   * @return the position of the element
+   */
+  public int insert(E e) {
+    int index = lowerBound(e);
+    list.add(index, e);
+    modCount++;
+    return index;
+  }
+
+  @Override
+  public boolean add(E e) {
+    insert(e);
+    return true;
+  }
+
+  /**
+   * Adds all elements and sorts once.
+   */
+  @Override
+  public boolean addAll(@NonNull Collection<? extends E> c) {
+    if (c.isEmpty()) {
+      return false;
+    }
+    list.addAll(c);
+    Collections.sort(list, comparator);
+    modCount++;
+    return true;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public int indexOf(Object o) {
+    E e;
+    try {
+      e = (E) o;
+      for (int i = lowerBound(e), n = list.size(); i < n; i++) {
+        E item = list.get(i);
+        if (item == o || item.equals(o)) {
+          return i;
+        }
+        if (comparator.compare(item, e) != 0) {
+          break;
+        }
+      }
+    } catch (ClassCastException | NullPointerException ex) {
+      // Not an element
+    }
+    return -1;
+  }
+
+  @Override
+  public int lastIndexOf(Object o) {
+    return indexOf(o);
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    return indexOf(o) >= 0;
+  }
+
+  @Override
+  public E remove(int index) {
+    E e = list.remove(index);
+    modCount++;
+    return e;
+  }
+
+  @Override
+  public boolean remove(Object o) {
+    int index = indexOf(o);
+    if (index >= 0) {
+      remove(index);
+      return true;
+    } else {
+      return false;
+    }
+  }
+
+  /**
+   * Removes all elements in the set in one pass.
+   *
+   * @param removed removed elements are added to it in order, nullable
+   * @return positions of removed elements, each one is the position
+   * at the time it is removed if they are removed one by one from the front
+   */
+  @NonNull
+  public int[] removeBatch(@NonNull Set<?> items, @Nullable List<? super E> removed) {
+    int[] positions = new int[Math.min(items.size(), list.size())];
+    int count = 0;
+    int j = 0;
+    for (int i = 0, n = list.size(); i < n; i++) {
+      E e = list.get(i);
+      if (items.contains(e)) {
+        if (count == positions.length) {
+          positions = Arrays.copyOf(positions, Math.max(8, count * 2));
+        }
+        // Elements before it are already removed
+        positions[count] = i - count;
+        count++;
+        if (removed != null) {
+          removed.add(e);
+        }
+      } else {
+        list.set(j++, e);
+      }
+    }
+    if (count > 0) {
+      list.subList(j, list.size()).clear();
+      modCount++;
+    }
+    return count == positions.length ? positions : Arrays.copyOf(positions, count);
+  }
+
+  @Override
+  public void clear() {
+    list.clear();
+    modCount++;
+  }
+}
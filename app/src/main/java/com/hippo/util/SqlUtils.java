@@ -55,6 +55,25 @@ public class SqlUtils {
         }
     }
 
+    /**
+     * Get column names of the table, empty list if the table doesn't exist.
+     *
+     * @param schema the database name, like {@code main} or the name of an attached database
+     */
+    public static List<String> getColumnNames(SQLiteDatabase db, String schema, String tableName) {
+        List<String> columns = new ArrayList<>();
+        Cursor cursor = db.rawQuery("PRAGMA " + schema + ".table_info(\"" + tableName + "\");", null);
+        try {
+            int index = cursor.getColumnIndexOrThrow("name");
+            while (cursor.moveToNext()) {
+                columns.add(cursor.getString(index));
+            }
+        } finally {
+            cursor.close();
+        }
+        return columns;
+    }
+
     public static String sqlEscapeString(String value) {
         StringBuilder sb = new StringBuilder();
 
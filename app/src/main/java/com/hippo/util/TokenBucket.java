@@ -0,0 +1,97 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket rate limiter. The bucket holds up to {@code capacity} permits
+ * and is refilled at {@code permitsPerSecond}. It starts full, so a short burst
+ * is allowed before requests are paced.
+ */
+public class TokenBucket {
+
+  private final double capacity;
+  private final double permitsPerNano;
+
+  private double permits;
+  private long lastRefill;
+
+  public TokenBucket(int capacity, double permitsPerSecond) {
+    if (capacity <= 0 || permitsPerSecond <= 0) {
+      throw new IllegalArgumentException("capacity and permitsPerSecond must be positive");
+    }
+    this.capacity = capacity;
+    this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+    this.permits = capacity;
+    this.lastRefill = System.nanoTime();
+  }
+
+  private void refill(long now) {
+    permits = Math.min(capacity, permits + (now - lastRefill) * permitsPerNano);
+    lastRefill = now;
+  }
+
+  /**
+   * Takes a permit if one is available right now.
+   */
+  public synchronized boolean tryAcquire() {
+    refill(System.nanoTime());
+    if (permits >= 1.0) {
+      permits -= 1.0;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Reserves a permit and returns how many nanoseconds the caller
+   * must wait before using it.
+   */
+  private synchronized long reserve() {
+    long now = System.nanoTime();
+    refill(now);
+    permits -= 1.0;
+    if (permits >= 0.0) {
+      return 0L;
+    }
+    return (long) Math.ceil(-permits / permitsPerNano);
+  }
+
+  /**
+   * Gives back a reserved permit which is not used.
+   */
+  private synchronized void unreserve() {
+    refill(System.nanoTime());
+    permits = Math.min(capacity, permits + 1.0);
+  }
+
+  /**
+   * Blocks until a permit is available. The permit is given back if interrupted.
+   */
+  public void acquire() throws InterruptedException {
+    long wait = reserve();
+    if (wait > 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(wait);
+      } catch (InterruptedException e) {
+        unreserve();
+        throw e;
+      }
+    }
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.util;
+
+import androidx.annotation.NonNull;
+import com.hippo.ehviewer.BuildConfig;
+import com.hippo.yorozuya.IOUtils;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records spans of spider, decoder and download work in a ring buffer of longs.
+ * No string is built when recording.
+ * <p>
+ * Guard every call with {@link #ENABLED}, it's a compile-time constant
+ * from the build type, so the calls are stripped from release builds.
+ * <pre>
+ * if (Tracer.ENABLED) {
+ *   Tracer.begin(Tracer.PHASE_DECODE, index);
+ * }
+ * </pre>
+ * {@link #export(File)} writes the events in Trace Event Format,
+ * which chrome://tracing and Perfetto can open.
+ */
+public final class Tracer {
+
+  public static final boolean ENABLED = BuildConfig.SPIDER_TRACE;
+
+  public static final int PHASE_WORKER = 0;
+  public static final int PHASE_DECODER = 1;
+  public static final int PHASE_QUEEN = 2;
+  public static final int PHASE_SPIDER_INFO = 3;
+  public static final int PHASE_ENSURE_WORKERS = 4;
+  public static final int PHASE_PAGE = 5;
+  public static final int PHASE_RESOLVE_URL = 6;
+  public static final int PHASE_FETCH = 7;
+  public static final int PHASE_DECODE = 8;
+  public static final int PHASE_RETIRE = 9;
+  public static final int PHASE_GALLERY_DOWNLOAD = 10;
+
+  private static final String[] PHASE_NAMES = {
+      "worker", "decoder", "queen", "spider_info", "ensure_workers", "page",
+      "resolve_url", "fetch", "decode", "retire", "gallery_download",
+  };
+
+  private static final int TYPE_BEGIN = 0;
+  private static final int TYPE_END = 1;
+  private static final int TYPE_INSTANT = 2;
+
+  private static final char[] TYPE_CHARS = {'B', 'E', 'i'};
+
+  // Longs of an event: time, thread id, page index, phase and type
+  private static final int EVENT_SIZE = 4;
+  // Must be power of 2
+  private static final int CAPACITY = 1 << 14;
+
+  private static final long[] events = new long[CAPACITY * EVENT_SIZE];
+  private static final AtomicLong next = new AtomicLong();
+  private static final Map<Long, String> threadNames = new ConcurrentHashMap<>();
+
+  private Tracer() {}
+
+  public static void begin(int phase, int index) {
+    record(TYPE_BEGIN, phase, index);
+  }
+
+  public static void end(int phase, int index) {
+    record(TYPE_END, phase, index);
+  }
+
+  public static void instant(int phase, int index) {
+    record(TYPE_INSTANT, phase, index);
+  }
+
+  private static void record(int type, int phase, int index) {
+    Thread thread = Thread.currentThread();
+    long tid = thread.getId();
+    if (!threadNames.containsKey(tid)) {
+      threadNames.put(tid, thread.getName());
+    }
+    int offset = (int) (next.getAndIncrement() & (CAPACITY - 1)) * EVENT_SIZE;
+    events[offset] = System.nanoTime();
+    events[offset + 1] = tid;
+    events[offset + 2] = index;
+    events[offset + 3] = ((long) phase << 8) | type;
+  }
+
+  /**
+   * Writes the recorded events, the oldest first. Events recorded while
+   * exporting may be torn, they are rare enough to ignore.
+   */
+  public static boolean export(@NonNull File file) {
+    long end = next.get();
+    long start = Math.max(0, end - CAPACITY);
+    Writer writer = null;
+    try {
+      writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+      writer.write("{\"traceEvents\":[");
+      boolean first = true;
+      for (Map.Entry<Long, String> entry : threadNames.entrySet()) {
+        if (!first) {
+          writer.write(',');
+        }
+        first = false;
+        writer.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":0,\"tid\":" + entry.getKey() +
+            ",\"args\":{\"name\":\"" + entry.getValue().replace("\"", "\\\"") + "\"}}");
+      }
+      for (long i = start; i < end; i++) {
+        int offset = (int) (i & (CAPACITY - 1)) * EVENT_SIZE;
+        int phase = (int) (events[offset + 3] >>> 8);
+        int type = (int) (events[offset + 3] & 0xff);
+        if (phase < 0 || phase >= PHASE_NAMES.length || type >= TYPE_CHARS.length) {
+          continue;
+        }
+        if (!first) {
+          writer.write(',');
+        }
+        first = false;
+        writer.write("{\"name\":\"" + PHASE_NAMES[phase] + "\",\"ph\":\"" + TYPE_CHARS[type] +
+            "\",\"ts\":" + events[offset] / 1000 + ",\"pid\":0,\"tid\":" + events[offset + 1] +
+            (type == TYPE_INSTANT ? ",\"s\":\"t\"" : "") +
+            ",\"args\":{\"index\":" + events[offset + 2] + "}}");
+      }
+      writer.write("]}");
+      return true;
+    } catch (IOException e) {
+      return false;
+    } finally {
+      IOUtils.closeQuietly(writer);
+    }
+  }
+}
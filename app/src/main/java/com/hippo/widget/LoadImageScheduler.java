@@ -0,0 +1,469 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.widget;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.View;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.RecyclerView;
+import com.hippo.conaco.Conaco;
+import com.hippo.conaco.ConacoTask;
+import com.hippo.conaco.DataContainer;
+import com.hippo.conaco.Unikery;
+import com.hippo.image.ImageBitmap;
+import com.hippo.yorozuya.ObjectUtils;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Sits between {@link LoadImageView} and {@link Conaco}.
+ * <p>
+ * Memory cache is checked at once when a view is bound, so a cached image is shown
+ * in the first frame. Otherwise the request is only sent to Conaco when its view is
+ * attached to window, newest first, so rows which are bound and scrolled away before
+ * showing never start a task. A request is loaded from disk cache first, and goes to
+ * network only if the cache misses. The two stages are capped separately. Network requests of the same key
+ * are coalesced, the others wait and read the cache when the first one finishes.
+ * Network requests are held while an attached {@link RecyclerView} is flinging.
+ * <p>
+ * All methods must be called in UI thread.
+ */
+public class LoadImageScheduler {
+
+    private static final String TAG = LoadImageScheduler.class.getSimpleName();
+
+    private static final int MAX_CACHE_TASKS = 4;
+    private static final int MAX_NETWORK_TASKS = 3;
+    // Drop the request if the view is not attached to window for such a long time,
+    // the view will load it again when it is attached.
+    private static final long PENDING_TIMEOUT = 2000;
+
+    private static final int STAGE_PENDING_CACHE = 0;
+    private static final int STAGE_CACHE = 1;
+    private static final int STAGE_PENDING_NETWORK = 2;
+    private static final int STAGE_NETWORK = 3;
+    private static final int STAGE_DONE = 4;
+
+    private final Conaco<ImageBitmap> mConaco;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Map<LoadImageView, Request> mRequests = new HashMap<>();
+    private final ArrayList<Request> mCacheQueue = new ArrayList<>();
+    private final ArrayList<Request> mNetworkQueue = new ArrayList<>();
+    // Key of running network request -> the request
+    private final Map<String, Request> mNetworkKeys = new HashMap<>();
+    private int mCacheTasks;
+    private int mNetworkTasks;
+
+    private int mFlingCount;
+    private int mFlingRequests;
+    private int mFlingAvoided;
+    private int mFlingCoalesced;
+
+    private int mAvoidedCount;
+    private int mCoalescedCount;
+
+    private boolean mDispatchPosted;
+    private final Runnable mDispatchTask = new Runnable() {
+        @Override
+        public void run() {
+            mDispatchPosted = false;
+            dispatch();
+        }
+    };
+
+    public LoadImageScheduler(@NonNull Conaco<ImageBitmap> conaco) {
+        mConaco = conaco;
+    }
+
+    public void load(@NonNull LoadImageView view, @Nullable String key, @NonNull String url,
+            @Nullable DataContainer container, boolean useNetwork) {
+        Request request = mRequests.get(view);
+        if (request != null) {
+            if (request.stage != STAGE_DONE && ObjectUtils.equal(request.key, key) &&
+                    url.equals(request.url) && request.container == container &&
+                    request.useNetwork == useNetwork) {
+                // Same request, the view might be attached now
+                if (view.isAttachedToWindow()) {
+                    dispatch();
+                }
+                return;
+            }
+            cancelRequest(request);
+        }
+
+        if (key != null) {
+            ImageBitmap value = mConaco.getBeerBelly().getFromMemory(key);
+            if (value != null && view.onGetValue(value, Conaco.SOURCE_MEMORY)) {
+                return;
+            }
+        }
+
+        request = new Request(view, key, url, container, useNetwork);
+        mRequests.put(view, request);
+        mCacheQueue.add(request);
+        if (mFlingCount > 0) {
+            mFlingRequests++;
+        }
+
+        if (view.isAttachedToWindow()) {
+            dispatch();
+        } else {
+            postDispatch(0);
+        }
+    }
+
+    public void cancel(@NonNull LoadImageView view) {
+        Request request = mRequests.remove(view);
+        if (request != null) {
+            cancelRequest(request);
+            view.setTaskId(Unikery.INVALID_ID);
+            view.onCancel();
+        }
+    }
+
+    private void cancelRequest(@NonNull Request request) {
+        mRequests.remove(request.view);
+        switch (request.stage) {
+            case STAGE_PENDING_CACHE:
+                mCacheQueue.remove(request);
+                onAvoided(request);
+                request.stage = STAGE_DONE;
+                break;
+            case STAGE_PENDING_NETWORK:
+                mNetworkQueue.remove(request);
+                onAvoided(request);
+                request.stage = STAGE_DONE;
+                break;
+            case STAGE_CACHE:
+            case STAGE_NETWORK:
+                mConaco.cancel(request);
+                // Conaco might not call onCancel() if the task is finished
+                finish(request);
+                break;
+        }
+    }
+
+    private void onAvoided(@NonNull Request request) {
+        if (request.useNetwork) {
+            mAvoidedCount++;
+            if (mFlingCount > 0) {
+                mFlingAvoided++;
+            }
+        }
+    }
+
+    private void postDispatch(long delay) {
+        if (!mDispatchPosted) {
+            mDispatchPosted = true;
+            mHandler.postDelayed(mDispatchTask, delay);
+        }
+    }
+
+    private void dispatch() {
+        // Newest first, they are the rows on screen now
+        for (int i = mCacheQueue.size() - 1; i >= 0 && mCacheTasks < MAX_CACHE_TASKS; i--) {
+            Request request = mCacheQueue.get(i);
+            if (request.view.isAttachedToWindow()) {
+                mCacheQueue.remove(i);
+                startCache(request);
+                // The queue might be changed by callbacks
+                i = Math.min(i, mCacheQueue.size());
+            }
+        }
+
+        if (mFlingCount == 0) {
+            for (int i = mNetworkQueue.size() - 1; i >= 0 && mNetworkTasks < MAX_NETWORK_TASKS; i--) {
+                Request request = mNetworkQueue.get(i);
+                if (request.view.isAttachedToWindow()) {
+                    if (request.key != null && mNetworkKeys.containsKey(request.key)) {
+                        // Wait for the running one
+                        continue;
+                    }
+                    mNetworkQueue.remove(i);
+                    startNetwork(request);
+                    i = Math.min(i, mNetworkQueue.size());
+                }
+            }
+        }
+
+        long now = SystemClock.uptimeMillis();
+        boolean hasDetached = dropExpired(mCacheQueue, now);
+        hasDetached |= dropExpired(mNetworkQueue, now);
+        if (hasDetached) {
+            postDispatch(PENDING_TIMEOUT);
+        }
+    }
+
+    private boolean dropExpired(ArrayList<Request> queue, long now) {
+        boolean hasDetached = false;
+        for (Iterator<Request> iterator = queue.iterator(); iterator.hasNext();) {
+            Request request = iterator.next();
+            if (request.view.isAttachedToWindow()) {
+                continue;
+            }
+            if (now - request.time >= PENDING_TIMEOUT) {
+                iterator.remove();
+                mRequests.remove(request.view);
+                onAvoided(request);
+                request.stage = STAGE_DONE;
+            } else {
+                hasDetached = true;
+            }
+        }
+        return hasDetached;
+    }
+
+    private void startCache(Request request) {
+        request.stage = STAGE_CACHE;
+        mCacheTasks++;
+        mConaco.load(new ConacoTask.Builder<ImageBitmap>()
+                .setUnikery(request)
+                .setKey(request.key)
+                .setUrl(request.url)
+                .setDataContainer(request.container)
+                .setUseNetwork(false));
+    }
+
+    private void startNetwork(Request request) {
+        request.stage = STAGE_NETWORK;
+        mNetworkTasks++;
+        if (request.key != null) {
+            mNetworkKeys.put(request.key, request);
+        }
+        mConaco.load(new ConacoTask.Builder<ImageBitmap>()
+                .setUnikery(request)
+                .setKey(request.key)
+                .setUrl(request.url)
+                .setDataContainer(request.container)
+                .setUseNetwork(true));
+    }
+
+    private void finish(Request request) {
+        switch (request.stage) {
+            case STAGE_CACHE:
+                mCacheTasks--;
+                break;
+            case STAGE_NETWORK:
+                mNetworkTasks--;
+                if (request.key != null && mNetworkKeys.get(request.key) == request) {
+                    mNetworkKeys.remove(request.key);
+                    // The waiting requests of the same key could read cache now
+                    for (int i = mNetworkQueue.size() - 1; i >= 0; i--) {
+                        Request waiting = mNetworkQueue.get(i);
+                        if (request.key.equals(waiting.key)) {
+                            mNetworkQueue.remove(i);
+                            waiting.stage = STAGE_PENDING_CACHE;
+                            mCacheQueue.add(waiting);
+                            mCoalescedCount++;
+                            if (mFlingCount > 0) {
+                                mFlingCoalesced++;
+                            }
+                        }
+                    }
+                }
+                break;
+            default:
+                return;
+        }
+        request.stage = STAGE_DONE;
+        if (mRequests.get(request.view) == request) {
+            mRequests.remove(request.view);
+        }
+        postDispatch(0);
+    }
+
+    private void onCacheMiss(Request request) {
+        mCacheTasks--;
+        request.stage = STAGE_PENDING_NETWORK;
+        mNetworkQueue.add(request);
+        postDispatch(0);
+    }
+
+    /**
+     * Hold network requests while the {@code RecyclerView} is flinging,
+     * and log how many network requests are avoided in each fling.
+     */
+    public void attachTo(@NonNull RecyclerView recyclerView) {
+        FlingListener listener = new FlingListener();
+        recyclerView.addOnScrollListener(listener);
+        recyclerView.addOnAttachStateChangeListener(listener);
+    }
+
+    private void onFlingStart() {
+        if (mFlingCount++ == 0) {
+            mFlingRequests = 0;
+            mFlingAvoided = 0;
+            mFlingCoalesced = 0;
+        }
+    }
+
+    private void onFlingEnd() {
+        if (--mFlingCount == 0) {
+            Log.d(TAG, "Fling: " + mFlingRequests + " requests, " + mFlingAvoided +
+                    " network requests avoided, " + mFlingCoalesced + " coalesced");
+            postDispatch(0);
+        }
+    }
+
+    public int getAvoidedCount() {
+        return mAvoidedCount;
+    }
+
+    public int getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    @Override
+    public String toString() {
+        return "LoadImageScheduler[pending=" + (mCacheQueue.size() + mNetworkQueue.size()) +
+                ",cacheTasks=" + mCacheTasks + ",networkTasks=" + mNetworkTasks +
+                ",avoided=" + mAvoidedCount + ",coalesced=" + mCoalescedCount + "]";
+    }
+
+    private class FlingListener extends RecyclerView.OnScrollListener
+            implements View.OnAttachStateChangeListener {
+
+        private boolean mFlinging;
+
+        @Override
+        public void onScrollStateChanged(@NonNull RecyclerView recyclerView, int newState) {
+            boolean flinging = newState == RecyclerView.SCROLL_STATE_SETTLING;
+            if (flinging != mFlinging) {
+                mFlinging = flinging;
+                if (flinging) {
+                    onFlingStart();
+                } else {
+                    onFlingEnd();
+                }
+            }
+        }
+
+        @Override
+        public void onViewAttachedToWindow(View v) {}
+
+        @Override
+        public void onViewDetachedFromWindow(View v) {
+            // The RecyclerView might be gone before the fling ends
+            if (mFlinging) {
+                mFlinging = false;
+                onFlingEnd();
+            }
+        }
+    }
+
+    private class Request implements Unikery<ImageBitmap> {
+
+        final LoadImageView view;
+        final String key;
+        final String url;
+        final DataContainer container;
+        final boolean useNetwork;
+        final long time = SystemClock.uptimeMillis();
+
+        int stage = STAGE_PENDING_CACHE;
+        private int mTaskId = Unikery.INVALID_ID;
+
+        Request(LoadImageView view, String key, String url, DataContainer container, boolean useNetwork) {
+            this.view = view;
+            this.key = key;
+            this.url = url;
+            this.container = container;
+            this.useNetwork = useNetwork;
+        }
+
+        private boolean isCurrent() {
+            return mRequests.get(view) == this;
+        }
+
+        @Override
+        public void setTaskId(int id) {
+            mTaskId = id;
+            if (isCurrent()) {
+                view.setTaskId(id);
+            }
+        }
+
+        @Override
+        public int getTaskId() {
+            return mTaskId;
+        }
+
+        @Override
+        public void onMiss(int source) {
+            if (isCurrent()) {
+                view.onMiss(source);
+            }
+        }
+
+        @Override
+        public void onRequest() {
+            if (isCurrent()) {
+                view.onRequest();
+            }
+        }
+
+        @Override
+        public void onProgress(long singleReceivedSize, long receivedSize, long totalSize) {
+            if (isCurrent()) {
+                view.onProgress(singleReceivedSize, receivedSize, totalSize);
+            }
+        }
+
+        @Override
+        public void onWait() {
+            if (isCurrent()) {
+                view.onWait();
+            }
+        }
+
+        @Override
+        public boolean onGetValue(@NonNull ImageBitmap value, int source) {
+            boolean current = isCurrent();
+            finish(this);
+            return current && view.onGetValue(value, source);
+        }
+
+        @Override
+        public void onFailure() {
+            if (stage == STAGE_CACHE && useNetwork && isCurrent()) {
+                onCacheMiss(this);
+                return;
+            }
+            boolean current = isCurrent();
+            finish(this);
+            if (current) {
+                view.onFailure();
+            }
+        }
+
+        @Override
+        public void onCancel() {
+            boolean current = isCurrent();
+            finish(this);
+            if (current) {
+                view.onCancel();
+            }
+        }
+    }
+}
@@ -30,7 +30,6 @@ import androidx.annotation.DrawableRes;
 import androidx.annotation.IntDef;
 import androidx.annotation.NonNull;
 import com.hippo.conaco.Conaco;
-import com.hippo.conaco.ConacoTask;
 import com.hippo.conaco.DataContainer;
 import com.hippo.conaco.Unikery;
 import com.hippo.drawable.PreciselyClipDrawable;
@@ -58,7 +57,7 @@ public class LoadImageView extends FixedAspectImageView implements Unikery<Image
 
     private int mTaskId = Unikery.INVALID_ID;
 
-    private Conaco<ImageBitmap> mConaco;
+    private LoadImageScheduler mScheduler;
 
     private String mKey;
     private String mUrl;
@@ -96,7 +95,7 @@ public class LoadImageView extends FixedAspectImageView implements Unikery<Image
         a.recycle();
 
         if (!isInEditMode()) {
-            mConaco = EhApplication.getConaco(context);
+            mScheduler = EhApplication.getLoadImageScheduler(context);
         }
     }
 
@@ -126,7 +125,7 @@ public class LoadImageView extends FixedAspectImageView implements Unikery<Image
         super.onDetachedFromWindow();
 
         // Cancel
-        mConaco.cancel(this);
+        mScheduler.cancel(this);
         // Clear drawable
         clearDrawable();
     }
@@ -228,13 +227,7 @@ public class LoadImageView extends FixedAspectImageView implements Unikery<Image
         mContainer = container;
         mUseNetwork = useNetwork;
 
-        ConacoTask.Builder<ImageBitmap> builder = new ConacoTask.Builder<ImageBitmap>()
-                .setUnikery(this)
-                .setKey(key)
-                .setUrl(url)
-                .setDataContainer(container)
-                .setUseNetwork(useNetwork);
-        mConaco.load(builder);
+        mScheduler.load(this, key, url, container, useNetwork);
     }
 
     public void load(Drawable drawable) {
@@ -250,7 +243,7 @@ public class LoadImageView extends FixedAspectImageView implements Unikery<Image
     }
 
     public void unload() {
-        mConaco.cancel(this);
+        mScheduler.cancel(this);
         mKey = null;
         mUrl = null;
         mContainer = null;
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.app.Application;
+import com.hippo.ehviewer.GetText;
+import com.hippo.ehviewer.client.exception.SourceUnavailableException;
+import com.hippo.util.Clock;
+import com.hippo.util.TokenBucket;
+import java.io.IOException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+// Not EhApplication, it loads native libraries
+@RunWith(RobolectricTestRunner.class)
+@Config(application = Application.class)
+public class SourceGuardTest {
+
+    private static class FakeClock implements Clock {
+
+        long time = 100000;
+
+        @Override
+        public long elapsedRealtime() {
+            return time;
+        }
+    }
+
+    /**
+     * A flaky source, it fails the first requests with network errors.
+     */
+    private static class FlakySource implements SourceGuard.Request<String> {
+
+        private int mFailures;
+        int requests;
+
+        FlakySource(int failures) {
+            mFailures = failures;
+        }
+
+        @Override
+        public String call() {
+            requests++;
+            if (mFailures > 0) {
+                mFailures--;
+                // Like RxJava wraps an IOException
+                throw new RuntimeException(new IOException("Connection reset"));
+            }
+            return "ok";
+        }
+    }
+
+    private FakeClock mClock;
+
+    @Before
+    public void setUp() {
+        GetText.initialize(RuntimeEnvironment.application);
+        mClock = new FakeClock();
+    }
+
+    private SourceGuard newGuard(TokenBucket retryBudget) {
+        return new SourceGuard("test", mClock, retryBudget);
+    }
+
+    private static void failRequests(SourceGuard guard, int times) {
+        for (int i = 0; i < times; i++) {
+            assertTrue(guard.allowRequest());
+            guard.onFailure(new IOException());
+        }
+    }
+
+    @Test
+    public void testOpenAfterFailures() {
+        SourceGuard guard = newGuard(new TokenBucket(20, 2));
+        failRequests(guard, SourceGuard.FAILURE_THRESHOLD - 1);
+        assertTrue(guard.allowRequest());
+        guard.onFailure(new IOException());
+        assertFalse(guard.allowRequest());
+    }
+
+    @Test
+    public void testSuccessResetsFailures() {
+        SourceGuard guard = newGuard(new TokenBucket(20, 2));
+        failRequests(guard, SourceGuard.FAILURE_THRESHOLD - 1);
+        assertTrue(guard.allowRequest());
+        guard.onSuccess();
+        failRequests(guard, SourceGuard.FAILURE_THRESHOLD - 1);
+        assertTrue(guard.allowRequest());
+    }
+
+    @Test
+    public void testNotTransientFailures() {
+        SourceGuard guard = newGuard(new TokenBucket(20, 2));
+        for (int i = 0; i < SourceGuard.FAILURE_THRESHOLD * 2; i++) {
+            assertTrue(guard.allowRequest());
+            guard.onFailure(new IllegalStateException("Parse error"));
+        }
+        assertTrue(guard.allowRequest());
+    }
+
+    @Test
+    public void testHalfOpenProbe() {
+        SourceGuard guard = newGuard(new TokenBucket(20, 2));
+        failRequests(guard, SourceGuard.FAILURE_THRESHOLD);
+
+        mClock.time += SourceGuard.OPEN_DURATION - 1;
+        assertFalse(guard.allowRequest());
+
+        // One probe at a time
+        mClock.time += 1;
+        assertTrue(guard.allowRequest());
+        assertFalse(guard.allowRequest());
+
+        // A failed probe opens it again
+        guard.onFailure(new IOException());
+        assertFalse(guard.allowRequest());
+
+        mClock.time += SourceGuard.OPEN_DURATION;
+        assertTrue(guard.allowRequest());
+        guard.onSuccess();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(guard.allowRequest());
+            guard.onSuccess();
+        }
+    }
+
+    @Test
+    public void testCancelledProbe() {
+        SourceGuard guard = newGuard(new TokenBucket(20, 2));
+        failRequests(guard, SourceGuard.FAILURE_THRESHOLD);
+        mClock.time += SourceGuard.OPEN_DURATION;
+        assertTrue(guard.allowRequest());
+        guard.onCancel();
+        // Another probe can go
+        assertTrue(guard.allowRequest());
+    }
+
+    @Test
+    public void testRetryBudget() {
+        SourceGuard guard = newGuard(new TokenBucket(2, 0.001));
+        assertTrue(guard.retryDelay(0) >= 0);
+        assertTrue(guard.retryDelay(1) >= 0);
+        assertEquals(-1, guard.retryDelay(2));
+        assertFalse(guard.backoff(0));
+    }
+
+    @Test
+    public void testRetryBudgetShared() {
+        TokenBucket budget = new TokenBucket(1, 0.001);
+        SourceGuard guard1 = newGuard(budget);
+        SourceGuard guard2 = new SourceGuard("other", mClock, budget);
+        assertTrue(guard1.retryDelay(0) >= 0);
+        assertEquals(-1, guard2.retryDelay(0));
+    }
+
+    @Test
+    public void testCallRetries() throws SourceUnavailableException {
+        SourceGuard guard = newGuard(new TokenBucket(20, 2));
+        FlakySource source = new FlakySource(1);
+        assertEquals("ok", guard.call(source));
+        assertEquals(2, source.requests);
+    }
+
+    @Test
+    public void testCallStopsWithoutBudget() throws SourceUnavailableException {
+        TokenBucket budget = new TokenBucket(1, 0.001);
+        assertTrue(budget.tryAcquire());
+        SourceGuard guard = newGuard(budget);
+        FlakySource source = new FlakySource(Integer.MAX_VALUE);
+        try {
+            guard.call(source);
+            fail("No exception");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertEquals(1, source.requests);
+    }
+
+    @Test
+    public void testCallFailsFastWhenOpen() {
+        SourceGuard guard = newGuard(new TokenBucket(20, 2));
+        failRequests(guard, SourceGuard.FAILURE_THRESHOLD);
+        FlakySource source = new FlakySource(0);
+        try {
+            guard.call(source);
+            fail("No exception");
+        } catch (SourceUnavailableException e) {
+            // Expected
+        }
+        assertEquals(0, source.requests);
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.spider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.app.Application;
+import com.hippo.util.Clock;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+// Not EhApplication, it loads native libraries
+@RunWith(RobolectricTestRunner.class)
+@Config(application = Application.class)
+public class WorkerCountControllerTest {
+
+    private static final long BYTES_PER_WORKER = 100 * 1024;
+
+    private static class FakeClock implements Clock {
+
+        long time;
+
+        @Override
+        public long elapsedRealtime() {
+            return time;
+        }
+    }
+
+    /**
+     * A server which gives each worker the same throughput until it's saturated,
+     * and throttles when there are too many workers.
+     */
+    private static class FakeServer {
+
+        private final int mSaturation;
+        private final int mThrottle;
+        private final float mErrorRate;
+
+        FakeServer(int saturation, int throttle, float errorRate) {
+            mSaturation = saturation;
+            mThrottle = throttle;
+            mErrorRate = errorRate;
+        }
+
+        // Results of one window, then the window is closed
+        void runWindow(WorkerCountController controller, FakeClock clock) {
+            int count = controller.getCount();
+            int pages = Math.max(10, count * 4);
+            int failures = Math.round(pages * mErrorRate);
+            long bytes = Math.min(count, mSaturation) * BYTES_PER_WORKER *
+                    WorkerCountController.WINDOW / 1000;
+            for (int i = failures; i < pages; i++) {
+                controller.onSuccess(bytes / (pages - failures));
+            }
+            for (int i = 0; i < failures; i++) {
+                controller.onFailure(0);
+            }
+            if (count > mThrottle) {
+                controller.onFailure(429);
+            }
+            clock.time += WorkerCountController.WINDOW;
+            controller.update();
+        }
+    }
+
+    @Test
+    public void testStartCount() {
+        WorkerCountController controller = new WorkerCountController(1, 8, 3, new FakeClock());
+        assertEquals(3, controller.getCount());
+        controller = new WorkerCountController(1, 8, 20, new FakeClock());
+        assertEquals(8, controller.getCount());
+    }
+
+    @Test
+    public void testWaitWindow() {
+        FakeClock clock = new FakeClock();
+        WorkerCountController controller = new WorkerCountController(1, 8, 1, clock);
+        controller.onSuccess(1024);
+        controller.onSuccess(1024);
+        controller.onSuccess(1024);
+        clock.time += WorkerCountController.WINDOW - 1;
+        assertTrue(!controller.update());
+        clock.time += 1;
+        assertTrue(controller.update());
+        assertEquals(2, controller.getCount());
+    }
+
+    @Test
+    public void testRampUp() {
+        FakeClock clock = new FakeClock();
+        FakeServer server = new FakeServer(4, Integer.MAX_VALUE, 0.0f);
+        WorkerCountController controller = new WorkerCountController(1, 8, 1, clock);
+        for (int i = 0; i < 10; i++) {
+            server.runWindow(controller, clock);
+        }
+        assertEquals(4, controller.getCount());
+    }
+
+    @Test
+    public void testSettleWithoutOscillating() {
+        FakeClock clock = new FakeClock();
+        FakeServer server = new FakeServer(4, Integer.MAX_VALUE, 0.0f);
+        WorkerCountController controller = new WorkerCountController(1, 8, 1, clock);
+        for (int i = 0; i < 20; i++) {
+            server.runWindow(controller, clock);
+        }
+
+        int changes = 0;
+        int windowsAtSaturation = 0;
+        int lastCount = controller.getCount();
+        for (int i = 0; i < 200; i++) {
+            server.runWindow(controller, clock);
+            int count = controller.getCount();
+            assertTrue("count " + count, count == 4 || count == 5);
+            if (count != lastCount) {
+                changes++;
+            }
+            if (count == 4) {
+                windowsAtSaturation++;
+            }
+            lastCount = count;
+        }
+        // Tries of one more worker get rare
+        assertTrue("changes " + changes, changes <= 12);
+        assertTrue("windows " + windowsAtSaturation, windowsAtSaturation >= 190);
+    }
+
+    @Test
+    public void testBackOffOnThrottle() {
+        FakeClock clock = new FakeClock();
+        FakeServer server = new FakeServer(8, 4, 0.0f);
+        WorkerCountController controller = new WorkerCountController(1, 8, 8, clock);
+        server.runWindow(controller, clock);
+        assertEquals(4, controller.getCount());
+
+        // Throttled when trying one more, it goes back instead of halving
+        for (int i = 0; i < 200; i++) {
+            server.runWindow(controller, clock);
+            int count = controller.getCount();
+            assertTrue("count " + count, count == 4 || count == 5);
+        }
+    }
+
+    @Test
+    public void testBackOffOnErrors() {
+        FakeClock clock = new FakeClock();
+        FakeServer server = new FakeServer(8, Integer.MAX_VALUE, 0.5f);
+        WorkerCountController controller = new WorkerCountController(1, 8, 8, clock);
+        server.runWindow(controller, clock);
+        assertEquals(4, controller.getCount());
+        server.runWindow(controller, clock);
+        assertEquals(2, controller.getCount());
+        // A try of one more worker goes back at once
+        for (int i = 0; i < 50; i++) {
+            server.runWindow(controller, clock);
+            assertTrue(controller.getCount() <= 2);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.ehviewer.gallery;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Moves an image-sized payload through a {@link Pipe}, as archive extraction does,
+ * with the writer and the reader in different threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PipeBenchmark {
+
+  private static final int PAYLOAD_SIZE = 2 * 1024 * 1024;
+
+  @Param({"4096", "65536"})
+  public int capacity;
+
+  @Param({"4096"})
+  public int chunkSize;
+
+  private byte[] payload;
+
+  @Setup
+  public void setup() {
+    payload = new byte[PAYLOAD_SIZE];
+    // Fixed seed, every run moves the same bytes
+    new Random(0).nextBytes(payload);
+  }
+
+  @Benchmark
+  public long transfer() throws Exception {
+    final Pipe pipe = new Pipe(capacity);
+    Thread writer = new Thread(() -> {
+      OutputStream os = pipe.getOutputStream();
+      try {
+        for (int offset = 0; offset < payload.length; offset += chunkSize) {
+          os.write(payload, offset, Math.min(chunkSize, payload.length - offset));
+        }
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      } finally {
+        try {
+          os.close();
+        } catch (IOException e) {
+          // Ignore
+        }
+      }
+    });
+    writer.start();
+
+    long total = 0;
+    InputStream is = pipe.getInputStream();
+    byte[] buffer = new byte[chunkSize];
+    int read;
+    while ((read = is.read(buffer)) != -1) {
+      total += read;
+    }
+    is.close();
+    writer.join();
+
+    if (total != payload.length) {
+      throw new IllegalStateException("Lost bytes: " + total);
+    }
+    return total;
+  }
+}
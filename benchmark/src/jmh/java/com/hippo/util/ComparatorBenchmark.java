@@ -0,0 +1,81 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Sorts file names of archives and directories, as the gallery providers do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ComparatorBenchmark {
+
+  private final NaturalComparator naturalComparator = new NaturalComparator();
+  private final PathNaturalComparator pathNaturalComparator = new PathNaturalComparator();
+
+  private String[] filenames;
+
+  static String[] readLines(String name) throws IOException {
+    List<String> lines = new ArrayList<>();
+    try (InputStream is = ComparatorBenchmark.class.getResourceAsStream("/" + name);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (!line.isEmpty()) {
+          lines.add(line);
+        }
+      }
+    }
+    return lines.toArray(new String[lines.size()]);
+  }
+
+  @Setup
+  public void setup() throws IOException {
+    filenames = readLines("filenames.txt");
+  }
+
+  @Benchmark
+  public String[] sortNatural() {
+    String[] array = filenames.clone();
+    Arrays.sort(array, naturalComparator);
+    return array;
+  }
+
+  @Benchmark
+  public String[] sortPathNatural() {
+    String[] array = filenames.clone();
+    Arrays.sort(array, pathNaturalComparator);
+    return array;
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2019 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Deletes a range of downloads from a label list, as DownloadManager does,
+ * one by one from a LinkedList against one pass over a SortedArrayList.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SortedArrayListBenchmark {
+
+  private static final Comparator<Item> DATE_DESC_COMPARATOR = (lhs, rhs) -> Long.compare(rhs.time, lhs.time);
+
+  static class Item {
+    final long time;
+
+    Item(long time) {
+      this.time = time;
+    }
+  }
+
+  @Param({"5000"})
+  public int size;
+
+  @Param({"50", "2500"})
+  public int deleteCount;
+
+  private List<Item> items;
+  private List<Item> deleted;
+
+  private LinkedList<Item> linkedList;
+  private SortedArrayList<Item> sortedList;
+
+  @Setup
+  public void setup() {
+    items = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      items.add(new Item(1500000000000L + i * 1000L));
+    }
+    // Fixed seed, every run deletes the same items
+    List<Item> shuffled = new ArrayList<>(items);
+    Collections.shuffle(shuffled, new Random(0));
+    deleted = new ArrayList<>(shuffled.subList(0, deleteCount));
+  }
+
+  @Setup(Level.Invocation)
+  public void fill() {
+    linkedList = new LinkedList<>(items);
+    Collections.sort(linkedList, DATE_DESC_COMPARATOR);
+    sortedList = new SortedArrayList<>(DATE_DESC_COMPARATOR, items);
+  }
+
+  @Benchmark
+  public int linkedListRemove() {
+    int sum = 0;
+    for (Item item : deleted) {
+      int index = linkedList.indexOf(item);
+      if (index >= 0) {
+        linkedList.remove(index);
+        sum += index;
+      }
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public int sortedListRemoveBatch() {
+    Set<Item> set = Collections.newSetFromMap(new IdentityHashMap<>());
+    set.addAll(deleted);
+    int sum = 0;
+    for (int position : sortedList.removeBatch(set, null)) {
+      sum += position;
+    }
+    return sum;
+  }
+}
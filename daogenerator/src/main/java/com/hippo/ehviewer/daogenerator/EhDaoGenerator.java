@@ -32,7 +32,7 @@ public class EhDaoGenerator {
     private static final String OUT_DIR = "../app/src/main/java-gen";
     private static final String DELETE_DIR = "../app/src/main/java-gen/com/hippo/ehviewer/dao";
 
-    private static final int VERSION = 5;
+    private static final int VERSION = 8;
 
     private static final String DOWNLOAD_INFO_PATH = "../app/src/main/java-gen/com/hippo/ehviewer/dao/DownloadInfo.java";
     private static final String HISTORY_INFO_PATH = "../app/src/main/java-gen/com/hippo/ehviewer/dao/HistoryInfo.java";
@@ -40,6 +40,7 @@ public class EhDaoGenerator {
     private static final String LOCAL_FAVORITE_INFO_PATH = "../app/src/main/java-gen/com/hippo/ehviewer/dao/LocalFavoriteInfo.java";
     private static final String BOOKMARK_INFO_PATH = "../app/src/main/java-gen/com/hippo/ehviewer/dao/BookmarkInfo.java";
     private static final String FILTER_PATH = "../app/src/main/java-gen/com/hippo/ehviewer/dao/Filter.java";
+    private static final String IMPORT_TASK_PATH = "../app/src/main/java-gen/com/hippo/ehviewer/dao/ImportTask.java";
 
     public static void generate() throws Exception {
         Utilities.deleteContents(new File(DELETE_DIR));
@@ -57,6 +58,7 @@ public class EhDaoGenerator {
         addLocalFavorites(schema);
         addBookmarks(schema);
         addFilter(schema);
+        addImportTask(schema);
         new DaoGenerator().generateAll(schema, OUT_DIR);
 
         adjustDownloadInfo();
@@ -65,6 +67,7 @@ public class EhDaoGenerator {
         adjustLocalFavoriteInfo();
         adjustBookmarkInfo();
         adjustFilter();
+        adjustImportTask();
     }
 
     private static void addReadingRecord(Schema schema) {
@@ -211,6 +214,25 @@ public class EhDaoGenerator {
         entity.addBooleanProperty("enable");
     }
 
+    // Since 6
+    private static void addImportTask(Schema schema) {
+        Entity entity = schema.addEntity("ImportTask");
+        entity.setTableName("IMPORT_TASK");
+        entity.setClassNameDao("ImportTaskDao");
+        // gid@source>target, the same item is only imported once to the same target
+        entity.addStringProperty("id").primaryKey().notNull();
+        // source>target
+        entity.addStringProperty("job").notNull().index();
+        entity.addStringProperty("gid").notNull();
+        entity.addStringProperty("title");
+        entity.addStringProperty("thumb");
+        entity.addStringProperty("source").notNull();
+        entity.addStringProperty("target").notNull();
+        entity.addIntProperty("state").notNull();
+        entity.addIntProperty("retry").notNull();
+        entity.addLongProperty("time").notNull();
+    }
+
     private static void adjustDownloadInfo() throws Exception {
         JavaClassSource javaClass = Roaster.parse(JavaClassSource.class, new File(DOWNLOAD_INFO_PATH));
         // Remove field from GalleryInfo
@@ -546,4 +568,28 @@ public class EhDaoGenerator {
         fileWriter.write(javaClass.toString());
         fileWriter.close();
     }
+
+    // Since 6
+    private static void adjustImportTask() throws Exception {
+        JavaClassSource javaClass = Roaster.parse(JavaClassSource.class, new File(IMPORT_TASK_PATH));
+        // Set all field public
+        javaClass.getField("id").setPublic();
+        javaClass.getField("job").setPublic();
+        javaClass.getField("gid").setPublic();
+        javaClass.getField("title").setPublic();
+        javaClass.getField("thumb").setPublic();
+        javaClass.getField("source").setPublic();
+        javaClass.getField("target").setPublic();
+        javaClass.getField("state").setPublic();
+        javaClass.getField("retry").setPublic();
+        javaClass.getField("time").setPublic();
+        // Add import task stuff
+        javaClass.addField("public static final int STATE_NONE = 0");
+        javaClass.addField("public static final int STATE_FINISH = 1");
+        javaClass.addField("public static final int STATE_FAILED = 2");
+
+        FileWriter fileWriter = new FileWriter(IMPORT_TASK_PATH);
+        fileWriter.write(javaClass.toString());
+        fileWriter.close();
+    }
 }